@@ -0,0 +1,41 @@
+package com.mapbox.mapboxsdk.offline;
+
+import android.test.InstrumentationTestCase;
+
+import java.util.Arrays;
+
+public class OfflineDatabaseHandlerTest extends InstrumentationTestCase {
+
+    private static void assertTile(int z, int x, int y, String url) {
+        int[] tile = OfflineDatabaseHandler.parseTileUrl(url);
+        assertNotNull(url, tile);
+        assertTrue(url, Arrays.equals(new int[] { z, x, y }, tile));
+    }
+
+    public void testParseTileUrl() throws Exception {
+        assertTile(3, 4, 2, "https://a.tiles.mapbox.com/v4/mapbox.streets/3/4/2.png");
+        assertTile(14, 8185, 5449,
+                "https://a.tiles.mapbox.com/v4/mapbox.streets/14/8185/5449.png256?access_token=pk.abc");
+        assertTile(0, 0, 0, "http://example.com/tiles/0/0/0.jpg80");
+    }
+
+    public void testParseTileUrlRejectsOtherResources() throws Exception {
+        assertNull(OfflineDatabaseHandler.parseTileUrl(
+                "https://a.tiles.mapbox.com/v4/mapbox.streets/features.json?access_token=pk.abc"));
+        assertNull(OfflineDatabaseHandler.parseTileUrl(
+                "https://a.tiles.mapbox.com/v4/mapbox.streets/3/4.png"));
+        assertNull(OfflineDatabaseHandler.parseTileUrl(
+                "https://a.tiles.mapbox.com/v4/mapbox.streets/3/4/2.png/info"));
+    }
+
+    public void testGetTileRowFlipsToTms() throws Exception {
+        assertEquals(0, OfflineDatabaseHandler.getTileRow(0, 0));
+        assertEquals(7, OfflineDatabaseHandler.getTileRow(3, 0));
+        assertEquals(0, OfflineDatabaseHandler.getTileRow(3, 7));
+        assertEquals(5, OfflineDatabaseHandler.getTileRow(3, 2));
+
+        // Flipping twice gives the row back
+        assertEquals(5449, OfflineDatabaseHandler.getTileRow(14,
+                OfflineDatabaseHandler.getTileRow(14, 5449)));
+    }
+}
@@ -0,0 +1,200 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.v4.util.LongSparseArray;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MBTilesFileArchiveTest extends InstrumentationTestCase {
+
+    private static final String TAG = "MBTilesFileArchiveTest";
+
+    private static final int MAX_ZOOM = 5;
+    private static final int TILE_BYTES = 4096;
+    private static final int READS_PER_THREAD = 2000;
+    private static final int[] THREADS = { 1, 2, 4 };
+
+    private File file;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        file = new File(getInstrumentation().getTargetContext().getCacheDir(), TAG + ".mbtiles");
+        file.delete();
+        createArchive(file);
+    }
+
+    public void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    /**
+     * The data of a tile starts with its zoom, column and row counted from the top, so reads
+     * can be checked.
+     */
+    private static byte[] tileData(final Random random, final int z, final int x, final int y) {
+        final byte[] data = new byte[TILE_BYTES];
+        random.nextBytes(data);
+        data[0] = (byte) z;
+        data[1] = (byte) x;
+        data[2] = (byte) y;
+        return data;
+    }
+
+    private static void assertTile(final int z, final int x, final int y, final byte[] data) {
+        assertNotNull(data);
+        assertEquals(TILE_BYTES, data.length);
+        assertEquals(z, data[0]);
+        assertEquals(x, data[1]);
+        assertEquals(y, data[2]);
+    }
+
+    private static void createArchive(final File file) {
+        final SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            db.execSQL("CREATE TABLE metadata (name text, value text);");
+            db.execSQL("CREATE TABLE tiles (zoom_level integer, tile_column integer,"
+                    + " tile_row integer, tile_data blob);");
+            db.execSQL("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column,"
+                    + " tile_row);");
+            db.execSQL("INSERT INTO metadata VALUES ('name', '" + TAG + "');");
+            db.execSQL("INSERT INTO metadata VALUES ('format', 'png');");
+            db.execSQL("INSERT INTO metadata VALUES ('minzoom', '0');");
+            db.execSQL("INSERT INTO metadata VALUES ('maxzoom', '" + MAX_ZOOM + "');");
+
+            final Random random = new Random(0);
+            final SQLiteStatement insert = db.compileStatement(
+                    "INSERT INTO tiles VALUES (?, ?, ?, ?);");
+            db.beginTransaction();
+            try {
+                for (int z = 0; z <= MAX_ZOOM; z++) {
+                    final int tiles = 1 << z;
+                    for (int x = 0; x < tiles; x++) {
+                        for (int y = 0; y < tiles; y++) {
+                            insert.bindLong(1, z);
+                            insert.bindLong(2, x);
+                            // Rows are stored bottom up
+                            insert.bindLong(3, tiles - 1 - y);
+                            insert.bindBlob(4, tileData(random, z, x, y));
+                            insert.executeInsert();
+                        }
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testGetTileData() throws Exception {
+        final MBTilesFileArchive archive = MBTilesFileArchive.getDatabaseFileArchive(file);
+        try {
+            assertTile(0, 0, 0, archive.getTileData(0, 0, 0));
+            assertTile(3, 1, 6, archive.getTileData(3, 1, 6));
+            assertNull(archive.getTileData(MAX_ZOOM + 1, 0, 0));
+        } finally {
+            archive.close();
+        }
+    }
+
+    public void testGetTilesReadsABlock() throws Exception {
+        final MBTilesFileArchive archive = MBTilesFileArchive.getDatabaseFileArchive(file);
+        try {
+            final LongSparseArray<byte[]> tiles = archive.getTiles(4, 2, 5, 1, 3);
+            assertNotNull(tiles);
+            assertEquals(4 * 3, tiles.size());
+            for (int x = 2; x <= 5; x++) {
+                for (int y = 1; y <= 3; y++) {
+                    assertTile(4, x, y, tiles.get(MapTile.getKey(4, x, y)));
+                }
+            }
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * The tile threads read the archive at once. Compares the read throughput of the reader
+     * pool with reads serialized on the single connection the archive used to have.
+     */
+    public void testReadThroughputScalesWithThreads() throws Exception {
+        for (final int threads : THREADS) {
+            final MBTilesFileArchive pooled = MBTilesFileArchive.getDatabaseFileArchive(file);
+            final long pooledNanos;
+            try {
+                pooledNanos = readConcurrently(pooled, threads);
+            } finally {
+                pooled.close();
+            }
+
+            final SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null,
+                    SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.OPEN_READONLY);
+            final MBTilesFileArchive single = new MBTilesFileArchive(db);
+            final long singleNanos;
+            try {
+                singleNanos = readConcurrently(single, threads);
+            } finally {
+                single.close();
+            }
+
+            final long reads = (long) threads * READS_PER_THREAD;
+            Log.i(TAG, String.format("%d threads: reader pool %d tiles/s, single connection"
+                            + " %d tiles/s", threads, reads * 1000000000L / pooledNanos,
+                    reads * 1000000000L / singleNanos));
+        }
+    }
+
+    /**
+     * @return the time all threads took to read their random tiles of the highest zoom level,
+     * in nanoseconds
+     */
+    private static long readConcurrently(final MBTilesFileArchive archive, final int threads)
+            throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        final int tiles = 1 << MAX_ZOOM;
+                        for (int i = 0; i < READS_PER_THREAD; i++) {
+                            final int x = random.nextInt(tiles);
+                            final int y = random.nextInt(tiles);
+                            final byte[] data = archive.getTileData(MAX_ZOOM, x, y);
+                            if (data == null || data[1] != x || data[2] != y) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsed = System.nanoTime() - begin;
+        assertEquals(0, failures.get());
+        return elapsed;
+    }
+}
@@ -0,0 +1,100 @@
+package com.mapbox.mapboxsdk.util;
+
+import android.test.InstrumentationTestCase;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+
+import javax.net.SocketFactory;
+
+public class NetworkUtilsTest extends InstrumentationTestCase {
+
+    private static final int REQUESTS = 10;
+
+    private MockWebServer server;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        server = new MockWebServer();
+        server.start();
+        NetworkUtils.setOkHttpClient(null);
+        NetworkUtils.resetConnectionCounters();
+    }
+
+    public void tearDown() throws Exception {
+        server.shutdown();
+        NetworkUtils.setMaxRequestsPerHost(NetworkUtils.DEFAULT_MAX_REQUESTS_PER_HOST);
+        super.tearDown();
+    }
+
+    private static void readFully(final URL url) throws Exception {
+        HttpURLConnection connection = NetworkUtils.getHttpURLConnection(url);
+        InputStream in = connection.getInputStream();
+        try {
+            final byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // Drain the body so the connection goes back to the pool
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Sequential tile requests to the same server share one connection, so one handshake
+    public void testConnectionsAreReused() throws Exception {
+        for (int i = 0; i < REQUESTS; i++) {
+            server.enqueue(new MockResponse().setBody("tile " + i));
+        }
+        for (int i = 0; i < REQUESTS; i++) {
+            readFully(server.getUrl("/0/0/" + i + ".png"));
+        }
+
+        assertEquals(REQUESTS, NetworkUtils.getRequestCount());
+        assertEquals(1, NetworkUtils.getConnectionCount());
+        assertEquals(REQUESTS - 1, NetworkUtils.getReusedConnectionCount());
+
+        // The server saw every request after the first on the connection it already had open
+        for (int i = 0; i < REQUESTS; i++) {
+            assertEquals(i, server.takeRequest().getSequenceNumber());
+        }
+    }
+
+    public void testSetOkHttpClientLeavesClientUnchanged() throws Exception {
+        OkHttpClient client = new OkHttpClient();
+        SocketFactory socketFactory = client.getSocketFactory();
+        NetworkUtils.setOkHttpClient(client);
+
+        assertSame(socketFactory, client.getSocketFactory());
+        assertNotSame(client, NetworkUtils.getOkHttpClient());
+
+        // The copy still counts its connections
+        server.enqueue(new MockResponse().setBody("tile"));
+        readFully(server.getUrl("/0/0/0.png"));
+        assertEquals(1, NetworkUtils.getConnectionCount());
+    }
+
+    public void testHostPermitsLimitConcurrentRequests() throws Exception {
+        NetworkUtils.setMaxRequestsPerHost(2);
+        URL url = server.getUrl("/0/0/0.png");
+
+        Semaphore first = NetworkUtils.acquireHostPermit(url);
+        Semaphore second = NetworkUtils.acquireHostPermit(url);
+        assertSame(first, second);
+        assertEquals(0, first.availablePermits());
+
+        // Another host has permits of its own
+        Semaphore other = NetworkUtils.acquireHostPermit(new URL("http://example.com/0/0/0.png"));
+        assertNotSame(first, other);
+        other.release();
+
+        first.release();
+        second.release();
+        assertEquals(2, first.availablePermits());
+    }
+}
@@ -0,0 +1,135 @@
+package com.mapbox.mapboxsdk.util;
+
+import android.test.InstrumentationTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SingleFlightTest extends InstrumentationTestCase {
+
+    private static final String KEY = "http://example.com/0/0/0.png";
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private SingleFlight<String> flights;
+    private CountDownLatch loading;
+    private CountDownLatch release;
+    private AtomicInteger loads;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        flights = new SingleFlight<String>();
+        loading = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+        loads = new AtomicInteger();
+    }
+
+    /**
+     * Loads "value" once released, gives up if interrupted first, like a tile fetch.
+     */
+    private SingleFlight.Loader<String> blockingLoader(final AtomicBoolean cancelledOnInterrupt) {
+        return new SingleFlight.Loader<String>() {
+            @Override
+            public String load(final SingleFlight.Flight<String> flight) {
+                loads.incrementAndGet();
+                loading.countDown();
+                try {
+                    release.await();
+                    return "value";
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (cancelledOnInterrupt != null) {
+                        cancelledOnInterrupt.set(flight.isCancelled());
+                    }
+                    return null;
+                }
+            }
+        };
+    }
+
+    private Thread request(final SingleFlight.Loader<String> loader,
+            final AtomicReference<String> result) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(flights.get(KEY, loader));
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void awaitCoalesced(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (flights.getCoalescedCount() < count) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    public void testConcurrentRequestsShareOneLoad() throws Exception {
+        final AtomicReference<String> first = new AtomicReference<String>();
+        final AtomicReference<String> second = new AtomicReference<String>();
+        final Thread leader = request(blockingLoader(null), first);
+        assertTrue(loading.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        final Thread waiter = request(blockingLoader(null), second);
+        awaitCoalesced(1);
+        release.countDown();
+        leader.join();
+        waiter.join();
+
+        assertEquals("value", first.get());
+        assertEquals("value", second.get());
+        assertEquals(1, loads.get());
+        assertEquals(1, flights.getCoalescedCount());
+
+        // The flight is over, the next request loads again
+        assertEquals("value", flights.get(KEY, blockingLoader(null)));
+        assertEquals(2, loads.get());
+    }
+
+    public void testWaiterTakesOverAnAbandonedLoad() throws Exception {
+        final AtomicBoolean cancelled = new AtomicBoolean(true);
+        final AtomicReference<String> first = new AtomicReference<String>();
+        final AtomicReference<String> second = new AtomicReference<String>();
+        final Thread leader = request(blockingLoader(cancelled), first);
+        assertTrue(loading.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        final CountDownLatch takenOver = new CountDownLatch(1);
+        final Thread waiter = request(new SingleFlight.Loader<String>() {
+            @Override
+            public String load(final SingleFlight.Flight<String> flight) {
+                loads.incrementAndGet();
+                takenOver.countDown();
+                return "value";
+            }
+        }, second);
+        awaitCoalesced(1);
+
+        // The leader gives up, the waiter still wants the tile
+        leader.interrupt();
+        leader.join();
+        assertNull(first.get());
+        assertFalse(cancelled.get());
+
+        assertTrue(takenOver.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        waiter.join();
+        assertEquals("value", second.get());
+        assertEquals(2, loads.get());
+    }
+
+    public void testLoadIsCancelledOnceEveryRequesterGaveUp() throws Exception {
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        final AtomicReference<String> result = new AtomicReference<String>();
+        final Thread leader = request(blockingLoader(cancelled), result);
+        assertTrue(loading.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        leader.interrupt();
+        leader.join();
+        assertNull(result.get());
+        assertTrue(cancelled.get());
+    }
+}
@@ -0,0 +1,109 @@
+package com.mapbox.mapboxsdk.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+
+import uk.co.senab.bitmapcache.BitmapLruCache;
+
+public class TileLooperTest extends InstrumentationTestCase {
+
+    private static final String CACHE_KEY = "mapbox.streets";
+    private static final int ZOOM = 3;
+    private static final int TILE_SIZE = 256;
+    private static final int FRAMES = 100;
+
+    private BitmapLruCache cache;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        cache = new BitmapLruCache.Builder(getInstrumentation().getTargetContext())
+                .setMemoryCacheEnabled(true)
+                .build();
+        final int tiles = 1 << ZOOM;
+        for (int x = 0; x < tiles; x++) {
+            for (int y = 0; y < tiles; y++) {
+                cache.putInMemoryCache(new MapTile(CACHE_KEY, ZOOM, x, y).getCacheKey(),
+                        Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888));
+            }
+        }
+    }
+
+    public void tearDown() throws Exception {
+        cache.purgeMemoryCache();
+        super.tearDown();
+    }
+
+    /**
+     * Looks every tile up in the memory cache, like the tiles overlay does on each frame.
+     */
+    private final class CacheLooper extends TileLooper {
+        int hits;
+        int misses;
+
+        @Override
+        public void initializeLoop(final float pZoomLevel, final int pTileSizePx) {
+        }
+
+        @Override
+        public void handleTile(final Canvas pCanvas, final String pCacheKey,
+                final int pTileSizePx, final MapTile pTile, final int pX, final int pY,
+                final Rect pClipRect) {
+            if (cache.getFromMemoryCache(pTile.getCacheKey()) != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+    }
+
+    public void testLoopReusesTileKeys() throws Exception {
+        final CacheLooper looper = new CacheLooper();
+        final Rect viewPort = new Rect(0, 0, 3 * TILE_SIZE, 2 * TILE_SIZE);
+        final MapTile first = looper.obtainTile(CACHE_KEY, ZOOM, 1, 2);
+        assertSame(first, looper.obtainTile(CACHE_KEY, ZOOM, 1, 2));
+        assertNotSame(first, looper.obtainTile(CACHE_KEY, ZOOM, 2, 1));
+
+        // Another tile source gets keys of its own
+        final MapTile other = looper.obtainTile("mapbox.satellite", ZOOM, 1, 2);
+        assertNotSame(first, other);
+        assertEquals("mapbox.satellite/3/1/2", other.getCacheKey());
+
+        looper.loop(null, CACHE_KEY, ZOOM, TILE_SIZE, viewPort, viewPort);
+        assertTrue(looper.hits > 0);
+        assertEquals(0, looper.misses);
+    }
+
+    /**
+     * Once every tile on screen was seen, a frame drawn from the memory cache allocates nothing.
+     */
+    public void testWarmLoopDoesNotAllocate() throws Exception {
+        final CacheLooper looper = new CacheLooper();
+        final Rect viewPort = new Rect(TILE_SIZE / 2, TILE_SIZE / 2, 4 * TILE_SIZE,
+                3 * TILE_SIZE);
+
+        // Warm up: build the keys and the cache key strings
+        looper.loop(null, CACHE_KEY, ZOOM, TILE_SIZE, viewPort, viewPort);
+        looper.loop(null, CACHE_KEY, ZOOM, TILE_SIZE, viewPort, viewPort);
+        looper.hits = 0;
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                looper.loop(null, CACHE_KEY, ZOOM, TILE_SIZE, viewPort, viewPort);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        final int allocations = Debug.getThreadAllocCount();
+
+        assertTrue(looper.hits > 0);
+        assertEquals(0, looper.misses);
+        assertEquals(0, allocations);
+    }
+}
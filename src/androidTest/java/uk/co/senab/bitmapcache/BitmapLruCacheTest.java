@@ -0,0 +1,157 @@
+package uk.co.senab.bitmapcache;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Random;
+
+public class BitmapLruCacheTest extends InstrumentationTestCase {
+
+    private static final String TAG = "BitmapLruCacheTest";
+
+    private static final int TILE_SIZE = 256;
+    private static final int TILES = 20;
+
+    private Context context;
+    private File passthroughDir;
+    private File reencodeDir;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        context = getInstrumentation().getTargetContext();
+        passthroughDir = new File(context.getCacheDir(), TAG + "-passthrough");
+        reencodeDir = new File(context.getCacheDir(), TAG + "-reencode");
+        delete(passthroughDir);
+        delete(reencodeDir);
+    }
+
+    public void tearDown() throws Exception {
+        delete(passthroughDir);
+        delete(reencodeDir);
+        super.tearDown();
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * @return the bytes of the cached values under {@code dir}, journals and metadata left out
+     */
+    private static long valueBytes(final File dir) {
+        long bytes = 0;
+        final File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    bytes += valueBytes(child);
+                } else if (child.getName().endsWith(".0")) {
+                    bytes += child.length();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private BitmapLruCache newDiskCache(final File dir) {
+        return new BitmapLruCache.Builder(context)
+                .setMemoryCacheEnabled(false)
+                .setDiskCacheEnabled(true)
+                .setDiskCacheLocation(dir)
+                .build();
+    }
+
+    /**
+     * A noisy tile encoded as JPEG, the way satellite tiles are served.
+     */
+    private static byte[] newTileData(final Random random) {
+        final Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        final Paint paint = new Paint();
+        for (int i = 0; i < 200; i++) {
+            paint.setColor(Color.rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            final float x = random.nextInt(TILE_SIZE);
+            final float y = random.nextInt(TILE_SIZE);
+            canvas.drawRect(x, y, x + random.nextInt(64), y + random.nextInt(64), paint);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    /**
+     * Downloaded tiles are cached on disk as they were served instead of being compressed again
+     * from the decoded bitmap. Compares the CPU time of both writes and the bytes they leave on
+     * disk.
+     */
+    public void testPassthroughAgainstReencode() throws Exception {
+        final Random random = new Random(0);
+        final byte[][] tiles = new byte[TILES][];
+        final Bitmap[] bitmaps = new Bitmap[TILES];
+        for (int i = 0; i < TILES; i++) {
+            tiles[i] = newTileData(random);
+            bitmaps[i] = BitmapFactory.decodeByteArray(tiles[i], 0, tiles[i].length);
+            assertNotNull(bitmaps[i]);
+        }
+
+        final BitmapLruCache passthrough = newDiskCache(passthroughDir);
+        final BitmapLruCache reencode = newDiskCache(reencodeDir);
+        try {
+            // Wait for both disk caches to open, outside of the timed loops
+            assertFalse(passthrough.containsInDiskCache("tiles/warm"));
+            assertFalse(reencode.containsInDiskCache("tiles/warm"));
+
+            long start = Debug.threadCpuTimeNanos();
+            for (int i = 0; i < TILES; i++) {
+                assertTrue(passthrough.putInDiskCache("tiles/" + i, tiles[i]));
+            }
+            final long passthroughNanos = Debug.threadCpuTimeNanos() - start;
+
+            start = Debug.threadCpuTimeNanos();
+            for (int i = 0; i < TILES; i++) {
+                reencode.putInDiskCache("tiles/" + i, bitmaps[i]);
+            }
+            final long reencodeNanos = Debug.threadCpuTimeNanos() - start;
+
+            long encodedBytes = 0;
+            for (byte[] tile : tiles) {
+                encodedBytes += tile.length;
+            }
+            final long passthroughBytes = valueBytes(passthroughDir);
+            final long reencodeBytes = valueBytes(reencodeDir);
+
+            Log.i(TAG, String.format("%d tiles: passthrough %d us CPU, %d bytes;"
+                            + " re-encode %d us CPU, %d bytes", TILES, passthroughNanos / 1000,
+                    passthroughBytes, reencodeNanos / 1000, reencodeBytes));
+
+            // The served bytes are kept as they are
+            assertEquals(encodedBytes, passthroughBytes);
+            assertTrue(passthroughBytes < reencodeBytes);
+            assertTrue(passthroughNanos < reencodeNanos);
+        } finally {
+            passthrough.closeDiskCache();
+            reencode.closeDiskCache();
+            for (Bitmap bitmap : bitmaps) {
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+            }
+        }
+    }
+}
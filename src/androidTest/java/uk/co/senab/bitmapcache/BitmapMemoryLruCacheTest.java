@@ -0,0 +1,202 @@
+package uk.co.senab.bitmapcache;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BitmapMemoryLruCacheTest extends InstrumentationTestCase {
+
+    private static final String TAG = "BitmapMemoryLruCacheTest";
+
+    private static final int TILE_SIZE = 16;
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+    private static final int THREADS = 8;
+    private static final int KEYS = 64;
+    private static final int OPERATIONS = 20000;
+
+    private Resources resources;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        resources = getInstrumentation().getContext().getResources();
+    }
+
+    private CacheableBitmapDrawable newDrawable(final String url) {
+        Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        return new CacheableBitmapDrawable(url, resources, bitmap,
+                BitmapLruCache.RecyclePolicy.DISABLED, CacheableBitmapDrawable.SOURCE_NEW);
+    }
+
+    public void testSizeIsBounded() throws Exception {
+        BitmapMemoryLruCache cache =
+                new BitmapMemoryLruCache(4 * TILE_BYTES, BitmapLruCache.RecyclePolicy.DISABLED);
+        for (int i = 0; i < 10; i++) {
+            cache.put(newDrawable("tile" + i));
+            assertTrue(cache.size() <= cache.maxSize());
+        }
+        assertEquals(4 * TILE_BYTES, cache.size());
+
+        // With nothing referenced the hand evicts in insertion order
+        for (int i = 0; i < 6; i++) {
+            assertNull(cache.get("tile" + i));
+        }
+        for (int i = 6; i < 10; i++) {
+            assertNotNull(cache.get("tile" + i));
+        }
+
+        cache.resize(2 * TILE_BYTES);
+        assertEquals(2 * TILE_BYTES, cache.size());
+
+        cache.evictAll();
+        assertEquals(0, cache.size());
+    }
+
+    public void testReferencedEntriesGetASecondChance() throws Exception {
+        BitmapMemoryLruCache cache =
+                new BitmapMemoryLruCache(3 * TILE_BYTES, BitmapLruCache.RecyclePolicy.DISABLED);
+        CacheableBitmapDrawable a = newDrawable("a");
+        cache.put(a);
+        cache.put(newDrawable("b"));
+        cache.put(newDrawable("c"));
+
+        // "a" is the oldest, but it was used since the hand last passed
+        assertSame(a, cache.get("a"));
+        cache.put(newDrawable("d"));
+        assertNull(cache.get("b"));
+        assertEquals(3 * TILE_BYTES, cache.size());
+
+        // The hand cleared the mark of "a", so "c" is the next to go
+        cache.put(newDrawable("e"));
+        assertNull(cache.get("c"));
+        assertSame(a, cache.get("a"));
+        assertNotNull(cache.get("d"));
+        assertNotNull(cache.get("e"));
+        assertTrue(a.isReferencedByCache());
+
+        // Once evicted the drawable knows it's no longer cached
+        cache.remove("a");
+        assertFalse(a.isReferencedByCache());
+    }
+
+    public void testReplacingAnEntryKeepsTheSize() throws Exception {
+        BitmapMemoryLruCache cache =
+                new BitmapMemoryLruCache(3 * TILE_BYTES, BitmapLruCache.RecyclePolicy.DISABLED);
+        CacheableBitmapDrawable first = newDrawable("a");
+        cache.put(first);
+        assertSame(first, cache.put(newDrawable("a")));
+        assertEquals(TILE_BYTES, cache.size());
+
+        assertNotNull(cache.remove("a"));
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Map views look tiles up from the draw thread and the tile threads at once. Compares the
+     * lock free lookups against the synchronized LruCache the memory cache used to extend.
+     */
+    public void testContentionAgainstSynchronizedLruCache() throws Exception {
+        final int maxSize = KEYS / 2 * TILE_BYTES;
+        final CacheableBitmapDrawable[] drawables = new CacheableBitmapDrawable[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            drawables[i] = newDrawable("tile" + i);
+        }
+
+        final BitmapMemoryLruCache cache =
+                new BitmapMemoryLruCache(maxSize, BitmapLruCache.RecyclePolicy.DISABLED);
+        final long clockNanos = runContended(new Operations() {
+            @Override
+            public boolean get(final String key) {
+                return cache.get(key) != null;
+            }
+
+            @Override
+            public void put(final int index) {
+                cache.put(drawables[index].getUrl(), drawables[index]);
+            }
+        });
+        assertTrue(cache.size() <= maxSize);
+
+        final LruCache<String, CacheableBitmapDrawable> lru =
+                new LruCache<String, CacheableBitmapDrawable>(maxSize) {
+                    @Override
+                    protected int sizeOf(final String key, final CacheableBitmapDrawable value) {
+                        return value.getMemorySize();
+                    }
+                };
+        final long lruNanos = runContended(new Operations() {
+            @Override
+            public boolean get(final String key) {
+                return lru.get(key) != null;
+            }
+
+            @Override
+            public void put(final int index) {
+                lru.put(drawables[index].getUrl(), drawables[index]);
+            }
+        });
+        assertTrue(lru.size() <= maxSize);
+
+        Log.i(TAG, String.format("%d threads x %d operations: CLOCK %d ms, LruCache %d ms",
+                THREADS, OPERATIONS, clockNanos / 1000000, lruNanos / 1000000));
+    }
+
+    private interface Operations {
+        boolean get(String key);
+
+        void put(int index);
+    }
+
+    /**
+     * Every thread looks up random tiles and caches the ones it misses, like a frame would.
+     *
+     * @return the time all threads took, in nanoseconds
+     */
+    private static long runContended(final Operations operations) throws Exception {
+        final String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "tile" + i;
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final AtomicInteger hits = new AtomicInteger();
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int threadHits = 0;
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            final int index = random.nextInt(KEYS);
+                            if (operations.get(keys[index])) {
+                                threadHits++;
+                            } else {
+                                operations.put(index);
+                            }
+                        }
+                        hits.addAndGet(threadHits);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsed = System.nanoTime() - begin;
+        assertTrue(hits.get() > 0);
+        return elapsed;
+    }
+}
@@ -0,0 +1,86 @@
+package uk.co.senab.bitmapcache;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.InstrumentationTestCase;
+
+public class BitmapPoolTest extends InstrumentationTestCase {
+
+    private static final int TILE_SIZE = 16;
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+    private static Bitmap newTile() {
+        return Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+    }
+
+    public void testGetMatchesSizeAndConfig() throws Exception {
+        BitmapPool pool = new BitmapPool(4 * TILE_BYTES);
+        Bitmap tile = newTile();
+        tile.eraseColor(Color.RED);
+        assertTrue(pool.put(tile));
+
+        assertNull(pool.get(TILE_SIZE * 2, TILE_SIZE, Bitmap.Config.ARGB_8888));
+        assertNull(pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.RGB_565));
+        assertSame(tile, pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+        assertEquals(Color.TRANSPARENT, tile.getPixel(0, 0));
+
+        assertNull(pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+        assertEquals(1, pool.hitCount());
+        assertEquals(3, pool.missCount());
+        assertEquals(0, pool.size());
+    }
+
+    public void testGetReturnsMostRecentlyReleased() throws Exception {
+        BitmapPool pool = new BitmapPool(4 * TILE_BYTES);
+        Bitmap first = newTile();
+        Bitmap second = newTile();
+        pool.put(first);
+        pool.put(second);
+
+        assertSame(second, pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+        assertSame(first, pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testTrimDropsLeastRecentlyReleasedAcrossBuckets() throws Exception {
+        BitmapPool pool = new BitmapPool(3 * TILE_BYTES);
+        Bitmap oldest = newTile();
+        Bitmap wide = Bitmap.createBitmap(TILE_SIZE * 2, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        Bitmap newest = newTile();
+        pool.put(oldest);
+        pool.put(wide);
+        assertEquals(3 * TILE_BYTES, pool.size());
+
+        // The wide bitmap is in another bucket but the oldest goes first
+        pool.put(newest);
+        assertEquals(1, pool.evictionCount());
+        assertEquals(3 * TILE_BYTES, pool.size());
+        assertSame(newest, pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+        assertNull(pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+        assertSame(wide, pool.get(TILE_SIZE * 2, TILE_SIZE, Bitmap.Config.ARGB_8888));
+
+        pool.put(oldest);
+        pool.clear();
+        assertEquals(0, pool.size());
+        assertNull(pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testRejectsBitmapsThatCantBeReused() throws Exception {
+        BitmapPool pool = new BitmapPool(TILE_BYTES);
+        assertFalse(pool.put(null));
+        assertFalse(pool.put(newTile().copy(Bitmap.Config.ARGB_8888, false)));
+
+        Bitmap recycled = newTile();
+        recycled.recycle();
+        assertFalse(pool.put(recycled));
+
+        assertFalse(pool.put(Bitmap.createBitmap(TILE_SIZE * 2, TILE_SIZE,
+                Bitmap.Config.ARGB_8888)));
+
+        // Releasing the same bitmap twice pools it once
+        Bitmap tile = newTile();
+        assertTrue(pool.put(tile));
+        assertTrue(pool.put(tile));
+        assertEquals(1, pool.putCount());
+        assertEquals(TILE_BYTES, pool.size());
+    }
+}
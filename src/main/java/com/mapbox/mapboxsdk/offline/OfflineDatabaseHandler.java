@@ -1,10 +1,16 @@
 package com.mapbox.mapboxsdk.offline;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class OfflineDatabaseHandler extends SQLiteOpenHelper {
     private static OfflineDatabaseHandler offlineDatabaseHandler;
@@ -13,11 +19,15 @@ public class OfflineDatabaseHandler extends SQLiteOpenHelper {
 
     // All Static variables
     // Database Version
-    public static final int DATABASE_VERSION = 2;
+    // Version 3 moved map tiles out of the resources table, version 4 added download state and
+    // version 5 the HTTP validators used to update a database
+    public static final int DATABASE_VERSION = 5;
 
     // Table name(s)
     public static final String TABLE_METADATA = "metadata";
     public static final String TABLE_RESOURCES = "resources";
+    public static final String TABLE_TILES = "tiles";
+    public static final String TABLE_FAILED_TILES = "failed_tiles";
 
     // Table Fields
     public static final String FIELD_METADATA_NAME = "name";
@@ -26,6 +36,36 @@ public class OfflineDatabaseHandler extends SQLiteOpenHelper {
     public static final String FIELD_RESOURCES_URL = "url";
     public static final String FIELD_RESOURCES_DATA = "data";
     public static final String FIELD_RESOURCES_STATUS = "status";
+    public static final String FIELD_RESOURCES_ATTEMPTS = "attempts";
+    public static final String FIELD_RESOURCES_VALIDATORS = "validators";
+
+    // Download state of a resource: a NULL status is pending, a failed resource keeps the number
+    // of attempts made so far
+    public static final String STATUS_DONE = "200";
+    public static final String STATUS_FAILED = "failed";
+
+    // The tiles table follows the MBTiles layout, rows are in TMS order. tile_key is the rowid and
+    // is MapTile.getKey(z, x, y) in XYZ order, which is what tiles are looked up by.
+    public static final String FIELD_TILES_KEY = "tile_key";
+    public static final String FIELD_TILES_ZOOM = "zoom_level";
+    public static final String FIELD_TILES_COLUMN = "tile_column";
+    public static final String FIELD_TILES_ROW = "tile_row";
+    public static final String FIELD_TILES_DATA = "tile_data";
+    public static final String FIELD_TILES_CRC = "tile_crc";
+    public static final String FIELD_TILES_VALIDATORS = "tile_validators";
+
+    // A tile is pending until it has a row in tiles, failed tiles are listed here with their attempts
+    public static final String FIELD_FAILED_TILES_KEY = "tile_key";
+    public static final String FIELD_FAILED_TILES_ATTEMPTS = "attempts";
+
+    // Matches the /z/x/y.ext part of a map tile url
+    private static final Pattern TILE_URL_PATTERN = Pattern.compile("/(\\d+)/(\\d+)/(\\d+)\\.[a-z0-9]+(\\?|$)");
+
+    // Set by the upgrade from version 2 until its tiles have been moved out of the resources table
+    private static final String METADATA_TILES_MIGRATION_PENDING = "tilesMigrationPending";
+    private static final int MIGRATION_BATCH_SIZE = 100;
+
+    private volatile boolean tilesMigrated = false;
 
     /**
      * Constructor
@@ -41,13 +81,19 @@ public class OfflineDatabaseHandler extends SQLiteOpenHelper {
         Log.i(TAG, "onCreate() called... Setting up application's database.");
         // Create The table(s)
         String metadata = "CREATE TABLE " + TABLE_METADATA + " (" + FIELD_METADATA_NAME + " TEXT UNIQUE, " + FIELD_METADATA_VALUE + " TEXT);";
-        String resources = "CREATE TABLE " + TABLE_RESOURCES + " (" + FIELD_RESOURCES_URL + " TEXT UNIQUE, " + FIELD_RESOURCES_DATA + " BLOB, " + FIELD_RESOURCES_STATUS + " TEXT);";
+        String resources = "CREATE TABLE " + TABLE_RESOURCES + " (" + FIELD_RESOURCES_URL + " TEXT UNIQUE, " + FIELD_RESOURCES_DATA + " BLOB, " + FIELD_RESOURCES_STATUS + " TEXT, "
+                + FIELD_RESOURCES_ATTEMPTS + " INTEGER DEFAULT 0, " + FIELD_RESOURCES_VALIDATORS + " TEXT);";
+        String tiles = "CREATE TABLE " + TABLE_TILES + " (" + FIELD_TILES_KEY + " INTEGER PRIMARY KEY, " + FIELD_TILES_ZOOM + " INTEGER, "
+                + FIELD_TILES_COLUMN + " INTEGER, " + FIELD_TILES_ROW + " INTEGER, " + FIELD_TILES_DATA + " BLOB, " + FIELD_TILES_CRC + " INTEGER, "
+                + FIELD_TILES_VALIDATORS + " TEXT);";
 
         db.beginTransaction();
 
         try {
             db.execSQL(metadata);
             db.execSQL(resources);
+            db.execSQL(tiles);
+            createFailedTilesTable(db);
             db.setTransactionSuccessful();
         } catch (SQLException e) {
             Log.e(TAG, "Error creating database: " + e.toString());
@@ -59,9 +105,139 @@ public class OfflineDatabaseHandler extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + ", which will destroy all old data");
-        db.execSQL("drop table if exists " + TABLE_METADATA);
-        db.execSQL("drop table if exists " + TABLE_RESOURCES);
-        onCreate(db);
+        if (oldVersion < 2) {
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + ", which will destroy all old data");
+            db.execSQL("drop table if exists " + TABLE_METADATA);
+            db.execSQL("drop table if exists " + TABLE_RESOURCES);
+            db.execSQL("drop table if exists " + TABLE_TILES);
+            db.execSQL("drop table if exists " + TABLE_FAILED_TILES);
+            onCreate(db);
+            return;
+        }
+
+        Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+        if (oldVersion < 3) {
+            // Move tiles to their own table
+            db.execSQL("CREATE TABLE " + TABLE_TILES + " (" + FIELD_TILES_KEY + " INTEGER PRIMARY KEY, " + FIELD_TILES_ZOOM + " INTEGER, "
+                    + FIELD_TILES_COLUMN + " INTEGER, " + FIELD_TILES_ROW + " INTEGER, " + FIELD_TILES_DATA + " BLOB);");
+            // The tiles themselves are moved by migrateTilesIfNeeded(), off the thread opening the database
+            ContentValues values = new ContentValues();
+            values.put(FIELD_METADATA_NAME, METADATA_TILES_MIGRATION_PENDING);
+            values.put(FIELD_METADATA_VALUE, "YES");
+            db.insertWithOnConflict(TABLE_METADATA, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+        if (oldVersion < 4) {
+            // Download state
+            db.execSQL("ALTER TABLE " + TABLE_RESOURCES + " ADD COLUMN " + FIELD_RESOURCES_ATTEMPTS + " INTEGER DEFAULT 0;");
+            db.execSQL("ALTER TABLE " + TABLE_TILES + " ADD COLUMN " + FIELD_TILES_CRC + " INTEGER;");
+            createFailedTilesTable(db);
+        }
+        if (oldVersion < 5) {
+            // HTTP validators, a database without them is revalidated unconditionally
+            db.execSQL("ALTER TABLE " + TABLE_RESOURCES + " ADD COLUMN " + FIELD_RESOURCES_VALIDATORS + " TEXT;");
+            db.execSQL("ALTER TABLE " + TABLE_TILES + " ADD COLUMN " + FIELD_TILES_VALIDATORS + " TEXT;");
+        }
+    }
+
+    /**
+     * @return the TMS row of a tile, as stored in tile_row
+     */
+    public static int getTileRow(int z, int y) {
+        return (1 << z) - 1 - y;
+    }
+
+    private static void createFailedTilesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_FAILED_TILES + " (" + FIELD_FAILED_TILES_KEY + " INTEGER PRIMARY KEY, " + FIELD_FAILED_TILES_ATTEMPTS + " INTEGER);");
+    }
+
+    /**
+     * @return the zoom, x and y of a map tile url, null if the url isn't a map tile
+     */
+    public static int[] parseTileUrl(String url) {
+        Matcher matcher = TILE_URL_PATTERN.matcher(url);
+        if (!matcher.find()) {
+            return null;
+        }
+        return new int[] { Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)) };
+    }
+
+    /**
+     * Move the downloaded tiles of a database upgraded from version 2 to the tiles table. Copying
+     * every tile takes a while, so it isn't done by the upgrade, which runs when the database is
+     * first opened, but by the first background reader or downloader of the database.
+     */
+    public void migrateTilesIfNeeded() {
+        if (tilesMigrated) {
+            return;
+        }
+        synchronized (this) {
+            if (tilesMigrated) {
+                return;
+            }
+            SQLiteDatabase db = getWritableDatabase();
+            Cursor cursor = db.rawQuery("SELECT 1 FROM " + TABLE_METADATA + " WHERE " + FIELD_METADATA_NAME + "=?;", new String[] { METADATA_TILES_MIGRATION_PENDING });
+            boolean pending;
+            try {
+                pending = cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+            if (pending) {
+                migrateTilesFromResources(db);
+                db.delete(TABLE_METADATA, FIELD_METADATA_NAME + "=?", new String[] { METADATA_TILES_MIGRATION_PENDING });
+            }
+            tilesMigrated = true;
+        }
+    }
+
+    /**
+     * Move the downloaded tiles of a version 2 database, stored by url in the resources table, to
+     * the tiles table. Rows that aren't tiles or haven't been downloaded stay where they are.
+     * Tiles are moved in batches, each in its own transaction, so readers aren't locked out for the
+     * whole migration.
+     */
+    private static void migrateTilesFromResources(SQLiteDatabase db) {
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_TILES + " (" + FIELD_TILES_KEY + ", " + FIELD_TILES_ZOOM + ", "
+                + FIELD_TILES_COLUMN + ", " + FIELD_TILES_ROW + ", " + FIELD_TILES_DATA + ") VALUES (?, ?, ?, ?, ?);");
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_RESOURCES + " WHERE rowid = ?;");
+        long lastRowId = 0;
+        int migrated = 0;
+        int read;
+        try {
+            do {
+                read = 0;
+                Cursor cursor = db.rawQuery("SELECT rowid, " + FIELD_RESOURCES_URL + ", " + FIELD_RESOURCES_DATA + " FROM " + TABLE_RESOURCES
+                        + " WHERE rowid > ? AND " + FIELD_RESOURCES_STATUS + " IS NOT NULL ORDER BY rowid LIMIT " + MIGRATION_BATCH_SIZE + ";",
+                        new String[] { String.valueOf(lastRowId) });
+                db.beginTransaction();
+                try {
+                    while (cursor.moveToNext()) {
+                        read++;
+                        lastRowId = cursor.getLong(0);
+                        int[] tile = parseTileUrl(cursor.getString(1));
+                        if (tile == null || cursor.isNull(2)) {
+                            continue;
+                        }
+                        insert.bindLong(1, MapTile.getKey(tile[0], tile[1], tile[2]));
+                        insert.bindLong(2, tile[0]);
+                        insert.bindLong(3, tile[1]);
+                        insert.bindLong(4, getTileRow(tile[0], tile[2]));
+                        insert.bindBlob(5, cursor.getBlob(2));
+                        insert.executeInsert();
+                        delete.bindLong(1, lastRowId);
+                        delete.execute();
+                        migrated++;
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    cursor.close();
+                }
+            } while (read == MIGRATION_BATCH_SIZE);
+        } finally {
+            insert.close();
+            delete.close();
+        }
+        Log.i(TAG, "Migrated " + migrated + " tiles");
     }
 }
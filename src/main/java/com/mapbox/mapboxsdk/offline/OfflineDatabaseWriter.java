@@ -0,0 +1,379 @@
+package com.mapbox.mapboxsdk.offline;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes downloaded resources into an offline map database from a single thread. Resources are
+ * queued by the download threads and committed in batches, so the database syncs once per batch
+ * instead of once per tile. The queue is bounded: when the disk can't keep up, downloads wait.
+ */
+class OfflineDatabaseWriter extends Thread {
+
+    private static final String TAG = "OfflineDatabaseWriter";
+
+    /**
+     * Maximum number of resources committed in one transaction
+     */
+    static final int BATCH_SIZE = 200;
+
+    /**
+     * Maximum time a downloaded resource waits for its batch to be committed
+     */
+    static final long BATCH_WINDOW_MS = 500;
+
+    static final int QUEUE_CAPACITY = 2 * BATCH_SIZE;
+
+    interface Listener {
+        /**
+         * A batch was committed. Called on the writer thread.
+         *
+         * @param count the number of resources written or revalidated by the batch, failures
+         * not included
+         * @param failed the number of failed downloads recorded by the batch
+         */
+        void resourcesWritten(int count, int failed);
+
+        /**
+         * A batch couldn't be written. Called on the writer thread.
+         *
+         * @param error the cause
+         */
+        void writeFailed(Throwable error);
+    }
+
+    private static final int TYPE_DATA = 0;
+    private static final int TYPE_VALIDATORS = 1;
+    private static final int TYPE_FAILURE = 2;
+
+    /**
+     * A write for a map tile when url is null, otherwise for a row of the resources table: its
+     * downloaded data, fresh validators for unchanged data, or a failed download. A tile still
+     * pending in the resources table, as in databases from before tiles had their own table, has
+     * its resourceUrl row replaced by the tile.
+     */
+    private static final class Resource {
+        final int type;
+        final String url;
+        final int z;
+        final int x;
+        final int y;
+        final byte[] data;
+        final long crc;
+        final String validators;
+        final int attempts;
+        final String resourceUrl;
+
+        Resource(final int type, final String url, final int z, final int x, final int y,
+                final byte[] data, final long crc, final String validators, final int attempts,
+                final String resourceUrl) {
+            this.type = type;
+            this.url = url;
+            this.z = z;
+            this.x = x;
+            this.y = y;
+            this.data = data;
+            this.crc = crc;
+            this.validators = validators;
+            this.attempts = attempts;
+            this.resourceUrl = resourceUrl;
+        }
+    }
+
+    private final SQLiteDatabase mDatabase;
+    private final Listener mListener;
+    private final BlockingQueue<Resource> mQueue = new ArrayBlockingQueue<Resource>(QUEUE_CAPACITY);
+    private final Resource[] mBatch = new Resource[BATCH_SIZE];
+    private volatile boolean mFinishing = false;
+    private volatile boolean mAborted = false;
+
+    OfflineDatabaseWriter(final SQLiteDatabase database, final Listener listener) {
+        super(TAG);
+        mDatabase = database;
+        mListener = listener;
+    }
+
+    /**
+     * Queue a downloaded resource, waiting for room in the queue if needed.
+     *
+     * @param url the url of the resource
+     * @param data its contents
+     * @param validators its HTTP validators, or null
+     * @return false if the writer has stopped and the resource won't be written
+     */
+    boolean write(final String url, final byte[] data, final String validators) {
+        return enqueue(new Resource(TYPE_DATA, url, 0, 0, 0, data, 0, validators, 0, null));
+    }
+
+    /**
+     * Queue a downloaded map tile, waiting for room in the queue if needed.
+     *
+     * @param crc the CRC32 of data, stored with the tile
+     * @return false if the writer has stopped and the tile won't be written
+     */
+    boolean writeTile(final int z, final int x, final int y, final byte[] data, final long crc,
+            final String validators) {
+        return writeTile(z, x, y, data, crc, validators, null);
+    }
+
+    /**
+     * Queue a downloaded map tile that is pending in the resources table, its row there is
+     * deleted when the tile is written.
+     *
+     * @param resourceUrl the url of its row in the resources table, or null
+     * @return false if the writer has stopped and the tile won't be written
+     */
+    boolean writeTile(final int z, final int x, final int y, final byte[] data, final long crc,
+            final String validators, final String resourceUrl) {
+        return enqueue(new Resource(TYPE_DATA, null, z, x, y, data, crc, validators, 0, resourceUrl));
+    }
+
+    /**
+     * Replace the validators of a stored resource whose data hasn't changed.
+     */
+    boolean writeValidators(final String url, final String validators) {
+        return enqueue(new Resource(TYPE_VALIDATORS, url, 0, 0, 0, null, 0, validators, 0, null));
+    }
+
+    /**
+     * Replace the validators of a stored map tile whose data hasn't changed.
+     */
+    boolean writeTileValidators(final int z, final int x, final int y, final String validators) {
+        return enqueue(new Resource(TYPE_VALIDATORS, null, z, x, y, null, 0, validators, 0, null));
+    }
+
+    /**
+     * Record that a resource couldn't be downloaded.
+     *
+     * @param attempts the number of attempts to add to its count
+     */
+    boolean writeFailure(final String url, final int attempts) {
+        return enqueue(new Resource(TYPE_FAILURE, url, 0, 0, 0, null, 0, null, attempts, null));
+    }
+
+    /**
+     * Record that a map tile couldn't be downloaded.
+     *
+     * @param attempts the number of attempts to add to its count
+     */
+    boolean writeTileFailure(final int z, final int x, final int y, final int attempts) {
+        return enqueue(new Resource(TYPE_FAILURE, null, z, x, y, null, 0, null, attempts, null));
+    }
+
+    private boolean enqueue(final Resource resource) {
+        try {
+            while (!mFinishing && !mAborted) {
+                if (mQueue.offer(resource, BATCH_WINDOW_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Write what is queued, then stop.
+     */
+    void finish() {
+        mFinishing = true;
+    }
+
+    /**
+     * Stop as soon as possible, dropping what is queued.
+     */
+    void abort() {
+        mAborted = true;
+        mQueue.clear();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        final SQLiteStatement insert = mDatabase.compileStatement("INSERT OR REPLACE INTO "
+                + OfflineDatabaseHandler.TABLE_RESOURCES + " ("
+                + OfflineDatabaseHandler.FIELD_RESOURCES_URL + ", "
+                + OfflineDatabaseHandler.FIELD_RESOURCES_DATA + ", "
+                + OfflineDatabaseHandler.FIELD_RESOURCES_STATUS + ", "
+                + OfflineDatabaseHandler.FIELD_RESOURCES_VALIDATORS + ") VALUES (?, ?, 200, ?);");
+        final SQLiteStatement insertTile = mDatabase.compileStatement("INSERT OR REPLACE INTO "
+                + OfflineDatabaseHandler.TABLE_TILES + " ("
+                + OfflineDatabaseHandler.FIELD_TILES_KEY + ", "
+                + OfflineDatabaseHandler.FIELD_TILES_ZOOM + ", "
+                + OfflineDatabaseHandler.FIELD_TILES_COLUMN + ", "
+                + OfflineDatabaseHandler.FIELD_TILES_ROW + ", "
+                + OfflineDatabaseHandler.FIELD_TILES_DATA + ", "
+                + OfflineDatabaseHandler.FIELD_TILES_CRC + ", "
+                + OfflineDatabaseHandler.FIELD_TILES_VALIDATORS + ") VALUES (?, ?, ?, ?, ?, ?, ?);");
+        final SQLiteStatement deleteResource = mDatabase.compileStatement("DELETE FROM "
+                + OfflineDatabaseHandler.TABLE_RESOURCES + " WHERE "
+                + OfflineDatabaseHandler.FIELD_RESOURCES_URL + " = ?;");
+        final SQLiteStatement updateValidators = mDatabase.compileStatement("UPDATE "
+                + OfflineDatabaseHandler.TABLE_RESOURCES + " SET "
+                + OfflineDatabaseHandler.FIELD_RESOURCES_VALIDATORS + " = ? WHERE "
+                + OfflineDatabaseHandler.FIELD_RESOURCES_URL + " = ?;");
+        final SQLiteStatement updateTileValidators = mDatabase.compileStatement("UPDATE "
+                + OfflineDatabaseHandler.TABLE_TILES + " SET "
+                + OfflineDatabaseHandler.FIELD_TILES_VALIDATORS + " = ? WHERE "
+                + OfflineDatabaseHandler.FIELD_TILES_KEY + " = ?;");
+        final SQLiteStatement clearTileFailure = mDatabase.compileStatement("DELETE FROM "
+                + OfflineDatabaseHandler.TABLE_FAILED_TILES + " WHERE "
+                + OfflineDatabaseHandler.FIELD_FAILED_TILES_KEY + " = ?;");
+        final SQLiteStatement failResource = mDatabase.compileStatement("UPDATE "
+                + OfflineDatabaseHandler.TABLE_RESOURCES + " SET "
+                + OfflineDatabaseHandler.FIELD_RESOURCES_STATUS + " = '"
+                + OfflineDatabaseHandler.STATUS_FAILED + "', "
+                + OfflineDatabaseHandler.FIELD_RESOURCES_ATTEMPTS + " = "
+                + OfflineDatabaseHandler.FIELD_RESOURCES_ATTEMPTS + " + ? WHERE "
+                + OfflineDatabaseHandler.FIELD_RESOURCES_URL + " = ?;");
+        final SQLiteStatement failTile = mDatabase.compileStatement("INSERT OR REPLACE INTO "
+                + OfflineDatabaseHandler.TABLE_FAILED_TILES + " ("
+                + OfflineDatabaseHandler.FIELD_FAILED_TILES_KEY + ", "
+                + OfflineDatabaseHandler.FIELD_FAILED_TILES_ATTEMPTS + ") VALUES (?1, ?2 + COALESCE((SELECT "
+                + OfflineDatabaseHandler.FIELD_FAILED_TILES_ATTEMPTS + " FROM "
+                + OfflineDatabaseHandler.TABLE_FAILED_TILES + " WHERE "
+                + OfflineDatabaseHandler.FIELD_FAILED_TILES_KEY + " = ?1), 0));");
+        try {
+            while (!mAborted) {
+                final int count = takeBatch();
+                if (count == 0) {
+                    if (mFinishing) {
+                        break;
+                    }
+                    continue;
+                }
+                if (mAborted) {
+                    break;
+                }
+
+                int written = 0;
+                int failed = 0;
+                try {
+                    mDatabase.beginTransaction();
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            final Resource resource = mBatch[i];
+                            final boolean isTile = resource.url == null;
+                            final long key = isTile ? MapTile.getKey(resource.z, resource.x, resource.y) : 0;
+                            if (resource.type == TYPE_FAILURE) {
+                                if (isTile) {
+                                    failTile.bindLong(1, key);
+                                    failTile.bindLong(2, resource.attempts);
+                                    failTile.executeInsert();
+                                } else {
+                                    failResource.bindLong(1, resource.attempts);
+                                    failResource.bindString(2, resource.url);
+                                    failResource.execute();
+                                }
+                                failed++;
+                                continue;
+                            }
+
+                            if (resource.type == TYPE_VALIDATORS) {
+                                final SQLiteStatement update = isTile ? updateTileValidators : updateValidators;
+                                bindStringOrNull(update, 1, resource.validators);
+                                if (isTile) {
+                                    update.bindLong(2, key);
+                                } else {
+                                    update.bindString(2, resource.url);
+                                }
+                                update.execute();
+                            } else if (isTile) {
+                                insertTile.bindLong(1, key);
+                                insertTile.bindLong(2, resource.z);
+                                insertTile.bindLong(3, resource.x);
+                                insertTile.bindLong(4, OfflineDatabaseHandler.getTileRow(resource.z, resource.y));
+                                insertTile.bindBlob(5, resource.data);
+                                insertTile.bindLong(6, resource.crc);
+                                bindStringOrNull(insertTile, 7, resource.validators);
+                                insertTile.executeInsert();
+                                clearTileFailure.bindLong(1, key);
+                                clearTileFailure.execute();
+                                if (resource.resourceUrl != null) {
+                                    deleteResource.bindString(1, resource.resourceUrl);
+                                    deleteResource.execute();
+                                }
+                            } else {
+                                insert.bindString(1, resource.url);
+                                insert.bindBlob(2, resource.data);
+                                bindStringOrNull(insert, 3, resource.validators);
+                                insert.executeInsert();
+                            }
+                            written++;
+                        }
+                        mDatabase.setTransactionSuccessful();
+                    } finally {
+                        mDatabase.endTransaction();
+                    }
+                } catch (SQLException e) {
+                    Log.e(TAG, "Error writing " + count + " resources", e);
+                    mListener.writeFailed(e);
+                    continue;
+                } finally {
+                    for (int i = 0; i < count; i++) {
+                        mBatch[i] = null;
+                    }
+                }
+                if (written > 0 || failed > 0) {
+                    mListener.resourcesWritten(written, failed);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Writer interrupted, " + mQueue.size() + " resources not written");
+        } finally {
+            insert.close();
+            insertTile.close();
+            deleteResource.close();
+            updateValidators.close();
+            updateTileValidators.close();
+            clearTileFailure.close();
+            failResource.close();
+            failTile.close();
+        }
+    }
+
+    private static void bindStringOrNull(final SQLiteStatement statement, final int index,
+            final String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    /**
+     * Wait for a first resource, then collect more until the batch is full or its time window
+     * has passed.
+     *
+     * @return the number of resources put in mBatch
+     */
+    private int takeBatch() throws InterruptedException {
+        final Resource first = mQueue.poll(BATCH_WINDOW_MS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return 0;
+        }
+        mBatch[0] = first;
+        int count = 1;
+        final long deadline = SystemClock.uptimeMillis() + BATCH_WINDOW_MS;
+        while (count < BATCH_SIZE && !mAborted) {
+            final long remaining = deadline - SystemClock.uptimeMillis();
+            final Resource next = (remaining > 0)
+                    ? mQueue.poll(remaining, TimeUnit.MILLISECONDS) : mQueue.poll();
+            if (next == null) {
+                break;
+            }
+            mBatch[count++] = next;
+        }
+        return count;
+    }
+}
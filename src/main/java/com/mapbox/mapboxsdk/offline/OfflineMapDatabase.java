@@ -7,6 +7,8 @@ import android.text.TextUtils;
 import android.util.Log;
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.exceptions.OfflineDatabaseException;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.util.AppUtils;
 import java.util.Date;
 
 public class OfflineMapDatabase implements MapboxConstants {
@@ -16,6 +18,7 @@ public class OfflineMapDatabase implements MapboxConstants {
     private Context context;
 
     private SQLiteDatabase db;
+    private OfflineDatabaseHandler handler;
 
     private String uniqueID;
     private String mapID;
@@ -109,6 +112,40 @@ public class OfflineMapDatabase implements MapboxConstants {
         return data;
     }
 
+    /**
+     * @param z zoom level
+     * @param x tile column
+     * @param y tile row, in XYZ order
+     * @return the tile image, or null if the database doesn't have it
+     */
+    public byte[] dataForTile(int z, int x, int y) {
+        if (mapID == null) {
+            return null;
+        }
+        SQLiteDatabase db = database();
+        if (db == null) {
+            return null;
+        }
+        if (!AppUtils.runningOnMainThread()) {
+            // The tiles of a database upgraded from version 2 are moved to the tiles table on first use
+            handler.migrateTilesIfNeeded();
+        }
+
+        String query = "SELECT " + OfflineDatabaseHandler.FIELD_TILES_DATA + " FROM " + OfflineDatabaseHandler.TABLE_TILES + " WHERE " + OfflineDatabaseHandler.FIELD_TILES_KEY + "=?;";
+        String[] selectionArgs = new String[] { String.valueOf(MapTile.getKey(z, x, y)) };
+        Cursor cursor = db.rawQuery(query, selectionArgs);
+        if (cursor == null) {
+            return null;
+        }
+
+        byte[] res = null;
+        if (cursor.moveToFirst()) {
+            res = cursor.getBlob(0);
+        }
+        cursor.close();
+        return res;
+    }
+
     public void invalidate() {
         this.invalid = false;
     }
@@ -162,9 +199,10 @@ public class OfflineMapDatabase implements MapboxConstants {
         return res;
     }
 
-    private SQLiteDatabase database() {
+    private synchronized SQLiteDatabase database() {
         if (db == null) {
-            db = OfflineDatabaseManager.getOfflineDatabaseManager(context).getOfflineDatabaseHandlerForMapId(mapID).getReadableDatabase();
+            handler = OfflineDatabaseManager.getOfflineDatabaseManager(context).getOfflineDatabaseHandlerForMapId(mapID);
+            db = handler.getReadableDatabase();
         }
         if (!db.isOpen()) {
             db = null;
@@ -172,7 +210,7 @@ public class OfflineMapDatabase implements MapboxConstants {
         return db;
     }
 
-    public void closeDatabase() {
+    public synchronized void closeDatabase() {
         if (db != null && db.isOpen()) {
             db.close();
         }
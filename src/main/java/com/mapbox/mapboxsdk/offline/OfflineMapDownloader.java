@@ -1,16 +1,24 @@
 package com.mapbox.mapboxsdk.offline;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.v4.util.LongSparseArray;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.geometry.CoordinateRegion;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileValidators;
+import com.mapbox.mapboxsdk.tileprovider.modules.ConfigurablePriorityThreadFactory;
+import com.mapbox.mapboxsdk.tileprovider.util.StreamUtils;
 import com.mapbox.mapboxsdk.util.AppUtils;
 import com.mapbox.mapboxsdk.util.DataLoadingUtils;
 import com.mapbox.mapboxsdk.util.MapboxUtils;
@@ -38,11 +46,39 @@ import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 public class OfflineMapDownloader implements MapboxConstants
 {
     private static final String TAG = "OfflineMapDownloader";
 
+    /**
+     * Minimum time between two progress notifications, the last one is always sent
+     */
+    private static final long PROGRESS_NOTIFICATION_INTERVAL_MS = 250;
+
+    public static final int DEFAULT_CONCURRENT_DOWNLOAD_COUNT = 8;
+
+    /**
+     * Attempts made for a resource before giving up on transient errors
+     */
+    private static final int DOWNLOAD_MAXIMUM_ATTEMPTS = 4;
+    private static final long DOWNLOAD_RETRY_INITIAL_BACKOFF_MS = 500;
+
+    /**
+     * Attempts recorded for a resource, over all resumes, after which it is no longer retried
+     */
+    private static final int DOWNLOAD_MAXIMUM_TOTAL_ATTEMPTS = 3 * DOWNLOAD_MAXIMUM_ATTEMPTS;
+
+    /**
+     * Name of the metadata entry holding the number of resources that aren't map tiles
+     */
+    private static final String METADATA_RESOURCE_COUNT = "resourceCount";
+
     private static OfflineMapDownloader offlineMapDownloader;
 
     private ArrayList<OfflineMapDownloaderListener> listeners;
@@ -57,12 +93,23 @@ public class OfflineMapDownloader implements MapboxConstants
     private CoordinateRegion mapRegion;
     private int minimumZ;
     private int maximumZ;
-    private MBXOfflineMapDownloaderState state;
+    // Written by the caller, read by the download and writer threads
+    private volatile MBXOfflineMapDownloaderState state;
     private int totalFilesWritten;
     private int totalFilesExpectedToWrite;
+    // Files that couldn't be downloaded, either by this job or too many times before
+    private int totalFilesFailed;
+    private boolean finishing;
 
     private ArrayList<OfflineMapDatabase> mutableOfflineMapDatabases;
     private OfflineMapDownloadTaskManager currentDownloadTask;
+    private OfflineMapURLGenerator tileRanges;
+    private OfflineDatabaseWriter writer;
+    private int concurrentDownloadCount = DEFAULT_CONCURRENT_DOWNLOAD_COUNT;
+
+    // True while an existing offline map database is being updated rather than downloaded
+    private volatile boolean updating;
+    private long lastProgressNotification;
 
     /**
      * The possible states of the offline map downloader.
@@ -87,13 +134,21 @@ public class OfflineMapDownloader implements MapboxConstants
         MBXOfflineMapDownloaderStateAvailable
     }
 
+    /**
+     * Downloads the resources of a job on a fixed pool of threads. Every worker pulls the next url
+     * from the shared iterator, reads the response into its own reusable buffer and hands the
+     * bytes to the database writer. Transient failures are retried with exponential backoff.
+     */
     private class OfflineMapDownloadTaskManager
     {
-        private Iterator<String> itr;
-        private int concurrentCount;
-        private ArrayList<AsyncTask<String, Void, Void>> downloadTasks = new ArrayList<>();
-
-        public OfflineMapDownloadTaskManager(Iterator<String> itr, int concurrentCount)
+        private final Iterator<PendingDownload> itr;
+        private final int concurrentCount;
+        private final Set<HttpURLConnection> activeConnections = new HashSet<HttpURLConnection>();
+        private ExecutorService executor;
+        private final AtomicInteger activeWorkers = new AtomicInteger();
+        private volatile boolean cancelled = false;
+
+        public OfflineMapDownloadTaskManager(Iterator<PendingDownload> itr, int concurrentCount)
         {
             this.itr = itr;
             this.concurrentCount = concurrentCount;
@@ -101,100 +156,386 @@ public class OfflineMapDownloader implements MapboxConstants
 
         public void start()
         {
+            executor = Executors.newFixedThreadPool(concurrentCount, new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, TAG));
+            activeWorkers.set(concurrentCount);
             for (int i = 0; i < concurrentCount; i++)
             {
-                startDownloadTask();
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            DownloadBuffer buffer = new DownloadBuffer();
+                            PendingDownload pending;
+                            while ((pending = nextDownload()) != null)
+                            {
+                                if (updating)
+                                {
+                                    sqliteReadStoredState(pending);
+                                }
+                                downloadWithRetry(pending, buffer);
+                            }
+                        }
+                        finally
+                        {
+                            // Everything was tried once the last worker runs out of downloads, whatever the counts say
+                            if (activeWorkers.decrementAndGet() == 0 && !cancelled)
+                            {
+                                finishAfterWriter();
+                            }
+                        }
+                    }
+                });
             }
+            executor.shutdown();
         }
 
+        /**
+         * Stop the workers: requests in flight are aborted and backoff waits interrupted.
+         */
         public void cancel()
         {
-            for (AsyncTask task : downloadTasks)
+            cancelled = true;
+            if (executor != null)
+            {
+                executor.shutdownNow();
+            }
+            synchronized (activeConnections)
             {
-                task.cancel(true);
+                for (HttpURLConnection conn : activeConnections)
+                {
+                    conn.disconnect();
+                }
+                activeConnections.clear();
             }
         }
 
-        private synchronized void startDownloadTask()
+        private PendingDownload nextDownload()
         {
-            if (!itr.hasNext())
+            synchronized (itr)
             {
-                return;
+                if (cancelled || !itr.hasNext())
+                {
+                    return null;
+                }
+                return itr.next();
             }
+        }
 
-            AsyncTask<String, Void, Void> task = new AsyncTask<String, Void, Void>()
+        private void downloadWithRetry(PendingDownload pending, DownloadBuffer buffer)
+        {
+            String url = pending.url;
+            long backoff = DOWNLOAD_RETRY_INITIAL_BACKOFF_MS;
+            for (int attempt = 1; !cancelled; attempt++)
             {
-                @Override
-                protected Void doInBackground(String... params)
+                int rc;
+                IOException error = null;
+                try
                 {
-                    HttpURLConnection conn = null;
-                    String url = params[0];
-                    try
+                    // Validators of the stored copy make the request conditional, otherwise they are only filled from the response
+                    MapTileValidators validators = pending.validators != null ? pending.validators : new MapTileValidators();
+                    rc = download(url, buffer, pending.isTile(), validators);
+                    if (rc == HttpURLConnection.HTTP_NOT_MODIFIED || (rc == HttpURLConnection.HTTP_OK && pending.isTile() && buffer.getCrc() == pending.storedCrc))
                     {
-                        conn = NetworkUtils.getHttpURLConnection(new URL(url));
-                        Log.d(TAG, "URL to download = " + conn.getURL().toString());
-                        conn.setConnectTimeout(60000);
-                        conn.connect();
-                        int rc = conn.getResponseCode();
-                        if (rc != HttpURLConnection.HTTP_OK)
-                        {
-                            String msg = String.format(MAPBOX_LOCALE, "HTTP Error connection.  Response Code = %d for url = %s", rc, conn.getURL().toString());
-                            Log.w(TAG, msg);
-                            notifyDelegateOfHTTPStatusError(rc, params[0]);
-                            throw new IOException(msg);
-                        }
-
-                        ByteArrayOutputStream bais = new ByteArrayOutputStream();
-                        InputStream is = null;
-                        try
+                        // Unchanged, only the validators need to be written
+                        sqliteSaveValidators(pending, validators.toString());
+                        return;
+                    }
+                    if (rc == HttpURLConnection.HTTP_OK)
+                    {
+                        if (pending.isTile())
                         {
-                            is = conn.getInputStream();
-                            // Read 4K at a time
-                            byte[] byteChunk = new byte[4096];
-                            int n;
-
-                            while ((n = is.read(byteChunk)) > 0)
-                            {
-                                bais.write(byteChunk, 0, n);
-                            }
+                            sqliteSaveDownloadedTile(pending, buffer.toByteArray(), buffer.getCrc(), validators.toString());
                         }
-                        catch (IOException e)
+                        else
                         {
-                            Log.e(TAG, String.format(MAPBOX_LOCALE, "Failed while reading bytes from %s: %s", conn.getURL().toString(), e.getMessage()));
-                            e.printStackTrace();
+                            sqliteSaveDownloadedData(buffer.toByteArray(), url, validators.toString());
                         }
-                        finally
-                        {
-                            if (is != null)
-                            {
-                                is.close();
-                            }
-                            conn.disconnect();
-                        }
-
-                        sqliteSaveDownloadedData(bais.toByteArray(), url);
+                        return;
                     }
-                    catch (IOException e)
+                }
+                catch (IOException e)
+                {
+                    rc = -1;
+                    error = e;
+                }
+
+                if (cancelled)
+                {
+                    return;
+                }
+                if (attempt >= DOWNLOAD_MAXIMUM_ATTEMPTS || !isTransient(rc))
+                {
+                    if (error != null)
                     {
-                        Log.e(TAG, e.getMessage());
-                        e.printStackTrace();
+                        Log.e(TAG, String.format(MAPBOX_LOCALE, "Failed to download %s: %s", url, error.getMessage()));
+                        notifyDelegateOfNetworkConnectivityError(error);
                     }
-                    finally
+                    else
                     {
-                        if (conn != null)
-                            conn.disconnect();
+                        Log.w(TAG, String.format(MAPBOX_LOCALE, "HTTP Error connection.  Response Code = %d for url = %s", rc, url));
+                        notifyDelegateOfHTTPStatusError(rc, url);
                     }
 
-                    if (!isCancelled())
-                        startDownloadTask();
+                    // Keep the failure so a resumed download knows whether to try again
+                    sqliteSaveDownloadFailure(pending, isTransient(rc) ? attempt : DOWNLOAD_MAXIMUM_TOTAL_ATTEMPTS);
+                    return;
+                }
 
-                    downloadTasks.remove(this);
-                    return null;
+                Log.d(TAG, String.format(MAPBOX_LOCALE, "Retrying %s in %d ms, attempt %d", url, backoff, attempt));
+                try
+                {
+                    Thread.sleep(backoff);
                 }
-            };
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                backoff *= 2;
+            }
+        }
+
+        /**
+         * @return the response code, the body is in buffer when it is 200 and validators are
+         * updated from the response
+         * @throws IOException on network errors, or when the body is truncated or, for a map tile,
+         * isn't an image
+         */
+        private int download(String url, DownloadBuffer buffer, boolean isTile, MapTileValidators validators) throws IOException
+        {
+            URL requestUrl = new URL(url);
+            Semaphore permit = NetworkUtils.acquireHostPermit(requestUrl);
+            try
+            {
+                return download(requestUrl, buffer, isTile, validators);
+            }
+            finally
+            {
+                permit.release();
+            }
+        }
+
+        private int download(URL url, DownloadBuffer buffer, boolean isTile, MapTileValidators validators) throws IOException
+        {
+            HttpURLConnection conn = NetworkUtils.getHttpURLConnection(url);
+            validators.applyTo(conn);
+            synchronized (activeConnections)
+            {
+                if (cancelled)
+                {
+                    return -1;
+                }
+                activeConnections.add(conn);
+            }
+
+            InputStream is = null;
+            try
+            {
+                Log.d(TAG, "URL to download = " + url);
+                int rc = conn.getResponseCode();
+                validators.readFrom(conn, rc);
+                if (rc != HttpURLConnection.HTTP_OK)
+                {
+                    // Close the error body so the connection can be reused
+                    StreamUtils.closeStream(conn.getErrorStream());
+                    return rc;
+                }
+
+                int contentLength = conn.getContentLength();
+                buffer.reset(contentLength);
+                is = conn.getInputStream();
+                buffer.readFrom(is);
+
+                // Validate before the resource can be marked done
+                if (contentLength >= 0 && buffer.size() != contentLength)
+                {
+                    throw new IOException(String.format(MAPBOX_LOCALE, "Truncated response, %d of %d bytes", buffer.size(), contentLength));
+                }
+                if (isTile && !buffer.isImage())
+                {
+                    throw new IOException("Response isn't a PNG or JPEG image");
+                }
+                return rc;
+            }
+            finally
+            {
+                StreamUtils.closeStream(is);
+                synchronized (activeConnections)
+                {
+                    activeConnections.remove(conn);
+                }
+            }
+        }
+
+        /**
+         * @return true for failures worth another attempt: no response, timeouts, throttling and
+         * server errors
+         */
+        private boolean isTransient(int rc)
+        {
+            return rc == -1 || rc == HttpURLConnection.HTTP_CLIENT_TIMEOUT || rc == 429
+                    || rc >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+        }
+    }
+
+    /**
+     * A response buffer that is kept by its worker and reused for every download, so only the
+     * final copy handed to the writer is allocated per resource.
+     */
+    private static class DownloadBuffer extends ByteArrayOutputStream
+    {
+        private final byte[] chunk = new byte[StreamUtils.IO_BUFFER_SIZE];
+        private final CRC32 crc = new CRC32();
+
+        DownloadBuffer()
+        {
+            super(StreamUtils.IO_BUFFER_SIZE * 4);
+        }
+
+        void reset(int expectedLength)
+        {
+            reset();
+            crc.reset();
+            if (expectedLength > buf.length)
+            {
+                buf = new byte[expectedLength];
+            }
+        }
+
+        void readFrom(InputStream is) throws IOException
+        {
+            int n;
+            while ((n = is.read(chunk)) != -1)
+            {
+                write(chunk, 0, n);
+                crc.update(chunk, 0, n);
+            }
+        }
 
-            task.execute(itr.next());
-            downloadTasks.add(task);
+        /**
+         * @return the CRC32 of what was read since the last reset
+         */
+        long getCrc()
+        {
+            return crc.getValue();
+        }
+
+        /**
+         * @return true if the content starts with a PNG or JPEG signature
+         */
+        boolean isImage()
+        {
+            if (count >= 4 && (buf[0] & 0xff) == 0x89 && buf[1] == 'P' && buf[2] == 'N' && buf[3] == 'G')
+            {
+                return true;
+            }
+            return count >= 2 && (buf[0] & 0xff) == 0xff && (buf[1] & 0xff) == 0xd8;
+        }
+    }
+
+    /**
+     * A resource to download, with its tile coordinates when it is a map tile.
+     */
+    private static class PendingDownload
+    {
+        final String url;
+        final int zoom;
+        final int x;
+        final int y;
+        // A tile still pending in the resources table, from before tiles had their own table
+        final boolean inResources;
+
+        // The stored copy, when updating a database
+        MapTileValidators validators;
+        long storedCrc = -1;
+
+        PendingDownload(String url, int zoom, int x, int y)
+        {
+            this(url, zoom, x, y, false);
+        }
+
+        PendingDownload(String url, int zoom, int x, int y, boolean inResources)
+        {
+            this.url = url;
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+            this.inResources = inResources;
+        }
+
+        boolean isTile()
+        {
+            return zoom >= 0;
+        }
+    }
+
+    /**
+     * The downloads left: pending resource rows first, then the tiles of the region, built one at
+     * a time as the workers ask for them.
+     */
+    private class PendingDownloadIterator implements Iterator<PendingDownload>
+    {
+        private final Iterator<String> resources;
+        private final OfflineMapURLGenerator.TileCursor tiles;
+        private final LongSparseArray<Boolean> skippedTiles;
+        private boolean hasNextTile;
+
+        public PendingDownloadIterator(Iterator<String> resources, OfflineMapURLGenerator tileRanges, LongSparseArray<Boolean> skippedTiles)
+        {
+            this.resources = resources;
+            this.tiles = tileRanges != null ? tileRanges.tiles() : null;
+            this.skippedTiles = skippedTiles;
+            advanceTile();
+        }
+
+        private void advanceTile()
+        {
+            hasNextTile = false;
+            while (tiles != null && tiles.moveToNext())
+            {
+                if (skippedTiles.get(MapTile.getKey(tiles.getZoom(), tiles.getX(), tiles.getY())) == null)
+                {
+                    hasNextTile = true;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return resources.hasNext() || hasNextTile;
+        }
+
+        @Override
+        public PendingDownload next()
+        {
+            if (resources.hasNext())
+            {
+                String url = resources.next();
+                // A database without tile ranges lists its tiles in resources, they are written to the tiles table by key
+                int[] tile = tiles == null ? OfflineDatabaseHandler.parseTileUrl(url) : null;
+                if (tile != null)
+                {
+                    return new PendingDownload(url, tile[0], tile[1], tile[2], true);
+                }
+                return new PendingDownload(url, -1, -1, -1);
+            }
+            if (!hasNextTile)
+            {
+                throw new NoSuchElementException();
+            }
+            PendingDownload result = new PendingDownload(tiles.getURL(context, mapID, imageQuality), tiles.getZoom(), tiles.getX(), tiles.getY());
+            advanceTile();
+            return result;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
         }
     }
 
@@ -210,7 +551,8 @@ public class OfflineMapDownloader implements MapboxConstants
         ContextWrapper cw = new ContextWrapper(context);
         for (String s : cw.databaseList())
         {
-            if (!s.toLowerCase().contains("partial") && !s.toLowerCase().contains("journal"))
+            String name = s.toLowerCase();
+            if (!name.contains("partial") && !name.contains("journal") && !name.endsWith("-wal") && !name.endsWith("-shm"))
             {
                 // Setup Database Handler
                 OfflineDatabaseManager.getOfflineDatabaseManager(context).getOfflineDatabaseHandlerForMapId(s, true);
@@ -233,6 +575,31 @@ public class OfflineMapDownloader implements MapboxConstants
         return offlineMapDownloader;
     }
 
+    /**
+     * Set the number of resources downloaded in parallel. Takes effect for the next download
+     * that is started or resumed.
+     *
+     * @param count the number of download threads, at least 1
+     */
+    public void setConcurrentDownloadCount(int count)
+    {
+        concurrentDownloadCount = Math.max(1, count);
+    }
+
+    /**
+     * @return the number of files the current or last download couldn't download, still valid when the completion
+     * is notified. The offline map is completed without them, updating it tries them again.
+     */
+    public int getTotalFilesFailed()
+    {
+        return totalFilesFailed;
+    }
+
+    public int getConcurrentDownloadCount()
+    {
+        return concurrentDownloadCount;
+    }
+
     public boolean addOfflineMapDownloaderListener(OfflineMapDownloaderListener listener)
     {
         return listeners.add(listener);
@@ -332,82 +699,283 @@ public class OfflineMapDownloader implements MapboxConstants
         return offlineMapDatabase;
     }
 
-
-    public void startDownloading()
+
+    public void startDownloading()
+    {
+        // Let a writer flushing a suspended download finish before counting what has been written
+        awaitWriter();
+
+        if (!AppUtils.runningOnMainThread())
+        {
+            // The downloaded tiles of a database upgraded from version 2 have to be in the tiles table to be counted and skipped
+            OfflineDatabaseManager.getOfflineDatabaseManager(context).getOfflineDatabaseHandlerForMapId(mapID).migrateTilesIfNeeded();
+        }
+
+        // Update expected files numbers (totalFilesExpectedToWrite and totalFilesWritten)
+        sqliteQueryWrittenAndExpectedCountsWithError();
+        if (updating)
+        {
+            // Every resource is revalidated, unchanged ones count as written once the server confirms them
+            this.totalFilesWritten = 0;
+        }
+        // Files that failed too many times aren't tried again, they are done as far as this job is concerned
+        this.totalFilesFailed = updating ? 0 : sqliteReadFailedCount();
+        Log.d(TAG, String.format(MAPBOX_LOCALE, "totalFilesExpectedToWrite = %d, totalFilesWritten = %d, totalFilesFailed = %d", this.totalFilesExpectedToWrite,
+                this.totalFilesWritten, this.totalFilesFailed));
+
+        // Get the actual URLs
+        Iterator<String> resourceIter = sqliteReadOfflineMapURLsToBeDownloadedLimit(-1);
+        if (resourceIter == null)
+        {
+            // The operation failed for one reason or another (e.g. we're on the main thread).
+            closeDatabase();
+            return;
+        }
+
+        // Tiles aren't stored until they are downloaded, so when resuming skip the ones that already are, and the ones
+        // that failed too many times. A tile that was in flight when the download stopped has no row and is pending again.
+        LongSparseArray<Boolean> skippedTiles = updating ? new LongSparseArray<Boolean>() : sqliteReadSkippedTileKeys();
+        Iterator<PendingDownload> urlIter = new PendingDownloadIterator(resourceIter, tileRanges, skippedTiles);
+
+        if (!urlIter.hasNext())
+        {
+            // All files are downloaded, but hasn't been persisted yet.
+            finishUpDownloadProcess();
+            return;
+        }
+
+        synchronized (this)
+        {
+            finishing = false;
+        }
+        startWriter();
+        currentDownloadTask = new OfflineMapDownloadTaskManager(urlIter, concurrentDownloadCount);
+        currentDownloadTask.start();
+    }
+
+    /**
+     * Start the thread that writes downloaded resources into the database. Writes are batched
+     * into transactions, so its callbacks report several resources at a time.
+     */
+    private void startWriter()
+    {
+        writer = new OfflineDatabaseWriter(database(), new OfflineDatabaseWriter.Listener()
+        {
+            @Override
+            public void resourcesWritten(int count, int failed)
+            {
+                totalFilesWritten += count;
+                totalFilesFailed += failed;
+                boolean complete = totalFilesWritten + totalFilesFailed >= totalFilesExpectedToWrite;
+
+                long now = SystemClock.uptimeMillis();
+                if (complete || now - lastProgressNotification >= PROGRESS_NOTIFICATION_INTERVAL_MS)
+                {
+                    lastProgressNotification = now;
+                    notifyDelegateOfProgress();
+                }
+                Log.d(TAG, "totalFilesWritten = " + totalFilesWritten + "; totalFilesFailed = " + totalFilesFailed + "; totalFilesExpectedToWrite = "
+                        + totalFilesExpectedToWrite);
+
+                // If all the downloads are done, clean up and notify the delegate
+                if (complete)
+                {
+                    finishAfterWriter();
+                }
+            }
+
+            @Override
+            public void writeFailed(Throwable error)
+            {
+                notifyDelegateOfSqliteError(error);
+            }
+        });
+        writer.start();
+    }
+
+    /**
+     * Let the writer write what is queued, then finish the download once it has exited. Its statements hold the
+     * database open, so the database can only be closed and renamed, with its write-ahead log merged back, after that.
+     * Called on the writer thread, so the writer is waited for on another one.
+     */
+    private void finishAfterWriter()
+    {
+        synchronized (this)
+        {
+            // Both the last written batch and the last worker leaving finish the download
+            if (finishing)
+            {
+                return;
+            }
+            finishing = true;
+        }
+        stopWriter(true);
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                awaitWriter();
+                finishUpDownloadProcess();
+            }
+        }, TAG + "-finish").start();
+    }
+
+    /**
+     * Stop the writer thread without waiting for it.
+     *
+     * @param flush true to write what is queued first, false to drop it
+     */
+    private void stopWriter(boolean flush)
+    {
+        if (writer != null)
+        {
+            if (flush)
+            {
+                writer.finish();
+            }
+            else
+            {
+                writer.abort();
+            }
+        }
+    }
+
+    /**
+     * Wait for a stopped writer thread to be done with the database.
+     */
+    private void awaitWriter()
+    {
+        if (writer != null && writer != Thread.currentThread())
+        {
+            try
+            {
+                writer.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        writer = null;
+    }
+
+    /*
+        Implementation: sqlite stuff
+    */
+    public void sqliteSaveDownloadedData(byte[] data, String url)
+    {
+        sqliteSaveDownloadedData(data, url, null);
+    }
+
+    private void sqliteSaveDownloadedData(byte[] data, String url, String validators)
+    {
+        // Hand the blob to the writer thread, which commits it with the next batch and reports progress. This blocks
+        // while the writer is behind, so downloads can't outrun the disk.
+        OfflineDatabaseWriter writer = writerForSave("sqliteSaveDownloadedData()");
+        if (writer != null && !writer.write(url, data, validators))
+        {
+            Log.w(TAG, "sqliteSaveDownloadedData() writer has stopped, dropping " + url);
+        }
+    }
+
+    public void sqliteSaveDownloadedTile(byte[] data, long crc, String validators, int zoom, int x, int y)
+    {
+        sqliteSaveDownloadedTile(data, crc, validators, zoom, x, y, null);
+    }
+
+    private void sqliteSaveDownloadedTile(PendingDownload pending, byte[] data, long crc, String validators)
+    {
+        sqliteSaveDownloadedTile(data, crc, validators, pending.zoom, pending.x, pending.y, pending.inResources ? pending.url : null);
+    }
+
+    private void sqliteSaveDownloadedTile(byte[] data, long crc, String validators, int zoom, int x, int y, String resourceUrl)
+    {
+        OfflineDatabaseWriter writer = writerForSave("sqliteSaveDownloadedTile()");
+        if (writer != null && !writer.writeTile(zoom, x, y, data, crc, validators, resourceUrl))
+        {
+            Log.w(TAG, String.format(MAPBOX_LOCALE, "sqliteSaveDownloadedTile() writer has stopped, dropping %d/%d/%d", zoom, x, y));
+        }
+    }
+
+    private void sqliteSaveValidators(PendingDownload pending, String validators)
     {
-        // Update expected files numbers (totalFilesExpectedToWrite and totalFilesWritten)
-        sqliteQueryWrittenAndExpectedCountsWithError();
-        Log.d(TAG, String.format(MAPBOX_LOCALE, "totalFilesExpectedToWrite = %d, totalFilesWritten = %d", this.totalFilesExpectedToWrite, this.totalFilesWritten));
-
-        // Get the actual URLs
-        Iterator<String> urlIter = sqliteReadOfflineMapURLsToBeDownloadedLimit(-1);
-        if (urlIter == null)
+        OfflineDatabaseWriter writer = writerForSave("sqliteSaveValidators()");
+        if (writer == null)
         {
-            // The operation failed for one reason or another (e.g. we're on the main thread).
-            closeDatabase();
             return;
         }
+        if (pending.isTile())
+        {
+            writer.writeTileValidators(pending.zoom, pending.x, pending.y, validators);
+        }
+        else
+        {
+            writer.writeValidators(pending.url, validators);
+        }
+    }
 
-        if (!urlIter.hasNext())
+    private void sqliteSaveDownloadFailure(PendingDownload pending, int attempts)
+    {
+        OfflineDatabaseWriter writer = writerForSave("sqliteSaveDownloadFailure()");
+        if (writer == null)
         {
-            // All files are downloaded, but hasn't been persisted yet.
-            finishUpDownloadProcess();
             return;
         }
-
-        currentDownloadTask = new OfflineMapDownloadTaskManager(urlIter, 8);
-        currentDownloadTask.start();
+        if (pending.isTile() && !pending.inResources)
+        {
+            // A tile pending in resources keeps its attempts there
+            writer.writeTileFailure(pending.zoom, pending.x, pending.y, attempts);
+        }
+        else
+        {
+            writer.writeFailure(pending.url, attempts);
+        }
     }
 
-    /*
-        Implementation: sqlite stuff
-    */
-    public void sqliteSaveDownloadedData(byte[] data, String url)
+    /**
+     * @return the writer to queue a save on, or null if saving isn't allowed now
+     */
+    private OfflineDatabaseWriter writerForSave(String caller)
     {
         if (AppUtils.runningOnMainThread())
         {
-            Log.w(TAG, "trying to run sqliteSaveDownloadedData() on main thread. Return.");
-            return;
+            Log.w(TAG, "trying to run " + caller + " on main thread. Return.");
+            return null;
         }
 
         // Bail out if the state has changed to canceling, suspended, or available
         if (this.state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning)
         {
-            Log.w(TAG, "sqliteSaveDownloadedData() is not in a Running state so bailing.  State = " + this.state);
-            return;
+            Log.w(TAG, caller + " is not in a Running state so bailing.  State = " + this.state);
+            return null;
         }
 
-        // Open the database read-write and multi-threaded. The slightly obscure c-style variable names here and below are
-        // used to stay consistent with the sqlite documentaion.
-        // Continue by inserting an image blob into the data table
-        SQLiteDatabase db = database();
-        db.beginTransaction();
-
-        ContentValues values = new ContentValues();
-        values.put(OfflineDatabaseHandler.FIELD_RESOURCES_URL, url);
-        values.put(OfflineDatabaseHandler.FIELD_RESOURCES_DATA, data);
-        values.put(OfflineDatabaseHandler.FIELD_RESOURCES_STATUS, 200);
-        db.replace(OfflineDatabaseHandler.TABLE_RESOURCES, null, values);
-
-        db.setTransactionSuccessful();
-        db.endTransaction();
-
-        this.totalFilesWritten += 1;
-        notifyDelegateOfProgress();
-        Log.d(TAG, "totalFilesWritten = " + this.totalFilesWritten + "; totalFilesExpectedToWrite = " + this.totalFilesExpectedToWrite);
-
-        // If all the downloads are done, clean up and notify the delegate
-        if (this.totalFilesWritten >= this.totalFilesExpectedToWrite)
+        OfflineDatabaseWriter writer = this.writer;
+        if (writer == null)
         {
-            finishUpDownloadProcess();
+            Log.w(TAG, caller + " writer has stopped");
         }
+        return writer;
     }
 
     private void finishUpDownloadProcess()
     {
-        if (this.state == MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning)
+        if (this.state == MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning && updating)
+        {
+            Log.i(TAG, "Just finished updating " + mapID);
+            OfflineMapDatabase offlineMap = finishUpdate();
+            notifyDelegateOfCompletionWithOfflineMapDatabase(offlineMap);
+            this.state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateAvailable;
+            notifyDelegateOfStateChange();
+        }
+        else if (this.state == MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning)
         {
             Log.i(TAG, "Just finished downloading all materials.  Persist the OfflineMapDatabase, change the state, and call it a day.");
+            if (totalFilesFailed > 0)
+            {
+                Log.w(TAG, String.format(MAPBOX_LOCALE, "%d of %d files couldn't be downloaded", totalFilesFailed, totalFilesExpectedToWrite));
+            }
 
             // This is what to do when we've downloaded all the files
             // Populate OfflineMapDatabase object and persist it
@@ -431,8 +999,14 @@ public class OfflineMapDownloader implements MapboxConstants
             return null;
         }
 
-        // Read up to limit undownloaded urls from the offline map database
-        String query = String.format(MAPBOX_LOCALE, "SELECT %s FROM %s WHERE %s IS NULL", OfflineDatabaseHandler.FIELD_RESOURCES_URL, OfflineDatabaseHandler.TABLE_RESOURCES, OfflineDatabaseHandler.FIELD_RESOURCES_STATUS);
+        // Read up to limit undownloaded urls from the offline map database, or all of them when updating
+        String query = String.format(MAPBOX_LOCALE, "SELECT %s FROM %s", OfflineDatabaseHandler.FIELD_RESOURCES_URL, OfflineDatabaseHandler.TABLE_RESOURCES);
+        if (!updating)
+        {
+            query = query + String.format(MAPBOX_LOCALE, " WHERE %s IS NULL OR (%s = '%s' AND %s < %d)", OfflineDatabaseHandler.FIELD_RESOURCES_STATUS,
+                    OfflineDatabaseHandler.FIELD_RESOURCES_STATUS, OfflineDatabaseHandler.STATUS_FAILED, OfflineDatabaseHandler.FIELD_RESOURCES_ATTEMPTS,
+                    DOWNLOAD_MAXIMUM_TOTAL_ATTEMPTS);
+        }
         if (limit > 0)
         {
             query = query + String.format(MAPBOX_LOCALE, " LIMIT %d", limit);
@@ -490,22 +1064,88 @@ public class OfflineMapDownloader implements MapboxConstants
         // NOTE: Unlike most of the sqlite code, this method is written with the expectation that it can and will be called on the main
         //       thread as part of init. This is also meant to be used in other contexts throught the normal serial operation queue.
 
-        // Calculate how many files need to be written in total and how many of them have been written already
+        // Calculate how many files need to be written in total and how many of them have been written already. Tiles only get a
+        // row once they're written, so the expected count comes from the tile ranges and the number of other resources.
         String query = String.format(MAPBOX_LOCALE,
-                "SELECT COUNT(%s) AS totalFilesExpectedToWrite, (SELECT COUNT(%s) FROM %s WHERE %s IS NOT NULL) AS totalFilesWritten FROM %s;",
-                OfflineDatabaseHandler.FIELD_RESOURCES_URL, OfflineDatabaseHandler.FIELD_RESOURCES_URL, OfflineDatabaseHandler.TABLE_RESOURCES,
-                OfflineDatabaseHandler.FIELD_RESOURCES_STATUS, OfflineDatabaseHandler.TABLE_RESOURCES);
+                "SELECT COUNT(%s) + (SELECT COUNT(*) FROM %s) AS totalFilesExpectedToWrite, (SELECT COUNT(%s) FROM %s WHERE %s = '%s') + (SELECT COUNT(*) FROM %s) AS totalFilesWritten FROM %s;",
+                OfflineDatabaseHandler.FIELD_RESOURCES_URL, OfflineDatabaseHandler.TABLE_TILES,
+                OfflineDatabaseHandler.FIELD_RESOURCES_URL, OfflineDatabaseHandler.TABLE_RESOURCES, OfflineDatabaseHandler.FIELD_RESOURCES_STATUS,
+                OfflineDatabaseHandler.STATUS_DONE, OfflineDatabaseHandler.TABLE_TILES, OfflineDatabaseHandler.TABLE_RESOURCES);
 
-        boolean success = false;
         SQLiteDatabase db = database();
         Cursor cursor = db.rawQuery(query, null);
         cursor.moveToFirst();
         this.totalFilesExpectedToWrite = cursor.getInt(0);
         this.totalFilesWritten = cursor.getInt(1);
         cursor.close();
-        success = true;
 
-        return success;
+        this.tileRanges = OfflineMapURLGenerator.fromMetadata(sqliteMetadataForName(OfflineMapURLGenerator.METADATA_TILE_RANGES));
+        String resourceCount = sqliteMetadataForName(METADATA_RESOURCE_COUNT);
+        if (this.tileRanges != null && resourceCount != null)
+        {
+            this.totalFilesExpectedToWrite = Integer.parseInt(resourceCount) + this.tileRanges.getURLCount();
+        }
+        else
+        {
+            // Database seeded with every url, the row count is the expected count
+            this.tileRanges = null;
+        }
+
+        return true;
+    }
+
+    private String sqliteMetadataForName(String name)
+    {
+        String query = "SELECT " + OfflineDatabaseHandler.FIELD_METADATA_VALUE + " FROM " + OfflineDatabaseHandler.TABLE_METADATA + " WHERE " + OfflineDatabaseHandler.FIELD_METADATA_NAME + "=?;";
+        Cursor cursor = database().rawQuery(query, new String[] { name });
+        String result = null;
+        if (cursor.moveToFirst())
+        {
+            result = cursor.getString(0);
+        }
+        cursor.close();
+        return result;
+    }
+
+    /**
+     * @return the number of resources and tiles that failed too many times to be downloaded again
+     */
+    private int sqliteReadFailedCount()
+    {
+        String query = String.format(MAPBOX_LOCALE, "SELECT (SELECT COUNT(*) FROM %s WHERE %s >= %d) + (SELECT COUNT(*) FROM %s WHERE %s = '%s' AND %s >= %d);",
+                OfflineDatabaseHandler.TABLE_FAILED_TILES, OfflineDatabaseHandler.FIELD_FAILED_TILES_ATTEMPTS, DOWNLOAD_MAXIMUM_TOTAL_ATTEMPTS,
+                OfflineDatabaseHandler.TABLE_RESOURCES, OfflineDatabaseHandler.FIELD_RESOURCES_STATUS, OfflineDatabaseHandler.STATUS_FAILED,
+                OfflineDatabaseHandler.FIELD_RESOURCES_ATTEMPTS, DOWNLOAD_MAXIMUM_TOTAL_ATTEMPTS);
+        Cursor cursor = database().rawQuery(query, null);
+        try
+        {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    private LongSparseArray<Boolean> sqliteReadSkippedTileKeys()
+    {
+        // Keys come back in rowid order, so every put appends
+        LongSparseArray<Boolean> result = new LongSparseArray<Boolean>();
+        Cursor cursor = database().rawQuery("SELECT " + OfflineDatabaseHandler.FIELD_TILES_KEY + " FROM " + OfflineDatabaseHandler.TABLE_TILES + ";", null);
+        while (cursor.moveToNext())
+        {
+            result.put(cursor.getLong(0), Boolean.TRUE);
+        }
+        cursor.close();
+
+        cursor = database().rawQuery(String.format(MAPBOX_LOCALE, "SELECT %s FROM %s WHERE %s >= %d;", OfflineDatabaseHandler.FIELD_FAILED_TILES_KEY,
+                OfflineDatabaseHandler.TABLE_FAILED_TILES, OfflineDatabaseHandler.FIELD_FAILED_TILES_ATTEMPTS, DOWNLOAD_MAXIMUM_TOTAL_ATTEMPTS), null);
+        while (cursor.moveToNext())
+        {
+            result.put(cursor.getLong(0), Boolean.FALSE);
+        }
+        cursor.close();
+        return result;
     }
 
     public boolean sqliteCreateDatabaseUsingMetadata(Hashtable<String, String> metadata, List<String> urlStrings, OfflineMapURLGenerator generator)
@@ -516,7 +1156,11 @@ public class OfflineMapDownloader implements MapboxConstants
             return false;
         }
 
-        // Build a query to populate the database (map metadata and list of map resource urls)
+        // Build a query to populate the database (map metadata and list of map resource urls). Map tiles are only
+        // recorded as ranges, their urls are generated while downloading.
+        metadata.put(OfflineMapURLGenerator.METADATA_TILE_RANGES, generator.toMetadata());
+        metadata.put(METADATA_RESOURCE_COUNT, String.valueOf(urlStrings.size()));
+
         SQLiteDatabase db = database();
         db.beginTransaction();
         for (String key : metadata.keySet())
@@ -527,17 +1171,9 @@ public class OfflineMapDownloader implements MapboxConstants
             db.replace(OfflineDatabaseHandler.TABLE_METADATA, null, cv);
         }
 
+        ContentValues cv = new ContentValues();
         for (String url : urlStrings)
         {
-            ContentValues cv = new ContentValues();
-            cv.put(OfflineDatabaseHandler.FIELD_RESOURCES_URL, url);
-            db.insert(OfflineDatabaseHandler.TABLE_RESOURCES, null, cv);
-        }
-
-        for (int generatedIndex = 0; generatedIndex < generator.getURLCount(); generatedIndex++)
-        {
-            ContentValues cv = new ContentValues();
-            String url = generator.getURLForIndex(context, mapID, imageQuality, generatedIndex);
             cv.put(OfflineDatabaseHandler.FIELD_RESOURCES_URL, url);
             db.insert(OfflineDatabaseHandler.TABLE_RESOURCES, null, cv);
         }
@@ -545,6 +1181,7 @@ public class OfflineMapDownloader implements MapboxConstants
         db.setTransactionSuccessful();
         db.endTransaction();
 
+        this.tileRanges = generator;
         this.totalFilesExpectedToWrite = urlStrings.size() + generator.getURLCount();
         this.totalFilesWritten = 0;
         return true;
@@ -618,6 +1255,13 @@ public class OfflineMapDownloader implements MapboxConstants
         double minLon = this.mapRegion.getCenter().getLongitude() - (this.mapRegion.getSpan().getLongitudeSpan() / 2.0);
         double maxLon = minLon + this.mapRegion.getSpan().getLongitudeSpan();
         final OfflineMapURLGenerator generator = new OfflineMapURLGenerator(minLat, maxLat, minLon, maxLon, minimumZ, maximumZ);
+
+        // Standard MBTiles metadata, so the completed database can be opened as an MBTiles archive
+        metadataDictionary.put("name", this.mapID);
+        metadataDictionary.put("format", MapboxUtils.qualityExtensionForImageQuality(this.imageQuality).startsWith("jpg") ? "jpg" : "png");
+        metadataDictionary.put("minzoom", String.valueOf(this.minimumZ));
+        metadataDictionary.put("maxzoom", String.valueOf(this.maximumZ));
+        metadataDictionary.put("bounds", String.format(MAPBOX_LOCALE, "%f,%f,%f,%f", minLon, minLat, maxLon, maxLat));
         Log.i(TAG, "Number of URLs so far: " + (urls.size() + generator.getURLCount()));
 
         // Determine if we need to add marker icon urls (i.e. parse markers.geojson/features.json), and if so, add them
@@ -714,6 +1358,220 @@ public class OfflineMapDownloader implements MapboxConstants
         }
     }
 
+    /*
+        API: Update an offline map database
+    */
+
+    /**
+     * Update a downloaded offline map: every resource is revalidated against the server and only
+     * the ones that changed are downloaded again.
+     *
+     * @param mapID the map id of a completed offline map database
+     */
+    public void beginUpdatingMapID(String mapID)
+    {
+        beginUpdatingMapID(mapID, null, null, null);
+    }
+
+    /**
+     * Update a downloaded offline map and grow it to include another region or zoom range.
+     * Resources already in the database are revalidated, new tiles are downloaded.
+     *
+     * @param mapID the map id of a completed offline map database
+     * @param mapRegion the region to add, or null to keep the current one
+     * @param minimumZ the minimum zoom level of the region to add
+     * @param maximumZ the maximum zoom level of the region to add
+     */
+    public void beginUpdatingMapID(String mapID, final CoordinateRegion mapRegion, final Integer minimumZ, final Integer maximumZ)
+    {
+        if (state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateAvailable)
+        {
+            Log.w(TAG, "state doesn't equal MBXOfflineMapDownloaderStateAvailable so return.  state = " + state);
+            return;
+        }
+
+        OfflineMapDatabase offlineMap = getOfflineMapDatabaseWithID(mapID);
+        if (offlineMap == null)
+        {
+            Log.w(TAG, String.format(MAPBOX_LOCALE, "MapId '%s' hasn't been downloaded, there is nothing to update.", mapID));
+            return;
+        }
+
+        this.uniqueID = offlineMap.getUniqueID();
+        this.mapID = offlineMap.getMapID();
+        this.imageQuality = offlineMap.getImageQuality();
+        this.updating = true;
+        this.state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning;
+
+        AsyncTask<Void, Void, Void> startUpdate = new AsyncTask<Void, Void, Void>()
+        {
+            @Override
+            protected Void doInBackground(Void... params)
+            {
+                if (!sqlitePrepareUpdate(mapRegion, minimumZ, maximumZ))
+                {
+                    cancelImmediatelyWithError("Map Database can't be updated");
+                    return null;
+                }
+
+                notifyDelegateOfInitialCount();
+                startDownloading();
+                return null;
+            }
+        };
+        startUpdate.execute();
+    }
+
+    /**
+     * Store the tile ranges to update, grown by the given region if any.
+     */
+    private boolean sqlitePrepareUpdate(CoordinateRegion mapRegion, Integer minimumZ, Integer maximumZ)
+    {
+        OfflineMapURLGenerator ranges = OfflineMapURLGenerator.fromMetadata(sqliteMetadataForName(OfflineMapURLGenerator.METADATA_TILE_RANGES));
+        if (ranges == null)
+        {
+            // Downloaded before tile ranges were stored, rebuild them from the tiles
+            ranges = sqliteReadTileRangesFromTiles();
+        }
+
+        if (mapRegion != null && minimumZ != null && maximumZ != null)
+        {
+            double minLat = mapRegion.getCenter().getLatitude() - (mapRegion.getSpan().getLatitudeSpan() / 2.0);
+            double maxLat = minLat + mapRegion.getSpan().getLatitudeSpan();
+            double minLon = mapRegion.getCenter().getLongitude() - (mapRegion.getSpan().getLongitudeSpan() / 2.0);
+            double maxLon = minLon + mapRegion.getSpan().getLongitudeSpan();
+            OfflineMapURLGenerator added = new OfflineMapURLGenerator(minLat, maxLat, minLon, maxLon, minimumZ, maximumZ);
+            ranges = ranges != null ? ranges.union(added) : added;
+        }
+
+        if (ranges == null)
+        {
+            Log.w(TAG, "No tiles to update for " + mapID);
+            return false;
+        }
+
+        SQLiteDatabase db = database();
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + OfflineDatabaseHandler.TABLE_RESOURCES + ";", null);
+        cursor.moveToFirst();
+        int resourceCount = cursor.getInt(0);
+        cursor.close();
+
+        Hashtable<String, String> metadata = new Hashtable<String, String>();
+        metadata.put(OfflineMapURLGenerator.METADATA_TILE_RANGES, ranges.toMetadata());
+        metadata.put(METADATA_RESOURCE_COUNT, String.valueOf(resourceCount));
+        metadata.put("minzoom", String.valueOf(ranges.getMinimumZoom()));
+        metadata.put("maxzoom", String.valueOf(ranges.getMaximumZoom()));
+
+        db.beginTransaction();
+        try
+        {
+            ContentValues cv = new ContentValues();
+            for (String key : metadata.keySet())
+            {
+                cv.put(OfflineDatabaseHandler.FIELD_METADATA_NAME, key);
+                cv.put(OfflineDatabaseHandler.FIELD_METADATA_VALUE, metadata.get(key));
+                db.replace(OfflineDatabaseHandler.TABLE_METADATA, null, cv);
+            }
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+        }
+
+        this.tileRanges = ranges;
+        return true;
+    }
+
+    /**
+     * @return the bounding range of the stored tiles at each zoom level, or null if there are none
+     */
+    private OfflineMapURLGenerator sqliteReadTileRangesFromTiles()
+    {
+        String query = String.format(MAPBOX_LOCALE, "SELECT %s, MIN(%s), MAX(%s), MIN(%s), MAX(%s) FROM %s GROUP BY %s ORDER BY %s;",
+                OfflineDatabaseHandler.FIELD_TILES_ZOOM, OfflineDatabaseHandler.FIELD_TILES_COLUMN, OfflineDatabaseHandler.FIELD_TILES_COLUMN,
+                OfflineDatabaseHandler.FIELD_TILES_ROW, OfflineDatabaseHandler.FIELD_TILES_ROW, OfflineDatabaseHandler.TABLE_TILES,
+                OfflineDatabaseHandler.FIELD_TILES_ZOOM, OfflineDatabaseHandler.FIELD_TILES_ZOOM);
+        StringBuilder ranges = new StringBuilder();
+        int lastZoom = -1;
+        Cursor cursor = database().rawQuery(query, null);
+        while (cursor.moveToNext())
+        {
+            int zoom = cursor.getInt(0);
+            // Rows are stored in TMS order, the ranges are in XYZ order
+            int minY = OfflineDatabaseHandler.getTileRow(zoom, cursor.getInt(4));
+            int maxY = OfflineDatabaseHandler.getTileRow(zoom, cursor.getInt(3));
+            while (lastZoom >= 0 && ++lastZoom < zoom)
+            {
+                // Empty range for a zoom level without tiles
+                ranges.append(';').append(lastZoom).append("/0/-1/0/-1");
+            }
+            if (ranges.length() > 0)
+            {
+                ranges.append(';');
+            }
+            ranges.append(zoom).append('/').append(cursor.getInt(1)).append('/').append(cursor.getInt(2)).append('/').append(minY).append('/').append(maxY);
+            lastZoom = zoom;
+        }
+        cursor.close();
+        return OfflineMapURLGenerator.fromMetadata(ranges.toString());
+    }
+
+    /**
+     * Read the validators and checksum of the stored copy of a resource, so it is only downloaded
+     * again when it changed.
+     */
+    private void sqliteReadStoredState(PendingDownload pending)
+    {
+        Cursor cursor;
+        if (pending.isTile())
+        {
+            cursor = database().rawQuery("SELECT " + OfflineDatabaseHandler.FIELD_TILES_VALIDATORS + ", " + OfflineDatabaseHandler.FIELD_TILES_CRC
+                    + " FROM " + OfflineDatabaseHandler.TABLE_TILES + " WHERE " + OfflineDatabaseHandler.FIELD_TILES_KEY + "=?;",
+                    new String[] { String.valueOf(MapTile.getKey(pending.zoom, pending.x, pending.y)) });
+        }
+        else
+        {
+            cursor = database().rawQuery("SELECT " + OfflineDatabaseHandler.FIELD_RESOURCES_VALIDATORS + " FROM " + OfflineDatabaseHandler.TABLE_RESOURCES
+                    + " WHERE " + OfflineDatabaseHandler.FIELD_RESOURCES_URL + "=? AND " + OfflineDatabaseHandler.FIELD_RESOURCES_STATUS + "='"
+                    + OfflineDatabaseHandler.STATUS_DONE + "';", new String[] { pending.url });
+        }
+        try
+        {
+            if (cursor.moveToFirst())
+            {
+                pending.validators = MapTileValidators.fromString(cursor.getString(0));
+                if (pending.isTile() && !cursor.isNull(1))
+                {
+                    pending.storedCrc = cursor.getLong(1);
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Close the database after an update and reopen the offline map on it.
+     *
+     * @return the updated offline map
+     */
+    private OfflineMapDatabase finishUpdate()
+    {
+        updating = false;
+        closeDatabase();
+
+        OfflineMapDatabase offlineMap = getOfflineMapDatabaseWithID(mapID);
+        if (offlineMap != null)
+        {
+            offlineMap.closeDatabase();
+            offlineMap.initializeDatabase();
+        }
+        return offlineMap;
+    }
+
     /**
      * Private method for Starting the Whole Download Process
      *
@@ -806,16 +1664,45 @@ public class OfflineMapDownloader implements MapboxConstants
         notifyDelegateOfStateChange();
         totalFilesWritten = 0;
         totalFilesExpectedToWrite = 0;
+        totalFilesFailed = 0;
 
-        removeOfflineMapDatabase(completeDatabaseAndInstantiateOfflineMapWithError());
-
+        // Stop the workers first, so that nothing more is queued for the writer
         if (currentDownloadTask != null)
             currentDownloadTask.cancel();
 
-        totalFilesWritten = 0;
-        totalFilesExpectedToWrite = 0;
-        state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateAvailable;
-        notifyDelegateOfStateChange();
+        // An update keeps what was already written, the database stays usable. Otherwise the database is about to be
+        // deleted, so pending writes are dropped.
+        final boolean wasUpdating = updating;
+        stopWriter(wasUpdating);
+
+        // Waiting for the writer to leave the database can take a while, so it isn't done on the calling thread
+        AsyncTask<Void, Void, Void> finishCancel = new AsyncTask<Void, Void, Void>()
+        {
+            @Override
+            protected Void doInBackground(Void... params)
+            {
+                awaitWriter();
+                if (wasUpdating)
+                {
+                    finishUpdate();
+                }
+                else
+                {
+                    removeOfflineMapDatabase(completeDatabaseAndInstantiateOfflineMapWithError());
+                }
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result)
+            {
+                totalFilesWritten = 0;
+                totalFilesExpectedToWrite = 0;
+                state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateAvailable;
+                notifyDelegateOfStateChange();
+            }
+        };
+        finishCancel.execute();
     }
 
     /*
@@ -832,7 +1719,18 @@ public class OfflineMapDownloader implements MapboxConstants
         if (state == MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateSuspended)
         {
             state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning;
-            startDownloading();
+
+            // Waits for the writer of the suspended download and reads the database, so it runs in the background
+            AsyncTask<Void, Void, Void> startResume = new AsyncTask<Void, Void, Void>()
+            {
+                @Override
+                protected Void doInBackground(Void... params)
+                {
+                    startDownloading();
+                    return null;
+                }
+            };
+            startResume.execute();
         }
     }
 
@@ -845,6 +1743,9 @@ public class OfflineMapDownloader implements MapboxConstants
             if (currentDownloadTask != null)
                 currentDownloadTask.cancel();
 
+            // Keep what was already downloaded, resume() waits for it to be written
+            stopWriter(true);
+
             notifyDelegateOfStateChange();
         }
     }
@@ -858,6 +1759,18 @@ public class OfflineMapDownloader implements MapboxConstants
         return mutableOfflineMapDatabases;
     }
 
+    public OfflineMapDatabase getOfflineMapDatabaseWithID(String mapId)
+    {
+        for (OfflineMapDatabase db : getMutableOfflineMapDatabases())
+        {
+            if (db.getMapID().equals(mapId))
+            {
+                return db;
+            }
+        }
+        return null;
+    }
+
     public boolean isMapIdAlreadyAnOfflineMapDatabase(String mapId)
     {
         for (OfflineMapDatabase db : getMutableOfflineMapDatabases())
@@ -906,11 +1819,29 @@ public class OfflineMapDownloader implements MapboxConstants
         if (db == null)
         {
             db = OfflineDatabaseManager.getOfflineDatabaseManager(context).getOfflineDatabaseHandlerForMapId(mapID).getWritableDatabase();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+            {
+                enableWriteAheadLogging(db);
+            }
         }
 
         return db;
     }
 
+    /**
+     * With write-ahead logging a commit appends to the log instead of rewriting the rollback
+     * journal, which makes each batch cheaper to commit. The log is merged back when the database
+     * is closed, so the completed database is still a single file.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(SQLiteDatabase db)
+    {
+        if (!db.enableWriteAheadLogging())
+        {
+            Log.w(TAG, "Write-ahead logging isn't available for " + db.getPath());
+        }
+    }
+
     private void closeDatabase()
     {
         if (db != null)
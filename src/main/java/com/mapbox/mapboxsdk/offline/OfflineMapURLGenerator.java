@@ -1,6 +1,8 @@
 package com.mapbox.mapboxsdk.offline;
 
 import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
 
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.constants.MathConstants;
@@ -8,8 +10,22 @@ import com.mapbox.mapboxsdk.util.MapboxUtils;
 
 import java.util.ArrayList;
 
+/**
+ * The tiles of an offline region, as one (x, y) range per zoom level. The ranges are what gets
+ * persisted for a download, tile URLs are only built when they are about to be fetched.
+ */
 public class OfflineMapURLGenerator {
 
+    private static final String TAG = "OfflineMapURLGenerator";
+
+    /**
+     * Name of the metadata entry holding the tile ranges of a download
+     */
+    public static final String METADATA_TILE_RANGES = "tileRanges";
+
+    private static final String RANGE_SEPARATOR = ";";
+    private static final String FIELD_SEPARATOR = "/";
+
     private static class Bounds {
         public int minX;
         public int maxX;
@@ -21,8 +37,19 @@ public class OfflineMapURLGenerator {
             this.minY = minY;
             this.maxY = maxY;
         }
+
+        public boolean isEmpty() {
+            return maxX < minX || maxY < minY;
+        }
+
+        public int getCount() {
+            return isEmpty() ? 0 : (maxX - minX + 1) * (maxY - minY + 1);
+        }
     }
 
+    // Zoom levels between two regions that are merged have no tiles
+    private static final Bounds EMPTY = new Bounds(0, -1, 0, -1);
+
     private ArrayList<Bounds> bounds;
     private int minimumZoom;
     private int maximumZoom;
@@ -44,10 +71,169 @@ public class OfflineMapURLGenerator {
         }
     }
 
+    private OfflineMapURLGenerator(int minimumZ, ArrayList<Bounds> bounds) {
+        this.bounds = bounds;
+        this.minimumZoom = minimumZ;
+        this.maximumZoom = minimumZ + bounds.size() - 1;
+        this.urlCount = 0;
+        for (Bounds b : bounds) {
+            this.urlCount += b.getCount();
+        }
+    }
+
+    /**
+     * Merge the ranges of two regions. Where both have tiles at a zoom level the range is the
+     * bounding box of both, so it can include tiles that are in neither.
+     *
+     * @param other the ranges to add
+     * @return a generator covering the tiles of both
+     */
+    public OfflineMapURLGenerator union(OfflineMapURLGenerator other) {
+        int minimumZ = Math.min(this.minimumZoom, other.minimumZoom);
+        int maximumZ = Math.max(this.maximumZoom, other.maximumZoom);
+        ArrayList<Bounds> merged = new ArrayList<Bounds>(maximumZ - minimumZ + 1);
+        for (int zoom = minimumZ; zoom <= maximumZ; zoom++) {
+            Bounds a = this.getBounds(zoom);
+            Bounds b = other.getBounds(zoom);
+            if (a.isEmpty()) {
+                merged.add(b);
+            } else if (b.isEmpty()) {
+                merged.add(a);
+            } else {
+                merged.add(new Bounds(Math.min(a.minX, b.minX), Math.max(a.maxX, b.maxX), Math.min(a.minY, b.minY), Math.max(a.maxY, b.maxY)));
+            }
+        }
+        return new OfflineMapURLGenerator(minimumZ, merged);
+    }
+
+    private Bounds getBounds(int zoom) {
+        if (zoom < this.minimumZoom || zoom > this.maximumZoom) {
+            return EMPTY;
+        }
+        return this.bounds.get(zoom - this.minimumZoom);
+    }
+
+    public int getMinimumZoom() {
+        return minimumZoom;
+    }
+
+    public int getMaximumZoom() {
+        return maximumZoom;
+    }
+
+    /**
+     * Read the ranges written by {@link #toMetadata()}.
+     *
+     * @param value the metadata value
+     * @return the generator, or null if the value can't be parsed
+     */
+    public static OfflineMapURLGenerator fromMetadata(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return null;
+        }
+        try {
+            ArrayList<Bounds> bounds = new ArrayList<Bounds>();
+            int minimumZ = -1;
+            for (String range : value.split(RANGE_SEPARATOR)) {
+                String[] fields = range.split(FIELD_SEPARATOR);
+                int zoom = Integer.parseInt(fields[0]);
+                if (minimumZ < 0) {
+                    minimumZ = zoom;
+                } else if (zoom != minimumZ + bounds.size()) {
+                    return null;
+                }
+                bounds.add(new Bounds(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                        Integer.parseInt(fields[3]), Integer.parseInt(fields[4])));
+            }
+            return new OfflineMapURLGenerator(minimumZ, bounds);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Invalid tile ranges: " + value, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the ranges as a metadata value, one "z/minX/maxX/minY/maxY" entry per zoom level
+     */
+    public String toMetadata() {
+        StringBuilder sb = new StringBuilder();
+        for (int zoom = this.minimumZoom; zoom <= this.maximumZoom; zoom++) {
+            Bounds b = this.bounds.get(zoom - this.minimumZoom);
+            if (sb.length() > 0) {
+                sb.append(RANGE_SEPARATOR);
+            }
+            sb.append(zoom).append(FIELD_SEPARATOR).append(b.minX).append(FIELD_SEPARATOR).append(b.maxX)
+                    .append(FIELD_SEPARATOR).append(b.minY).append(FIELD_SEPARATOR).append(b.maxY);
+        }
+        return sb.toString();
+    }
+
     public int getURLCount() {
         return urlCount;
     }
 
+    /**
+     * @return a cursor over the tiles, by zoom level, then x, then y
+     */
+    public TileCursor tiles() {
+        return new TileCursor();
+    }
+
+    /**
+     * Walks the tiles of the ranges without allocating per tile.
+     */
+    public class TileCursor {
+        private int zoom = minimumZoom;
+        private int x;
+        private int y;
+        private boolean started = false;
+
+        /**
+         * Move to the next tile.
+         *
+         * @return false when there are no more tiles
+         */
+        public boolean moveToNext() {
+            while (zoom <= maximumZoom) {
+                Bounds b = bounds.get(zoom - minimumZoom);
+                if (!started) {
+                    started = true;
+                    x = b.minX;
+                    y = b.minY;
+                } else if (y < b.maxY) {
+                    y++;
+                } else if (x < b.maxX) {
+                    x++;
+                    y = b.minY;
+                } else {
+                    zoom++;
+                    started = false;
+                    continue;
+                }
+                if (!b.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int getZoom() {
+            return zoom;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public String getURL(Context context, String mapID, MapboxConstants.RasterImageQuality imageQuality) {
+            return MapboxUtils.getMapTileURL(context, mapID, zoom, x, y, imageQuality);
+        }
+    }
+
     public String getURLForIndex(Context context, String mapID, MapboxConstants.RasterImageQuality imageQuality, int index) {
         if (index >= getURLCount()) {
             return null;
@@ -59,7 +245,7 @@ public class OfflineMapURLGenerator {
         for (zoom = this.minimumZoom; zoom < this.maximumZoom; zoom++) {
             int boundsIndex = zoom - this.minimumZoom;
             Bounds bounds = this.bounds.get(boundsIndex);
-            int urlsInThisLevel = (bounds.maxX - bounds.minX + 1) * (bounds.maxY - bounds.minY + 1);
+            int urlsInThisLevel = bounds.getCount();
             if (index < urlsInThisLevel) {
                 break;
             } else {
@@ -7,6 +7,7 @@ import android.os.AsyncTask;
 import android.os.Environment;
 import android.util.Log;
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
+import com.mapbox.mapboxsdk.tileprovider.BitmapCacheService;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
 import com.mapbox.mapboxsdk.util.MapboxUtils;
 import com.mapbox.mapboxsdk.util.NetworkUtils;
@@ -17,6 +18,7 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import uk.co.senab.bitmapcache.BitmapLruCache;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -32,8 +34,11 @@ public class Icon implements MapboxConstants {
     private Drawable drawable;
     private Context context;
 
-    protected static BitmapLruCache sIconCache;
-    private static final String DISK_CACHE_SUBDIR = "mapbox_icon_cache";
+    // Icons share the tile cache, in a disk cache namespace of their own
+    private static final String CACHE_KEY_PREFIX = "icons";
+    // 1 MB (a marker image is around 1kb)
+    private static final long DISK_CACHE_QUOTA = 1024 * 1024;
+    private static boolean sDiskCacheAcquired = false;
 
     // Well, we only want to download the same URL once. If we request the same url rapidly
     // We place it in this queue..
@@ -55,30 +60,42 @@ public class Icon implements MapboxConstants {
     }
 
     protected BitmapLruCache getCache() {
-        return getCache(null);
+        return getCache(context);
     }
 
-    // TODO: This is common code from MapTileCache, ideally this would be extracted
-    // and used by both classes.
     protected BitmapLruCache getCache(Context context) {
-        if (sIconCache == null && context != null) {
-            File cacheDir = getDiskCacheDir(context, DISK_CACHE_SUBDIR);
-            if (!cacheDir.exists()) {
-                if (cacheDir.mkdirs()) {
-                    if (UtilConstants.DEBUGMODE) {
-                        Log.d(TAG, "creating cacheDir " + cacheDir);
-                    }
-                } else {
-                    Log.e(TAG, "can't create cacheDir " + cacheDir);
-                }
+        final BitmapCacheService service = BitmapCacheService.getInstance(context);
+        synchronized (Icon.class) {
+            if (!sDiskCacheAcquired) {
+                // Icons are cached for the lifetime of the process
+                service.setDiskCacheQuota(CACHE_KEY_PREFIX, DISK_CACHE_QUOTA);
+                service.acquireDiskCache();
+                sDiskCacheAcquired = true;
             }
-            sIconCache = (new BitmapLruCache.Builder(context)).setMemoryCacheEnabled(true)
-                    .setMemoryCacheMaxSize(
-                            BitmapUtils.calculateMemoryCacheSize(context)).setDiskCacheEnabled(true)
-                            // 1 MB (a marker image is around 1kb)
-                    .setDiskCacheMaxSize(1024 * 1024).build();
         }
-        return sIconCache;
+        return service.getCache();
+    }
+
+    /**
+     * Icons share the memory cache of the tiles, whose evicted bitmaps are reused to decode new
+     * tiles. Cached icons are marked as being used for as long as this icon holds them, so their
+     * bitmap is never handed over while a marker draws it.
+     */
+    private void setDrawable(Drawable aDrawable) {
+        if (aDrawable == drawable) {
+            return;
+        }
+        if (aDrawable instanceof CacheableBitmapDrawable) {
+            ((CacheableBitmapDrawable) aDrawable).setBeingUsed(true);
+        }
+        if (drawable instanceof CacheableBitmapDrawable) {
+            ((CacheableBitmapDrawable) drawable).setBeingUsed(false);
+        }
+        drawable = aDrawable;
+    }
+
+    private static String getCacheKey(String url) {
+        return CACHE_KEY_PREFIX + "/" + url;
     }
 
     /**
@@ -133,11 +150,11 @@ public class Icon implements MapboxConstants {
     }
 
     private void downloadBitmap(Context context, String url) {
-        CacheableBitmapDrawable bitmap = getCache(context).getFromMemoryCache(url);
+        CacheableBitmapDrawable bitmap = getCache(context).getFromMemoryCache(getCacheKey(url));
 
         // Cache hit! We're done..
         if (bitmap != null) {
-            drawable = bitmap;
+            setDrawable(bitmap);
             if (marker != null) {
                 marker.setMarker(drawable, true);
             }
@@ -171,7 +188,7 @@ public class Icon implements MapboxConstants {
             if (list == null) {
                 // Note, there is an extremely unlikely chance we are immediately kicked
                 // out of the cache...
-                drawable = sIconCache.get(url);
+                setDrawable(getCache().get(getCacheKey(url)));
                 if (marker != null) {
                     marker.setMarker(drawable, true);
                 }
@@ -183,7 +200,7 @@ public class Icon implements MapboxConstants {
                 // The downloader thread just released the lock, the list is empty.
                 // The cache has our icon..
                 if (list.isEmpty()) {
-                    drawable = sIconCache.get(url);
+                    setDrawable(getCache().get(getCacheKey(url)));
                     if (marker != null) {
                         marker.setMarker(drawable, true);
                     }
@@ -204,30 +221,44 @@ public class Icon implements MapboxConstants {
         @Override
         protected CacheableBitmapDrawable doInBackground(String... src) {
             this.url = src[0];
-            CacheableBitmapDrawable result = getCache().getFromDiskCache(this.url, null);
+            final String key = getCacheKey(this.url);
+            CacheableBitmapDrawable result = getCache().getFromDiskCache(key, null);
             if (result == null) {
                 try {
                     if (UtilConstants.DEBUGMODE) {
                         Log.d(TAG, "Maki url to load = '" + this.url + "'");
                     }
-                    HttpURLConnection connection = NetworkUtils.getHttpURLConnection(new URL(url));
-                    // Note, sIconCache cannot be null..
+                    URL requestUrl = new URL(url);
+                    Semaphore permit = NetworkUtils.acquireHostPermit(requestUrl);
+                    try {
+                        HttpURLConnection connection = NetworkUtils.getHttpURLConnection(requestUrl);
 
-                    BitmapFactory.Options opts = BitmapUtils.getBitmapOptions(context.getResources().getDisplayMetrics());
-                    result = sIconCache.put(this.url, connection.getInputStream(), opts);
+                        BitmapFactory.Options opts = BitmapUtils.getBitmapOptions(context.getResources().getDisplayMetrics());
+                        result = getCache().put(key, connection.getInputStream(), opts);
+                    } finally {
+                        permit.release();
+                    }
                 } catch (IOException e) {
                     Log.e(TAG, "doInBackground: Unable to fetch icon from: " + this.url);
                 }
             }
+            if (result != null) {
+                // Held until the icons waiting for it hold it themselves
+                result.setBeingUsed(true);
+            }
             return result;
         }
 
         @Override
         protected void onPostExecute(CacheableBitmapDrawable bitmap) {
-            if (bitmap != null && marker != null) {
+            if (bitmap == null) {
+                return;
+            }
+            if (marker != null) {
                 ArrayList<Icon> list = Icon.downloadQueue.get(this.url);
                 synchronized (list) {
                     for (Icon icon : list) {
+                        icon.setDrawable(bitmap);
                         if (icon.marker != null) {
                             icon.marker.setMarker(bitmap, true);
                         }
@@ -238,6 +269,7 @@ public class Icon implements MapboxConstants {
                     Icon.downloadQueue.remove(this.url);
                 }
             }
+            bitmap.setBeingUsed(false);
         }
     }
 }
@@ -1,63 +1,172 @@
 package com.mapbox.mapboxsdk.overlay;
 
 import android.content.Context;
-import android.graphics.drawable.BitmapDrawable;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
+import android.os.Process;
+import android.util.Log;
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
-import com.mapbox.mapboxsdk.exceptions.OfflineDatabaseException;
 import com.mapbox.mapboxsdk.offline.OfflineMapDatabase;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBase;
-import com.mapbox.mapboxsdk.util.MapboxUtils;
-import java.io.ByteArrayInputStream;
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.modules.ConfigurablePriorityThreadFactory;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileRequestQueue;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
+/**
+ * Draws the tiles of an offline map database. Tiles are read and decoded on a small pool of
+ * background threads into the shared memory cache, and the map is redrawn through the tile
+ * request complete handler once they're ready, so the draw loop never touches SQLite.
+ */
 public class OfflineMapTileProvider extends MapTileLayerBase implements MapboxConstants {
 
     private static final String TAG = "OfflineMapTileProvider";
 
+    private static final int READER_THREAD_COUNT = 2;
+    private static final int PENDING_QUEUE_SIZE = 40;
+
     private OfflineMapDatabase offlineMapDatabase = null;
+    // JPEG tiles have no alpha channel, so they're decoded as RGB_565
+    private final boolean mOpaque;
+
+    private final ExecutorService mReaders;
+    private final Object mQueueLockObject = new Object();
+    private final MapTileRequestQueue mPending = new MapTileRequestQueue(PENDING_QUEUE_SIZE);
+    // Tiles that are pending or being read, so a tile is only queued once
+    private final HashSet<MapTile> mRequested = new HashSet<MapTile>();
 
     public OfflineMapTileProvider(Context context, OfflineMapDatabase offlineMapDatabase) {
         super(context, null);
         this.offlineMapDatabase = offlineMapDatabase;
+        mOpaque = isJPEG(offlineMapDatabase.getImageQuality());
+        mReaders = Executors.newFixedThreadPool(READER_THREAD_COUNT,
+                new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, TAG));
     }
 
     @Override
     public Drawable getMapTile(MapTile pTile, boolean allowRemote) {
-        try {
-            CacheableBitmapDrawable cacheable = mTileCache.getMapTile(pTile);
-            if (cacheable != null) {
-                return cacheable;
+        CacheableBitmapDrawable cacheable = mTileCache.getMapTileFromMemory(pTile);
+        if (cacheable != null && cacheable.isBitmapValid()) {
+            // Released by the tiles overlay once drawn
+            cacheable.setBeingUsed(true);
+            return cacheable;
+        }
+
+        final MapTileRequestState dropped;
+        synchronized (mQueueLockObject) {
+            if (!mRequested.add(pTile)) {
+                return null;
+            }
+            dropped = mPending.put(new MapTileRequestState(pTile, null, this));
+            if (dropped != null) {
+                mRequested.remove(dropped.getMapTile());
             }
+        }
+        if (dropped != null) {
+            mapTileRequestCancelled(dropped);
+        }
 
-            // Build URL to match url in database
-            String url = MapboxUtils.getMapTileURL(context, offlineMapDatabase.getMapID(), pTile.getZ(), pTile.getX(), pTile.getY(), offlineMapDatabase.getImageQuality());
-            byte[] data = offlineMapDatabase.dataForURL(url);
+        try {
+            mReaders.execute(mTileReader);
+        } catch (final RejectedExecutionException e) {
+            Log.w(TAG, "RejectedExecutionException", e);
+        }
+        // Nothing to draw until the tile has been read
+        return null;
+    }
 
-            if (data == null || data.length == 0) {
-                // No data found, just return null so that default gray screen is displayed.
-                return null;
+    @Override
+    public void setViewport(final int pZoomLevel, final float pCenterX, final float pCenterY) {
+        final List<MapTileRequestState> stale;
+        synchronized (mQueueLockObject) {
+            stale = mPending.setViewport(pZoomLevel, pCenterX, pCenterY);
+            for (int i = 0; i < stale.size(); i++) {
+                mRequested.remove(stale.get(i).getMapTile());
             }
+        }
+        for (int i = 0; i < stale.size(); i++) {
+            mapTileRequestCancelled(stale.get(i));
+        }
+    }
 
-            // Return the tile image
-            BitmapDrawable drawable = new BitmapDrawable(context.getResources(), new ByteArrayInputStream(data));
-            return mTileCache.putTile(pTile, drawable);
-        } catch (OfflineDatabaseException e) {
-            e.printStackTrace();
+    /**
+     * Read and decode a tile, reusing a bitmap evicted from the memory cache when possible.
+     *
+     * @return the cached tile, or null if the database doesn't have it
+     */
+    private Drawable readTile(final MapTile pTile) {
+        byte[] data = offlineMapDatabase.dataForTile(pTile.getZ(), pTile.getX(), pTile.getY());
+        if (data == null || data.length == 0) {
+            // No data found, nothing is drawn so that default gray screen is displayed.
+            return null;
         }
+        Bitmap bitmap = mTileCache.decodeBitmap(data, mOpaque);
+        if (bitmap == null) {
+            return null;
+        }
+        return mTileCache.putTileInMemoryCache(pTile, bitmap);
+    }
 
-        return null;
+    private static boolean isJPEG(final RasterImageQuality imageQuality) {
+        return imageQuality == RasterImageQuality.MBXRasterImageQualityJPEG70
+                || imageQuality == RasterImageQuality.MBXRasterImageQualityJPEG80
+                || imageQuality == RasterImageQuality.MBXRasterImageQualityJPEG90;
     }
 
+    private final Runnable mTileReader = new Runnable() {
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            MapTileRequestState state;
+            while (true) {
+                synchronized (mQueueLockObject) {
+                    // get the tile closest to the center of the viewport
+                    state = mPending.poll();
+                }
+                if (state == null) {
+                    return;
+                }
+
+                Drawable result = null;
+                try {
+                    result = readTile(state.getMapTile());
+                } catch (final Throwable e) {
+                    Log.e(TAG, "Error reading tile: " + state.getMapTile(), e);
+                }
+
+                synchronized (mQueueLockObject) {
+                    mRequested.remove(state.getMapTile());
+                }
+                if (result != null) {
+                    mapTileRequestCompleted(state, result);
+                } else {
+                    mapTileRequestFailed(state);
+                }
+            }
+        }
+    };
+
     @Override
     public void detach() {
+        synchronized (mQueueLockObject) {
+            mPending.clear();
+            mRequested.clear();
+        }
+        mReaders.shutdownNow();
         if (getTileSource() != null) {
             getTileSource().detach();
         }
         if (offlineMapDatabase != null) {
             offlineMapDatabase.closeDatabase();
         }
+        mTileCache.detach();
     }
 }
@@ -0,0 +1,170 @@
+package com.mapbox.mapboxsdk.overlay;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBase;
+import com.mapbox.mapboxsdk.util.TileLooper;
+import java.util.Arrays;
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+
+/**
+ * Requests the tiles the map is about to show: a ring of tiles around the viewport, and the
+ * viewports along the path of the fling or pan animation in progress. They are queued like any
+ * other tile, the request queues serve the tiles closest to the center of the screen first and
+ * drop the farthest ones when full, so prefetched tiles never get ahead of the visible ones.
+ *
+ * Requests are limited by a budget of tiles per second, and a tile isn't requested again for a
+ * while after it was, whether it was loaded or dropped.
+ */
+final class TilePrefetcher extends TileLooper {
+
+    static final int DEFAULT_MARGIN_TILES = 1;
+    static final int DEFAULT_BUDGET_TILES_PER_SECOND = 16;
+
+    /**
+     * Minimum time between two prefetch passes, the viewport moves little in between
+     */
+    private static final long MIN_INTERVAL_MS = 100;
+
+    /**
+     * How long a requested tile isn't requested again
+     */
+    private static final long REQUEST_TTL_MS = 3000;
+
+    /**
+     * Size of the table of recently requested tiles, in bits
+     */
+    private static final int REQUESTED_SLOT_BITS = 9;
+    private static final int REQUESTED_SLOTS = 1 << REQUESTED_SLOT_BITS;
+
+    /**
+     * Maximum number of viewports looped over along the path
+     */
+    private static final int MAX_PATH_STEPS = 8;
+
+    private final MapTileLayerBase mTileProvider;
+    private final Rect mRect = new Rect();
+
+    private int mMarginTiles = DEFAULT_MARGIN_TILES;
+    private int mBudget = DEFAULT_BUDGET_TILES_PER_SECOND;
+    private float mTokens = DEFAULT_BUDGET_TILES_PER_SECOND;
+    private long mLastPass = 0;
+    private long mNow;
+    private int mRequestCount = 0;
+
+    private String mCacheKey;
+
+    // Recently requested tiles and when, direct mapped by key so that the draw path doesn't
+    // allocate. A tile whose slot was taken by another one may be requested again early, the
+    // memory cache check catches it if it was loaded.
+    private final long[] mRequestedKeys = new long[REQUESTED_SLOTS];
+    private final long[] mRequestedTimes = new long[REQUESTED_SLOTS];
+
+    TilePrefetcher(final MapTileLayerBase tileProvider) {
+        mTileProvider = tileProvider;
+    }
+
+    void setMarginTiles(final int tiles) {
+        mMarginTiles = Math.max(0, tiles);
+    }
+
+    int getMarginTiles() {
+        return mMarginTiles;
+    }
+
+    void setBudget(final int tilesPerSecond) {
+        mBudget = Math.max(0, tilesPerSecond);
+        mTokens = Math.min(mTokens, mBudget);
+    }
+
+    int getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * @return the number of tiles requested ahead of time so far
+     */
+    int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * Request the tiles around the viewport and along the path it is moving on.
+     *
+     * @param pViewPort the visible area, in pixels at the floored zoom level as for the tile loop
+     * @param pDeltaX how far the viewport still moves, in the same pixels
+     * @param pDeltaY how far the viewport still moves, in the same pixels
+     */
+    void prefetch(final Canvas pCanvas, final String pCacheKey, final float pZoomLevel,
+            final int pTileSizePx, final Rect pViewPort, final float pDeltaX,
+            final float pDeltaY) {
+        mNow = SystemClock.elapsedRealtime();
+        if (mBudget == 0 || mNow - mLastPass < MIN_INTERVAL_MS) {
+            return;
+        }
+        mTokens = Math.min(mBudget, mTokens + (mNow - mLastPass) * mBudget / 1000f);
+        mLastPass = mNow;
+        if (!TextUtils.equals(pCacheKey, mCacheKey)) {
+            Arrays.fill(mRequestedTimes, 0);
+            mCacheKey = pCacheKey;
+        }
+
+        if (mMarginTiles > 0) {
+            final int margin = mMarginTiles * pTileSizePx;
+            mRect.set(pViewPort);
+            mRect.inset(-margin, -margin);
+            loop(pCanvas, pCacheKey, pZoomLevel, pTileSizePx, mRect, null);
+        }
+
+        // Where the map stops matters most, it is shown the longest, so walk the path back
+        final float distance = Math.max(Math.abs(pDeltaX), Math.abs(pDeltaY));
+        if (distance < pTileSizePx) {
+            return;
+        }
+        final int stepSize = Math.max(pTileSizePx,
+                Math.min(pViewPort.width(), pViewPort.height()) / 2);
+        final int steps = Math.min(MAX_PATH_STEPS, (int) Math.ceil(distance / stepSize));
+        for (int i = steps; i > 0 && mTokens >= 1; i--) {
+            mRect.set(pViewPort);
+            mRect.offset(Math.round(pDeltaX * i / steps), Math.round(pDeltaY * i / steps));
+            loop(pCanvas, pCacheKey, pZoomLevel, pTileSizePx, mRect, null);
+        }
+    }
+
+    @Override
+    public void initializeLoop(final float pZoomLevel, final int pTileSizePx) {
+    }
+
+    @Override
+    public void handleTile(final Canvas pCanvas, final String pCacheKey, final int pTileSizePx,
+            final MapTile pTile, final int pX, final int pY, final Rect pClipRect) {
+        if (mTokens < 1) {
+            return;
+        }
+        final long key = MapTile.getKey(pTile.getZ(), pTile.getX(), pTile.getY());
+        // Fibonacci hashing, neighbouring tiles land in different slots
+        final int slot = ((int) (key ^ (key >>> 32)) * 0x9E3779B9) >>> (32 - REQUESTED_SLOT_BITS);
+        if (mRequestedKeys[slot] == key && mRequestedTimes[slot] != 0
+                && mNow - mRequestedTimes[slot] < REQUEST_TTL_MS) {
+            return;
+        }
+        final CacheableBitmapDrawable cached = mTileProvider.getMapTileFromMemory(pTile);
+        if (cached != null && cached.isBitmapValid()) {
+            return;
+        }
+
+        mTokens--;
+        mRequestCount++;
+        mRequestedKeys[slot] = key;
+        mRequestedTimes[slot] = mNow;
+        final Drawable drawable = mTileProvider.getMapTile(pTile, true);
+        if (drawable instanceof CacheableBitmapDrawable) {
+            // Marked as being used by the provider, released after the loop
+            mBeingUsedDrawables.add((CacheableBitmapDrawable) drawable);
+        }
+    }
+}
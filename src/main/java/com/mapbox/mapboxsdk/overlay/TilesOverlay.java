@@ -6,14 +6,19 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Point;
+import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.Shader;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBase;
+import com.mapbox.mapboxsdk.tileprovider.modules.ConfigurablePriorityThreadFactory;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
 import com.mapbox.mapboxsdk.util.GeometryMath;
 import com.mapbox.mapboxsdk.util.TileLooper;
 import com.mapbox.mapboxsdk.util.constants.UtilConstants;
@@ -22,6 +27,9 @@ import com.mapbox.mapboxsdk.views.safecanvas.ISafeCanvas;
 import com.mapbox.mapboxsdk.views.safecanvas.SafePaint;
 import com.mapbox.mapboxsdk.views.util.Projection;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
@@ -37,6 +45,20 @@ public class TilesOverlay extends SafeDrawOverlay {
     public static final int MENU_OFFLINE = getSafeMenuId();
     private int mNuberOfTiles;
 
+    /**
+     * How many zoom levels up to look for a cached tile to stand in for a missing one
+     */
+    private static final int MAX_PARENT_TILE_ZOOM_DIFF = 4;
+
+    /**
+     * Minimum time between two requests of the tiles a zoom animation ends on
+     */
+    private static final long TARGET_REQUEST_INTERVAL_MS = 100;
+
+    // Scales the cached tiles to the new zoom level, off the UI thread
+    private static final ExecutorService sRescaleExecutor = Executors.newSingleThreadExecutor(
+            new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, "tile-rescale"));
+
     /**
      * Current tile source
      */
@@ -50,12 +72,33 @@ public class TilesOverlay extends SafeDrawOverlay {
     private final Rect mTileRect = new Rect();
     private final Rect mViewPort = new Rect();
     private final Rect mClipRect = new Rect();
+    private final Rect mParentTileRect = new Rect();
+    private final Paint mParentTilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
     float mCurrentZoomFactor = 1;
     private float mRescaleZoomDiffMax = 4;
     private boolean isAnimating = false;
     private boolean mOptionsMenuEnabled = true;
 
     private int mWorldSize_2;
+    private int mMaxZoom;
+
+    // Loads the tiles around the viewport and where the map is headed
+    private final TilePrefetcher mPrefetcher;
+    private final PointF mPendingScroll = new PointF();
+    private boolean mPrefetch = false;
+
+    // The tiles the zoom animation in progress ends on, loaded and drawn while zooming
+    private final Rect mTargetViewPort = new Rect();
+    private final PointF mTargetScroll = new PointF();
+    private int mTargetZoom = -1;
+    private double mTargetTileSize;
+    private boolean mRequestTargetTiles = false;
+    private long mLastTargetRequest = 0;
+
+    // Start up metrics: time from the first frame to the first frame without missing tiles
+    private long mFirstFrameTime = 0;
+    private long mFirstFullFrameMillis = -1;
+    private int mMissingTiles;
 
     private int mLoadingBackgroundColor = Color.rgb(216, 208, 208);
     private int mLoadingLineColor = Color.rgb(200, 192, 192);
@@ -67,6 +110,7 @@ public class TilesOverlay extends SafeDrawOverlay {
             throw new IllegalArgumentException("You must pass a valid tile provider to the tiles overlay.");
         }
         this.mTileProvider = aTileProvider;
+        this.mPrefetcher = new TilePrefetcher(aTileProvider);
         if (UtilConstants.DEBUGMODE) {
             getDebugPaint();
         }
@@ -139,6 +183,19 @@ public class TilesOverlay extends SafeDrawOverlay {
         mWorldSize_2 = pj.getHalfWorldSize();
         GeometryMath.viewPortRectForTileDrawing(pj, mViewPort);
 
+        // Nothing is prefetched while zooming, the tiles of the intermediate levels are only
+        // shown for a few frames
+        mPrefetch = !isAnimating || mapView.getScale() == 1f;
+        if (mPrefetch && mapView.getPendingScroll(mPendingScroll)) {
+            // Scroll distances are at the current zoom level, the viewport at the floored one
+            final float scale = (float) Projection.mapSize((float) Math.floor(zoomLevel))
+                    / Projection.mapSize(mapView.getZoomLevel(false));
+            mPendingScroll.set(mPendingScroll.x * scale, mPendingScroll.y * scale);
+        } else {
+            mPendingScroll.set(0, 0);
+        }
+        computeTargetViewPort(mapView, pj, zoomLevel);
+
         int tileSize = Projection.getTileSize();
         // Draw the tiles!
         if (tileSize > 0) {
@@ -160,6 +217,41 @@ public class TilesOverlay extends SafeDrawOverlay {
         }
     }
 
+    /**
+     * Find the tiles the zoom animation in progress ends on, if it ends on another zoom level
+     * than the one drawn.
+     */
+    private void computeTargetViewPort(final MapView mapView, final Projection pj,
+                                       final float zoomLevel) {
+        mTargetZoom = -1;
+        if (!isAnimating) {
+            return;
+        }
+        final float targetZoom = mapView.getController().getAnimationTarget(mTargetScroll);
+        if (targetZoom < 0) {
+            return;
+        }
+        final int maxZoom = (int) mTileProvider.getMaximumZoomLevel();
+        final int tileZoom = Math.min((int) Math.floor(targetZoom), maxZoom);
+        if (tileZoom == Math.min((int) Math.floor(zoomLevel), maxZoom)) {
+            return;
+        }
+        mTargetZoom = tileZoom;
+
+        // The target scroll point is in pixels at the target zoom level, tiles at the floored one
+        final float scale = (float) Projection.mapSize(tileZoom) / Projection.mapSize(targetZoom);
+        final int worldSize_2 = Projection.mapSize(tileZoom) >> 1;
+        final Rect screenRect = pj.getScreenRect();
+        final float width_2 = screenRect.width() / 2f;
+        final float height_2 = screenRect.height() / 2f;
+        mTargetViewPort.set((int) ((mTargetScroll.x - width_2) * scale) + worldSize_2,
+                (int) ((mTargetScroll.y - height_2) * scale) + worldSize_2,
+                (int) ((mTargetScroll.x + width_2) * scale) + worldSize_2,
+                (int) ((mTargetScroll.y + height_2) * scale) + worldSize_2);
+        // Size of the target tiles on the canvas, which stays at the zoom level drawn
+        mTargetTileSize = (double) Projection.mapSize(zoomLevel) / (1 << tileZoom);
+    }
+
     /**
      * Draw a loading tile image to make in-progress tiles easier to deal with.
      *
@@ -185,7 +277,46 @@ public class TilesOverlay extends SafeDrawOverlay {
     public void drawTiles(final Canvas c, final float zoomLevel, final int tileSizePx,
                           final Rect viewPort, final Rect pClipRect) {
 
+        // Let the providers load the tiles closest to the center of the screen first. Above the
+        // maximum zoom level the tiles come from the deepest level the source has.
+        final int roundedZoom = (int) Math.floor(zoomLevel);
+        mMaxZoom = (int) mTileProvider.getMaximumZoomLevel();
+        final int requestZoom = Math.min(roundedZoom, mMaxZoom);
+        final float requestScale = 1f / (1 << Math.max(0, roundedZoom - requestZoom));
+        final boolean zooming = mTargetZoom >= 0;
+        if (zooming) {
+            // While zooming, load the tiles the animation ends on, closest to its center first
+            mTileProvider.setViewport(mTargetZoom, mTargetViewPort.exactCenterX() / tileSizePx,
+                    mTargetViewPort.exactCenterY() / tileSizePx);
+            final long now = SystemClock.elapsedRealtime();
+            mRequestTargetTiles = now - mLastTargetRequest >= TARGET_REQUEST_INTERVAL_MS;
+            if (mRequestTargetTiles) {
+                mLastTargetRequest = now;
+            }
+        } else {
+            mTileProvider.setViewport(requestZoom,
+                    viewPort.exactCenterX() / tileSizePx * requestScale,
+                    viewPort.exactCenterY() / tileSizePx * requestScale);
+        }
+
+        // The target tiles that landed are drawn under the current ones when zooming out, as
+        // they're coarser, and over them when zooming in
+        if (zooming && mTargetZoom < requestZoom) {
+            mTargetTileLooper.loop(c, mTileProvider.getCacheKey(), mTargetZoom, tileSizePx,
+                    mTargetViewPort, pClipRect);
+        }
+        mMissingTiles = 0;
         mNuberOfTiles = mTileLooper.loop(c, mTileProvider.getCacheKey(), zoomLevel, tileSizePx, viewPort, pClipRect);
+        recordFullFrame();
+        if (zooming && mTargetZoom > requestZoom) {
+            mTargetTileLooper.loop(c, mTileProvider.getCacheKey(), mTargetZoom, tileSizePx,
+                    mTargetViewPort, pClipRect);
+        }
+
+        if (mPrefetch && roundedZoom <= mMaxZoom) {
+            mPrefetcher.prefetch(c, mTileProvider.getCacheKey(), zoomLevel, tileSizePx, viewPort,
+                    mPendingScroll.x, mPendingScroll.y);
+        }
 
         // draw a cross at center in debug mode
         if (UtilConstants.DEBUGMODE) {
@@ -224,7 +355,10 @@ public class TilesOverlay extends SafeDrawOverlay {
                 return;
             }
             pTile.setTileRect(mTileRect);
-            Drawable drawable = mTileProvider.getMapTile(pTile, !isAnimating);
+            Drawable drawable = null;
+            if (pTile.getZ() <= mMaxZoom) {
+                drawable = mTileProvider.getMapTile(pTile, !isAnimating);
+            }
             boolean isReusable = drawable instanceof CacheableBitmapDrawable;
 
             if (drawable != null) {
@@ -234,6 +368,8 @@ public class TilesOverlay extends SafeDrawOverlay {
                 drawable.setBounds(mTileRect);
                 drawable.draw(pCanvas);
             } else {
+                mMissingTiles++;
+                drawParentTile(pCanvas, pCacheKey, pTile, mMaxZoom);
                 mTileProvider.memoryCacheNeedsMoreMemory(mNuberOfTiles);
                 //Log.w(TAG, "tile should have been drawn to canvas, but it was null.  tile = '" + pTile + "'");
             }
@@ -244,8 +380,137 @@ public class TilesOverlay extends SafeDrawOverlay {
                 canvas.drawRect(mTileRect, getDebugPaint());
             }
         }
+
+        /**
+         * Draw the matching part of the closest ancestor found in the memory cache in place of a
+         * tile that isn't loaded yet. Above the maximum zoom level of the source the ancestor at
+         * that level is requested, so deeper zooms keep showing upscaled tiles.
+         *
+         * @return true if an ancestor was drawn
+         */
+        private boolean drawParentTile(final Canvas pCanvas, final String pCacheKey,
+                                       final MapTile pTile, final int pMaxZoom) {
+            final int zoom = pTile.getZ();
+            final int startZoom = Math.min(zoom - 1, pMaxZoom);
+            final int endZoom = Math.max((int) mTileProvider.getMinimumZoomLevel(),
+                    startZoom - MAX_PARENT_TILE_ZOOM_DIFF);
+            for (int parentZoom = startZoom; parentZoom >= endZoom; parentZoom--) {
+                final int diff = zoom - parentZoom;
+                final MapTile parentTile = obtainTile(pCacheKey, parentZoom,
+                        pTile.getX() >> diff, pTile.getY() >> diff);
+                final Drawable drawable = (parentZoom == pMaxZoom && zoom > pMaxZoom)
+                        ? mTileProvider.getMapTile(parentTile, !isAnimating)
+                        : mTileProvider.getMapTileFromMemory(parentTile);
+                if (!(drawable instanceof CacheableBitmapDrawable)
+                        || !((CacheableBitmapDrawable) drawable).isBitmapValid()) {
+                    continue;
+                }
+
+                final CacheableBitmapDrawable parentDrawable = (CacheableBitmapDrawable) drawable;
+                final Bitmap bitmap = parentDrawable.getBitmap();
+                final int size = bitmap.getWidth() >> diff;
+                if (size == 0) {
+                    return false;
+                }
+                final int mask = (1 << diff) - 1;
+                final int left = (pTile.getX() & mask) * size;
+                final int top = (pTile.getY() & mask) * size;
+                mParentTileRect.set(left, top, left + size, top + size);
+
+                parentDrawable.setBeingUsed(true);
+                mBeingUsedDrawables.add(parentDrawable);
+                pCanvas.drawBitmap(bitmap, mParentTileRect, mTileRect, mParentTilePaint);
+                return true;
+            }
+            return false;
+        }
     };
 
+    private final TileLooper mTargetTileLooper = new TileLooper() {
+        @Override
+        public void initializeLoop(final float pZoomLevel, final int pTileSizePx) {
+        }
+
+        @Override
+        public void handleTile(final Canvas pCanvas, final String pCacheKey, final int pTileSizePx,
+                               final MapTile pTile, final int pX, final int pY, final Rect pClipRect) {
+            final double x = pX * mTargetTileSize - mWorldSize_2;
+            final double y = pY * mTargetTileSize - mWorldSize_2;
+            mTileRect.set((int) x, (int) y, (int) (x + mTargetTileSize),
+                    (int) (y + mTargetTileSize));
+            if (!Rect.intersects(mTileRect, pClipRect)) {
+                return;
+            }
+            final Drawable drawable = mTileProvider.getMapTile(pTile, mRequestTargetTiles);
+            if (drawable == null) {
+                return;
+            }
+            if (drawable instanceof CacheableBitmapDrawable) {
+                mBeingUsedDrawables.add((CacheableBitmapDrawable) drawable);
+            }
+            drawable.setBounds(mTileRect);
+            drawable.draw(pCanvas);
+        }
+    };
+
+    private void recordFullFrame() {
+        if (mFirstFullFrameMillis >= 0) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        if (mFirstFrameTime == 0) {
+            mFirstFrameTime = now;
+        }
+        if (mNuberOfTiles > 0 && mMissingTiles == 0) {
+            mFirstFullFrameMillis = now - mFirstFrameTime;
+            Log.i(TAG, "First full frame drawn after " + mFirstFullFrameMillis + "ms");
+        }
+    }
+
+    /**
+     * @return the time between the first frame drawn and the first frame in which every tile was
+     * loaded, in milliseconds, or -1 if no frame was complete yet
+     */
+    public long getFirstFullFrameMillis() {
+        return mFirstFullFrameMillis;
+    }
+
+    /**
+     * Set how many rings of tiles around the visible ones are loaded ahead of time, so that they
+     * are ready when the map is panned.
+     *
+     * @param pTiles the number of rings, 0 to only load the tiles on screen and where a fling
+     *               or pan animation is headed
+     */
+    public void setPrefetchMargin(final int pTiles) {
+        mPrefetcher.setMarginTiles(pTiles);
+    }
+
+    public int getPrefetchMargin() {
+        return mPrefetcher.getMarginTiles();
+    }
+
+    /**
+     * Limit the bandwidth spent on tiles that aren't visible yet. Visible tiles are not limited.
+     *
+     * @param pTilesPerSecond how many tiles may be requested ahead of time per second, 0 to
+     *                        disable prefetching
+     */
+    public void setPrefetchBudget(final int pTilesPerSecond) {
+        mPrefetcher.setBudget(pTilesPerSecond);
+    }
+
+    public int getPrefetchBudget() {
+        return mPrefetcher.getBudget();
+    }
+
+    /**
+     * @return the number of tiles requested ahead of time
+     */
+    public int getPrefetchRequestCount() {
+        return mPrefetcher.getRequestCount();
+    }
+
     public int getLoadingBackgroundColor() {
         return mLoadingBackgroundColor;
     }
@@ -338,8 +603,6 @@ public class TilesOverlay extends SafeDrawOverlay {
             return;
         }
 
-        final long startMs = System.currentTimeMillis();
-
         if (UtilConstants.DEBUGMODE) {
             Log.d(TAG, "rescale tile cache from " + pOldZoomLevel + " to " + pNewZoomLevel);
         }
@@ -347,15 +610,29 @@ public class TilesOverlay extends SafeDrawOverlay {
         final int tileSize = Projection.getTileSize();
         final Rect viewPort =
                 GeometryMath.viewPortRectForTileDrawing(pNewZoomLevel, projection, null);
+        final String cacheKey = mTileProvider.getCacheKey();
 
+        // Scaling takes a few bitmap draws per tile, the map shows the parent tiles meanwhile
         final ScaleTileLooper tileLooper =
                 pNewZoomLevel > pOldZoomLevel ? new ZoomInTileLooper(pOldZoomLevel)
                         : new ZoomOutTileLooper(pOldZoomLevel);
-        tileLooper.loop(null, mTileProvider.getCacheKey(), pNewZoomLevel, tileSize, viewPort, null);
-
-        final long endMs = System.currentTimeMillis();
-        if (UtilConstants.DEBUGMODE) {
-            Log.d(TAG, "Finished rescale in " + (endMs - startMs) + "ms");
+        try {
+            sRescaleExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    final long startMs = System.currentTimeMillis();
+                    tileLooper.loop(null, cacheKey, pNewZoomLevel, tileSize, viewPort, null);
+                    mTileProvider.requestRedraw();
+
+                    final long endMs = System.currentTimeMillis();
+                    if (UtilConstants.DEBUGMODE) {
+                        Log.d(TAG, "Finished rescale in " + (endMs - startMs) + "ms");
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            Log.w(TAG, "RejectedExecutionException", e);
         }
     }
 
@@ -368,6 +645,7 @@ public class TilesOverlay extends SafeDrawOverlay {
          */
         protected final HashMap<MapTile, Bitmap> mNewTiles;
 
+        protected final boolean mAllowRemote;
         protected final float mOldZoomLevel;
         protected final int mOldZoomRound;
         protected final int mOldTileUpperBound;
@@ -378,6 +656,7 @@ public class TilesOverlay extends SafeDrawOverlay {
         protected Paint mDebugPaint;
 
         public ScaleTileLooper(final float pOldZoomLevel) {
+            mAllowRemote = !isAnimating;
             mOldZoomLevel = pOldZoomLevel;
             mOldZoomRound = (int) Math.floor(mOldZoomLevel);
             mOldTileUpperBound = 1 << mOldZoomRound;
@@ -401,7 +680,10 @@ public class TilesOverlay extends SafeDrawOverlay {
             // If it's found then no need to created scaled version.
             // If not found (null) them we've initiated a new request for it,
             // and now we'll create a scaled version until the request completes.
-            final Drawable requestedTile = mTileProvider.getMapTile(pTile, !isAnimating);
+            final Drawable requestedTile = mTileProvider.getMapTile(pTile, mAllowRemote);
+            if (requestedTile instanceof CacheableBitmapDrawable) {
+                mBeingUsedDrawables.add((CacheableBitmapDrawable) requestedTile);
+            }
             if (requestedTile == null) {
                 try {
                     handleScaleTile(pCacheKey, pTileSizePx, pTile, pX, pY);
@@ -419,6 +701,12 @@ public class TilesOverlay extends SafeDrawOverlay {
 
                 final MapTile tile = mNewTiles.keySet().iterator().next();
                 final Bitmap bitmap = mNewTiles.remove(tile);
+                // Don't replace a tile that landed while scaling
+                final CacheableBitmapDrawable loaded = mTileProvider.getMapTileFromMemory(tile);
+                if (loaded != null && loaded.isBitmapValid()
+                        && !BitmapUtils.isCacheDrawableExpired(loaded)) {
+                    continue;
+                }
                 mTileProvider.putExpiredTileIntoCache(tile, bitmap);
             }
         }
@@ -457,11 +745,16 @@ public class TilesOverlay extends SafeDrawOverlay {
                     mSrcRect.set(xx, yy, xx + mTileSize_2, yy + mTileSize_2);
                     mDestRect.set(0, 0, pTileSizePx, pTileSizePx);
 
+                    // The scaled tile covers the whole tile, so keep the config of the old one
+                    final Bitmap.Config config = oldBitmap.getConfig() != null
+                            ? oldBitmap.getConfig() : Bitmap.Config.ARGB_8888;
+
                     // Try to get a bitmap from the pool, otherwise allocate a new one
-                    Bitmap bitmap = mTileProvider.getBitmapFromRemoved(pTileSizePx, pTileSizePx);
+                    Bitmap bitmap = mTileProvider.getBitmapFromRemoved(pTileSizePx, pTileSizePx,
+                            config);
 
                     if (bitmap == null) {
-                        bitmap = Bitmap.createBitmap(pTileSizePx, pTileSizePx, Bitmap.Config.ARGB_8888);
+                        bitmap = Bitmap.createBitmap(pTileSizePx, pTileSizePx, config);
                     }
                     final Canvas canvas = new Canvas(bitmap);
                     canvas.drawBitmap(oldBitmap, mSrcRect, mDestRect, null);
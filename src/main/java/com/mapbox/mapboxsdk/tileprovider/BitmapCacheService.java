@@ -0,0 +1,94 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
+
+import java.io.File;
+
+import uk.co.senab.bitmapcache.BitmapLruCache;
+
+/**
+ * The bitmap cache shared by every map view of the process, and by marker icons. Tiles stay
+ * cached when a map view is recreated, e.g. on rotation, and the disk index is only read once.
+ *
+ * The disk cache is split in namespaces, one per tile source cache key, each with its own quota.
+ * It is opened in the background when the first user acquires it and closed when the last one
+ * releases it.
+ */
+public final class BitmapCacheService implements TileLayerConstants {
+
+    private static final String TAG = "BitmapCacheService";
+    private static final String DISK_CACHE_SUBDIR = "mapbox_tiles_cache";
+
+    private static BitmapCacheService sInstance = null;
+
+    private final Context mContext;
+    private final BitmapLruCache mCache;
+    private long mDefaultDiskCacheQuota = CACHE_MAPTILEDISKSIZE_DEFAULT;
+    private int mDiskCacheUsers = 0;
+
+    private BitmapCacheService(final Context context) {
+        mContext = context;
+        mCache = (new BitmapLruCache.Builder(context)).setMemoryCacheEnabled(true)
+                .setMemoryCacheMaxSize(BitmapUtils.calculateMemoryCacheSize(context))
+                .setDiskCacheEnabled(false)
+                .build();
+    }
+
+    public static synchronized BitmapCacheService getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new BitmapCacheService(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public BitmapLruCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Opens the disk cache if nobody uses it yet. Every call must be matched by a call to
+     * {@link #releaseDiskCache()}.
+     */
+    public synchronized void acquireDiskCache() {
+        if (mDiskCacheUsers++ == 0) {
+            final File cacheDir = MapTileCache.getDiskCacheDir(mContext, DISK_CACHE_SUBDIR);
+            Log.i(TAG, "opening disk cache in '" + cacheDir.getAbsolutePath() + "'");
+            mCache.openDiskCache(cacheDir, mDefaultDiskCacheQuota);
+        }
+    }
+
+    /**
+     * Closes the disk cache once its last user released it.
+     */
+    public synchronized void releaseDiskCache() {
+        if (mDiskCacheUsers == 0) {
+            Log.w(TAG, "releaseDiskCache() called without acquireDiskCache()");
+            return;
+        }
+        if (--mDiskCacheUsers == 0) {
+            mCache.closeDiskCache();
+        }
+    }
+
+    /**
+     * Sets the maximum size in bytes of the tiles of one tile source on disk.
+     *
+     * @param namespace the cache key of the tile source
+     * @param maxSize the quota in bytes
+     */
+    public void setDiskCacheQuota(final String namespace, final long maxSize) {
+        mCache.setDiskCacheQuota(namespace, maxSize);
+    }
+
+    /**
+     * Sets the maximum size in bytes on disk of each tile source without a quota of its own.
+     */
+    public synchronized void setDefaultDiskCacheQuota(final long maxSize) {
+        mDefaultDiskCacheQuota = maxSize;
+        mCache.setDefaultDiskCacheQuota(maxSize);
+    }
+}
@@ -28,6 +28,14 @@ public interface IMapTileProviderCallback {
     void mapTileRequestExpiredTile(MapTileRequestState aState,
             final CacheableBitmapDrawable aDrawable);
 
+    /**
+     * The map tile request was dropped by its provider before it was started, e.g. because the
+     * tile is no longer on screen. It may be requested again.
+     *
+     * @param aState a state object
+     */
+    void mapTileRequestCancelled(MapTileRequestState aState);
+
     /**
      * Returns true if the network connection should be used, false if not.
      *
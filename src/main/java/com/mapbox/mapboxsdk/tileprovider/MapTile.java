@@ -20,19 +20,22 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
     public static final int MAPTILE_FAIL_ID = MAPTILE_SUCCESS_ID + 1;
 
     // This class must be immutable because it's used as the key in the cache hash map
-    // (ie all the fields are final).
+    // (ie all the fields are final). The path and cache key strings are only derived from
+    // them, and built the first time they are needed since drawing doesn't use them.
     private final int x;
     private final int y;
     private final int z;
-    private final String path;
-    private final String cacheKey;
+    private final String cacheKeyPrefix;
+    private final long key;
     private final int code;
+    private String path;
+    private String cacheKey;
     private Rect mTileRect;
 
     // For lat/lng bounds calculation
-    private double tileSize = DEFAULT_TILE_SIZE;
-    private double originShift = 2 * Math.PI * RADIUS_EARTH_METERS / 2.0;
-    private double initialResolution = 2 * Math.PI * RADIUS_EARTH_METERS / tileSize;
+    private static final double TILE_SIZE = DEFAULT_TILE_SIZE;
+    private static final double ORIGIN_SHIFT = 2 * Math.PI * RADIUS_EARTH_METERS / 2.0;
+    private static final double INITIAL_RESOLUTION = 2 * Math.PI * RADIUS_EARTH_METERS / TILE_SIZE;
 
     public MapTile(final int az, final int ax, final int ay) {
         this("", az, ax, ay);
@@ -42,11 +45,24 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
         this.z = az;
         this.x = ax;
         this.y = ay;
-        this.path = (new StringBuilder()).append(z).append('/').append(x).append('/').append(y).toString();
-        this.cacheKey = aCacheKey + "/" + path;
+        this.cacheKeyPrefix = aCacheKey;
+        this.key = getKey(az, ax, ay);
         this.code = ((17 * (37 + z)) * (37 * x)) * (37 + y);
     }
 
+    /**
+     * Packs tile coordinates into a single long, e.g. to index tiles without allocating.
+     * Coordinates must be below 2^29, which holds up to zoom level 29.
+     *
+     * @param az zoom level
+     * @param ax x coordinate
+     * @param ay y coordinate
+     * @return the packed coordinates
+     */
+    public static long getKey(final int az, final int ax, final int ay) {
+        return ((long) az << 58) | ((long) ax << 29) | (long) ay;
+    }
+
     public int getZ() {
         return z;
     }
@@ -59,17 +75,30 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
         return y;
     }
 
+    /**
+     * @return the tile coordinates packed by {@link #getKey(int, int, int)}
+     */
+    public long getKey() {
+        return key;
+    }
+
     public String getPath() {
+        if (path == null) {
+            path = (new StringBuilder()).append(z).append('/').append(x).append('/').append(y).toString();
+        }
         return path;
     }
 
     public String getCacheKey() {
+        if (cacheKey == null) {
+            cacheKey = cacheKeyPrefix + "/" + getPath();
+        }
         return cacheKey;
     }
 
     @Override
     public String toString() {
-        return path;
+        return getPath();
     }
 
     @Override
@@ -111,24 +140,24 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
 
     private double[] TileBounds(int tx, int ty, int zoom) {
         // Returns bounds of the given tile in EPSG:900913 coordinates
-        double[] wn = PixelsToMeters(tx * tileSize, ty * tileSize, zoom);
-        double[] es = PixelsToMeters((tx + 1) * tileSize, (ty + 1) * tileSize, zoom);
+        double[] wn = PixelsToMeters(tx * TILE_SIZE, ty * TILE_SIZE, zoom);
+        double[] es = PixelsToMeters((tx + 1) * TILE_SIZE, (ty + 1) * TILE_SIZE, zoom);
         return new double[]{wn[0], wn[1], es[0], es[1]};
     }
 
     private double[] PixelsToMeters(double px, double py, double zoom) {
         // Converts pixel coordinates in given zoom level of pyramid to EPSG:900913
         double res = Resolution(zoom);
-        double mx = px * res - originShift;
-        double my = py * res - originShift;
+        double mx = px * res - ORIGIN_SHIFT;
+        double my = py * res - ORIGIN_SHIFT;
 
         return new double[]{mx, my};
     }
 
     private double[] MetersToLatLon(double mx, double my) {
         // Converts XY point from Spherical Mercator EPSG:900913 to lat/lon in WGS84 Datum
-        double lon = (mx / originShift) * 180.0;
-        double lat = (my / originShift) * 180.0;
+        double lon = (mx / ORIGIN_SHIFT) * 180.0;
+        double lat = (my / ORIGIN_SHIFT) * 180.0;
         lat = -180 / Math.PI * (2 * Math.atan(Math.exp(lat * Math.PI / 180.0)) - Math.PI / 2.0);
 
         return new double[]{lat, lon};
@@ -136,6 +165,6 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
 
     private double Resolution(double zoom) {
         // Resolution (meters/pixel) for given zoom level (measured at Equator)
-        return initialResolution / Math.pow(2, zoom);
+        return INITIAL_RESOLUTION / Math.pow(2, zoom);
     }
 }
@@ -19,15 +19,15 @@ import uk.co.senab.bitmapcache.BitmapLruCache;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
- * A wrapper around a BitmapLruCache that stores tiles on disk in order
+ * A wrapper around the shared BitmapLruCache that stores tiles on disk in order
  * to improve performance and provide offline content.
+ *
+ * @see BitmapCacheService
  */
 public class MapTileCache implements TileLayerConstants {
 
-    protected static BitmapLruCache sCachedTiles = null;
     private Context context;
     static final String TAG = "MapTileCache";
-    private static final String DISK_CACHE_SUBDIR = "mapbox_tiles_cache";
     private int mMaximumCacheSize;
 
     private boolean mDiskCacheEnabled = false;
@@ -42,32 +42,19 @@ public class MapTileCache implements TileLayerConstants {
     }
 
     /**
-     * Get the BitmapLruCache that belongs to this tile cache, creating it first
-     * if there isn't one yet.
+     * Get the BitmapLruCache shared by all tile caches.
      *
      * @return BitmapLruCache the cache
      */
     protected BitmapLruCache getCache() {
-        if (sCachedTiles == null) {
-            File cacheDir = getDiskCacheDir(context, DISK_CACHE_SUBDIR);
-            if (!cacheDir.exists()) {
-                if (cacheDir.mkdirs()) {
-                    Log.i(TAG, "created cacheDir " + cacheDir.getAbsolutePath());
-                } else {
-                    Log.e(TAG, "can't create cacheDir " + cacheDir);
-                }
-            } else {
-                Log.i(TAG, "cacheDir previously created '" + cacheDir.getAbsolutePath() + "'");
-            }
-            sCachedTiles = (new BitmapLruCache.Builder(context)).setMemoryCacheEnabled(true)
-                    .setMemoryCacheMaxSize(BitmapUtils.calculateMemoryCacheSize(context))
-                    .setDiskCacheEnabled(mDiskCacheEnabled)
-                    .setDiskCacheMaxSize(mMaximumCacheSize)
-                    .setDiskCacheLocation(cacheDir)
-                    .build();
-            Log.i(TAG, "Disk Cache Enabled: '" + sCachedTiles.isDiskCacheEnabled() + "'; Memory Cache Enabled: '" + sCachedTiles.isMemoryCacheEnabled() + "'");
-        }
-        return sCachedTiles;
+        return BitmapCacheService.getInstance(context).getCache();
+    }
+
+    /**
+     * @return true if this tile cache uses the disk cache and it is open
+     */
+    private boolean diskCacheAvailable() {
+        return mDiskCacheEnabled && getCache().isDiskCacheEnabled();
     }
 
     /**
@@ -83,7 +70,7 @@ public class MapTileCache implements TileLayerConstants {
     public CacheableBitmapDrawable getMapTile(final MapTile aTile) {
         String key = getCacheKey(aTile);
         CacheableBitmapDrawable result = getCache().getFromMemoryCache(key);
-        if (result == null) {
+        if (result == null && diskCacheAvailable()) {
             result = getCache().getFromDiskCache(key, null);
         }
         return result;
@@ -94,9 +81,33 @@ public class MapTileCache implements TileLayerConstants {
     }
 
     public CacheableBitmapDrawable getMapTileFromDisk(final MapTile aTile) {
+        if (!diskCacheAvailable()) {
+            return null;
+        }
         return getCache().getFromDiskCache(getCacheKey(aTile), null);
     }
 
+    /**
+     * @param opaque true if the tile has no transparent pixels, it is then decoded as RGB_565
+     */
+    public CacheableBitmapDrawable getMapTileFromDisk(final MapTile aTile, final boolean opaque) {
+        return getMapTileFromDisk(aTile, opaque, 0);
+    }
+
+    /**
+     * @param opaque true if the tile has no transparent pixels, it is then decoded as RGB_565
+     * @param targetSize if greater than 0, the tile is subsampled by a power of two as long as it
+     * stays at least this wide and high
+     */
+    public CacheableBitmapDrawable getMapTileFromDisk(final MapTile aTile, final boolean opaque,
+                                                      final int targetSize) {
+        if (!diskCacheAvailable()) {
+            return null;
+        }
+        return getCache().getFromDiskCache(getCacheKey(aTile), getDecodeOptions(opaque),
+                targetSize);
+    }
+
     public CacheableBitmapDrawable putTileStream(final MapTile aTile, final InputStream inputStream,
                                                  final BitmapFactory.Options decodeOpts) {
         return getCache().put(getCacheKey(aTile), inputStream, decodeOpts);
@@ -106,6 +117,25 @@ public class MapTileCache implements TileLayerConstants {
         return getCache().put(getCacheKey(aTile), bitmap);
     }
 
+    /**
+     * Caches a downloaded tile: the decoded bitmap goes to the memory cache and the original
+     * encoded bytes go to the disk cache untouched, so the bitmap is never re-compressed.
+     *
+     * @param aTile the tile
+     * @param aBitmap the bitmap decoded from data
+     * @param data the encoded tile as it was downloaded
+     * @return the drawable in the memory cache
+     */
+    public CacheableBitmapDrawable putTileData(final MapTile aTile, final Bitmap aBitmap,
+                                               final byte[] data) {
+        String key = getCacheKey(aTile);
+        CacheableBitmapDrawable drawable = getCache().putInMemoryCache(key, aBitmap);
+        if (diskCacheAvailable()) {
+            getCache().putInDiskCache(key, data);
+        }
+        return drawable;
+    }
+
     public CacheableBitmapDrawable putTile(final MapTile aTile, final Drawable aDrawable) {
         if (aDrawable != null && aDrawable instanceof BitmapDrawable) {
             String key = getCacheKey(aTile);
@@ -114,7 +144,7 @@ public class MapTileCache implements TileLayerConstants {
                 drawable = getCache().putInMemoryCache(getCacheKey(aTile),
                         ((BitmapDrawable) aDrawable).getBitmap());
             }
-            if (getCache().isDiskCacheEnabled() && !getCache().containsInDiskCache(key)) {
+            if (diskCacheAvailable() && !getCache().containsInDiskCache(key)) {
                 if (drawable != null) {
                     getCache().putInDiskCache(getCacheKey(aTile), drawable);
                 } else {
@@ -151,7 +181,7 @@ public class MapTileCache implements TileLayerConstants {
                                                       final Drawable aDrawable) {
         if (aDrawable != null && aDrawable instanceof BitmapDrawable) {
             String key = getCacheKey(aTile);
-            if (getCache().isDiskCacheEnabled() && !getCache().containsInDiskCache(key)) {
+            if (diskCacheAvailable() && !getCache().containsInDiskCache(key)) {
                 return getCache().putInDiskCache(getCacheKey(aTile),
                         ((BitmapDrawable) aDrawable).getBitmap());
             }
@@ -159,12 +189,60 @@ public class MapTileCache implements TileLayerConstants {
         return null;
     }
 
+    /**
+     * Get the HTTP validators stored next to a tile in the disk cache.
+     *
+     * @param aTile the tile
+     * @return the validators, empty if the tile isn't on disk or has none
+     */
+    public MapTileValidators getTileValidators(final MapTile aTile) {
+        if (!diskCacheAvailable()) {
+            return new MapTileValidators();
+        }
+        return MapTileValidators.fromString(getCache().getDiskCacheMetadata(getCacheKey(aTile)));
+    }
+
+    public boolean putTileValidators(final MapTile aTile, final MapTileValidators validators) {
+        return validators != null && diskCacheAvailable()
+                && getCache().putDiskCacheMetadata(getCacheKey(aTile), validators.toString());
+    }
+
+    /**
+     * Checks whether the disk cached copy of a tile is past its expiry time.
+     *
+     * @param aTile the tile
+     * @return true if the tile should be revalidated
+     */
+    public boolean isTileExpired(final MapTile aTile) {
+        return getTileValidators(aTile).isExpired();
+    }
+
+    /**
+     * Extends the lifetime of a cached tile after the server answered a revalidation with
+     * 304 Not Modified. The tile already in memory is reused, so nothing is decoded unless it
+     * was evicted.
+     *
+     * @param aTile the tile
+     * @param validators the validators of the 304 response
+     * @return the cached tile
+     */
+    public CacheableBitmapDrawable refreshTile(final MapTile aTile,
+                                               final MapTileValidators validators) {
+        putTileValidators(aTile, validators);
+        CacheableBitmapDrawable result = getMapTileFromMemory(aTile);
+        if (result == null || !result.isBitmapValid()) {
+            result = getMapTileFromDisk(aTile);
+        }
+        BitmapUtils.clearCacheDrawableExpired(result);
+        return result;
+    }
+
     public boolean containsTile(final MapTile aTile) {
         return getCache().contains(getCacheKey(aTile));
     }
 
     public boolean containsTileInDiskCache(final MapTile aTile) {
-        return getCache().isDiskCacheEnabled() && getCache().containsInDiskCache(getCacheKey(aTile));
+        return diskCacheAvailable() && getCache().containsInDiskCache(getCacheKey(aTile));
     }
 
     public void removeTile(final MapTile aTile) {
@@ -193,10 +271,54 @@ public class MapTileCache implements TileLayerConstants {
         return getCache().getBitmapFromRemoved(width, height);
     }
 
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
+        return getCache().getBitmapFromRemoved(width, height, config);
+    }
+
+    /**
+     * Give a bitmap that won't be drawn anymore to the bitmap pool, so that a later decode or
+     * composite can reuse it.
+     */
+    public boolean releaseBitmap(final Bitmap bitmap) {
+        return getCache().releaseBitmap(bitmap);
+    }
+
     public Bitmap decodeBitmap(final byte[] data, final BitmapFactory.Options opts) {
         return getCache().decodeBitmap(new BitmapLruCache.ByteArrayInputStreamProvider(data), opts);
     }
 
+    /**
+     * Decodes a tile, reusing a bitmap from the pool when possible.
+     *
+     * @param opaque true if the tile has no transparent pixels, it is then decoded as RGB_565
+     */
+    public Bitmap decodeBitmap(final byte[] data, final boolean opaque) {
+        return decodeBitmap(data, getDecodeOptions(opaque));
+    }
+
+    /**
+     * Decodes a tile on the {@link TileDecoder} threads, no larger than needed and reusing a
+     * bitmap from the pool when possible.
+     *
+     * @param opaque true if the tile has no transparent pixels, it is then decoded as RGB_565
+     * @param targetSize if greater than 0, the tile is subsampled by a power of two as long as it
+     * stays at least this wide and high
+     */
+    public Bitmap decodeBitmap(final byte[] data, final boolean opaque, final int targetSize) {
+        return TileDecoder.getInstance().decode(getCache(), data, getDecodeOptions(opaque),
+                targetSize);
+    }
+
+    private static BitmapFactory.Options getDecodeOptions(final boolean opaque) {
+        if (!opaque) {
+            return null;
+        }
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inPreferredConfig = Bitmap.Config.RGB_565;
+        return opts;
+    }
+
     public Bitmap decodeBitmap(final BitmapLruCache.InputStreamProvider ip,
                                final BitmapFactory.Options opts) {
         return getCache().decodeBitmap(ip, opts);
@@ -222,10 +344,23 @@ public class MapTileCache implements TileLayerConstants {
     public void setDiskCacheEnabled(final boolean enabled) {
         if (mDiskCacheEnabled != enabled) {
             mDiskCacheEnabled = enabled;
-            sCachedTiles = null;
+            final BitmapCacheService service = BitmapCacheService.getInstance(context);
+            if (enabled) {
+                service.setDefaultDiskCacheQuota(mMaximumCacheSize);
+                service.acquireDiskCache();
+            } else {
+                service.releaseDiskCache();
+            }
         }
     }
 
+    /**
+     * Stops using the shared disk cache, called when the tile layer is detached.
+     */
+    public void detach() {
+        setDiskCacheEnabled(false);
+    }
+
     public boolean isDiskCacheEnabled() {
         return mDiskCacheEnabled;
     }
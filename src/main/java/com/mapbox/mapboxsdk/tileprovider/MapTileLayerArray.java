@@ -88,6 +88,7 @@ public class MapTileLayerArray extends MapTileLayerBase {
         synchronized (mWorking) {
             mWorking.clear();
         }
+        mTileCache.detach();
     }
 
     private boolean networkAvailable() {
@@ -212,6 +213,24 @@ public class MapTileLayerArray extends MapTileLayerBase {
         }
     }
 
+    @Override
+    public void mapTileRequestCancelled(final MapTileRequestState aState) {
+        synchronized (mWorking) {
+            mWorking.remove(aState.getMapTile());
+        }
+        super.mapTileRequestCancelled(aState);
+    }
+
+    @Override
+    public void setViewport(final int pZoomLevel, final float pCenterX, final float pCenterY) {
+        synchronized (mTileProviderList) {
+            // Called on every frame, so avoid the iterator
+            for (int i = 0; i < mTileProviderList.size(); i++) {
+                mTileProviderList.get(i).setViewport(pZoomLevel, pCenterX, pCenterY);
+            }
+        }
+    }
+
     /**
      * We want to not use a provider that doesn't exist anymore in the chain, and we want to not
      * use
@@ -253,8 +272,8 @@ public class MapTileLayerArray extends MapTileLayerBase {
     public float getMinimumZoomLevel() {
         float result = MINIMUM_ZOOMLEVEL;
         synchronized (mTileProviderList) {
-            for (final MapTileModuleLayerBase tileProvider : mTileProviderList) {
-                result = Math.max(result, tileProvider.getMinimumZoomLevel());
+            for (int i = 0; i < mTileProviderList.size(); i++) {
+                result = Math.max(result, mTileProviderList.get(i).getMinimumZoomLevel());
             }
         }
         return result;
@@ -264,8 +283,8 @@ public class MapTileLayerArray extends MapTileLayerBase {
     public float getMaximumZoomLevel() {
         float result = MAXIMUM_ZOOMLEVEL;
         synchronized (mTileProviderList) {
-            for (final MapTileModuleLayerBase tileProvider : mTileProviderList) {
-                result = Math.min(result, tileProvider.getMaximumZoomLevel());
+            for (int i = 0; i < mTileProviderList.size(); i++) {
+                result = Math.min(result, mTileProviderList.get(i).getMaximumZoomLevel());
             }
         }
         return result;
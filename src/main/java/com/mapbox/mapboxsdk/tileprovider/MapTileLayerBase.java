@@ -221,6 +221,31 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         }
     }
 
+    /**
+     * Called by implementation class methods indicating that they have dropped the request
+     * without trying to load it. Nothing is drawn for it, it will be asked for again if it
+     * comes back on screen.
+     *
+     * @param pState the map tile request state object
+     */
+    @Override
+    public void mapTileRequestCancelled(final MapTileRequestState pState) {
+        if (DEBUG_TILE_PROVIDERS) {
+            Log.d(TAG, "MapTileLayerBase.mapTileRequestCancelled(): " + pState.getMapTile());
+        }
+    }
+
+    /**
+     * Tell the tile providers which tiles are on screen so they can prioritize their requests.
+     *
+     * @param pZoomLevel the zoom level of the tiles on screen
+     * @param pCenterX the x coordinate of the viewport center, in tiles
+     * @param pCenterY the y coordinate of the viewport center, in tiles
+     */
+    public void setViewport(final int pZoomLevel, final float pCenterX, final float pCenterY) {
+        // Do nothing by default
+    }
+
     private void putTileIntoCacheInternal(final MapTile pTile, final Drawable pDrawable) {
         mTileCache.putTile(pTile, pDrawable);
     }
@@ -264,6 +289,15 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         mTileRequestCompleteHandler = handler;
     }
 
+    /**
+     * Ask the map to redraw, after tiles were put in the cache outside of a tile request.
+     */
+    public void requestRedraw() {
+        if (mTileRequestCompleteHandler != null) {
+            mTileRequestCompleteHandler.sendEmptyMessage(MapTile.MAPTILE_SUCCESS_ID);
+        }
+    }
+
     public void clearTileMemoryCache() {
         mTileCache.purgeMemoryCache();
     }
@@ -315,6 +349,12 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         return (mTileCache != null) ? mTileCache.getBitmapFromRemoved(width, height) : null;
     }
 
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
+        return (mTileCache != null) ? mTileCache.getBitmapFromRemoved(width, height, config)
+                : null;
+    }
+
     /**
      * If a given MapTile is present in this cache, remove it from memory.
      * @param aTile
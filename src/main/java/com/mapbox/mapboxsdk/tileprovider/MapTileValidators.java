@@ -0,0 +1,149 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.text.TextUtils;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+
+/**
+ * The HTTP validators and expiry time of a cached tile. These are stored next to the tile in
+ * the disk cache so that an expired tile can be refreshed with a conditional request, and a
+ * {@link HttpURLConnection#HTTP_NOT_MODIFIED} response only extends its lifetime.
+ */
+public class MapTileValidators {
+
+    private static final String SEPARATOR = "\n";
+    private static final String MAX_AGE = "max-age=";
+
+    private String mETag;
+    private String mLastModified;
+    private long mExpires;
+    private boolean mNotModified;
+
+    public MapTileValidators() {
+        this(null, null, 0);
+    }
+
+    public MapTileValidators(final String eTag, final String lastModified, final long expires) {
+        mETag = eTag;
+        mLastModified = lastModified;
+        mExpires = expires;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return the time in milliseconds after which the tile should be revalidated, or 0 if the
+     * server didn't send an expiry
+     */
+    public long getExpires() {
+        return mExpires;
+    }
+
+    public boolean isExpired() {
+        return mExpires > 0 && mExpires < System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if a conditional request can be made for this tile
+     */
+    public boolean canRevalidate() {
+        return !TextUtils.isEmpty(mETag) || !TextUtils.isEmpty(mLastModified);
+    }
+
+    /**
+     * @return true if the last response for this tile was a 304 Not Modified
+     */
+    public boolean isNotModified() {
+        return mNotModified;
+    }
+
+    /**
+     * Add If-None-Match / If-Modified-Since headers to a request.
+     *
+     * @param connection a connection that hasn't been connected yet
+     */
+    public void applyTo(final HttpURLConnection connection) {
+        if (!TextUtils.isEmpty(mETag)) {
+            connection.setRequestProperty("If-None-Match", mETag);
+        }
+        if (!TextUtils.isEmpty(mLastModified)) {
+            connection.setRequestProperty("If-Modified-Since", mLastModified);
+        }
+    }
+
+    /**
+     * Update the validators and expiry from a response. A 304 response that doesn't repeat the
+     * validators keeps the ones we already have.
+     *
+     * @param connection a connected connection
+     * @param responseCode its response code
+     */
+    public void readFrom(final HttpURLConnection connection, final int responseCode) {
+        mNotModified = responseCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+
+        String eTag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if (!mNotModified || !TextUtils.isEmpty(eTag)) {
+            mETag = eTag;
+        }
+        if (!mNotModified || !TextUtils.isEmpty(lastModified)) {
+            mLastModified = lastModified;
+        }
+        mExpires = parseExpires(connection);
+    }
+
+    private static long parseExpires(final HttpURLConnection connection) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (!TextUtils.isEmpty(cacheControl)) {
+            for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+                directive = directive.trim();
+                if (directive.startsWith(MAX_AGE)) {
+                    try {
+                        long maxAge = Long.parseLong(directive.substring(MAX_AGE.length()));
+                        return System.currentTimeMillis() + maxAge * 1000;
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        return connection.getExpiration();
+    }
+
+    /**
+     * Parse validators previously written with {@link #toString()}.
+     *
+     * @param value the stored string, may be null
+     * @return the validators, empty if nothing could be parsed
+     */
+    public static MapTileValidators fromString(final String value) {
+        MapTileValidators result = new MapTileValidators();
+        if (TextUtils.isEmpty(value)) {
+            return result;
+        }
+        String[] parts = value.split(SEPARATOR, -1);
+        if (parts.length == 3) {
+            result.mETag = TextUtils.isEmpty(parts[0]) ? null : parts[0];
+            result.mLastModified = TextUtils.isEmpty(parts[1]) ? null : parts[1];
+            try {
+                result.mExpires = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                result.mExpires = 0;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return (mETag != null ? mETag : "") + SEPARATOR
+                + (mLastModified != null ? mLastModified : "") + SEPARATOR
+                + mExpires;
+    }
+}
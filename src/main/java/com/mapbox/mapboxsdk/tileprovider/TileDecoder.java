@@ -0,0 +1,174 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mapbox.mapboxsdk.tileprovider.modules.ConfigurablePriorityThreadFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import uk.co.senab.bitmapcache.BitmapLruCache;
+
+/**
+ * Decodes downloaded tiles on a pool of threads of its own, sized to the number of cores, so
+ * that the threads doing network I/O never compete for the CPU with more decodes than it can
+ * run. The time taken by each decode is recorded in a histogram.
+ */
+public final class TileDecoder {
+
+    private static final String TAG = "TileDecoder";
+
+    private static final int DECODE_THREAD_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    /**
+     * Upper bounds of the decode time histogram buckets, in milliseconds. The last bucket counts
+     * everything slower.
+     */
+    private static final int[] HISTOGRAM_BOUNDS = { 2, 4, 8, 16, 32, 64, 128 };
+
+    private static TileDecoder sInstance = null;
+
+    private final ExecutorService mExecutor;
+    private final AtomicIntegerArray mHistogram =
+            new AtomicIntegerArray(HISTOGRAM_BOUNDS.length + 1);
+
+    private TileDecoder() {
+        mExecutor = Executors.newFixedThreadPool(DECODE_THREAD_COUNT,
+                new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, TAG));
+    }
+
+    public static synchronized TileDecoder getInstance() {
+        if (sInstance == null) {
+            sInstance = new TileDecoder();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Decode a tile on the decode threads and wait for it.
+     *
+     * @param cache the cache whose bitmap pool the tile is decoded into
+     * @param data the encoded tile
+     * @param opts decode options, or null
+     * @param targetSize if greater than 0, the tile is subsampled by a power of two as long as it
+     * stays at least this wide and high
+     * @return the bitmap, or null if the tile couldn't be decoded
+     */
+    public Bitmap decode(final BitmapLruCache cache, final byte[] data,
+            final BitmapFactory.Options opts, final int targetSize) {
+        // Set by whichever comes first: the decode finishing, or the waiter giving up. The other
+        // side then knows whether the bitmap has to go back to the pool.
+        final AtomicBoolean settled = new AtomicBoolean(false);
+        final Callable<Bitmap> decode = new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                final long start = SystemClock.elapsedRealtime();
+                final Bitmap bitmap = cache.decodeBitmap(
+                        new BitmapLruCache.ByteArrayInputStreamProvider(data), opts, targetSize);
+                record(SystemClock.elapsedRealtime() - start);
+                if (!settled.compareAndSet(false, true)) {
+                    // Nobody waits for it anymore
+                    if (bitmap != null) {
+                        cache.releaseBitmap(bitmap);
+                    }
+                    return null;
+                }
+                return bitmap;
+            }
+        };
+
+        final Future<Bitmap> future;
+        try {
+            future = mExecutor.submit(decode);
+        } catch (final RejectedExecutionException e) {
+            Log.w(TAG, "RejectedExecutionException", e);
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            if (settled.compareAndSet(false, true)) {
+                future.cancel(false);
+            } else {
+                // The decode finished in the meantime, its result is about to be set
+                releaseResult(cache, future);
+            }
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            Log.e(TAG, "Error decoding tile", e.getCause());
+        }
+        return null;
+    }
+
+    private static void releaseResult(final BitmapLruCache cache, final Future<Bitmap> future) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                final Bitmap bitmap = future.get();
+                if (bitmap != null) {
+                    cache.releaseBitmap(bitmap);
+                }
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            } catch (final ExecutionException e) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void record(final long millis) {
+        int bucket = 0;
+        while (bucket < HISTOGRAM_BOUNDS.length && millis >= HISTOGRAM_BOUNDS[bucket]) {
+            bucket++;
+        }
+        mHistogram.incrementAndGet(bucket);
+    }
+
+    /**
+     * @return the upper bounds of the histogram buckets in milliseconds, the last bucket of
+     * {@link #getDecodeTimeHistogram()} has none
+     */
+    public static int[] getHistogramBounds() {
+        return HISTOGRAM_BOUNDS.clone();
+    }
+
+    /**
+     * @return the number of decodes per bucket of {@link #getHistogramBounds()}
+     */
+    public int[] getDecodeTimeHistogram() {
+        final int[] counts = new int[mHistogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mHistogram.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("TileDecoder[");
+        for (int i = 0; i < mHistogram.length(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(i < HISTOGRAM_BOUNDS.length ? "<" + HISTOGRAM_BOUNDS[i] : ">=" + HISTOGRAM_BOUNDS[i - 1])
+                    .append("ms=").append(mHistogram.get(i));
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -41,4 +41,12 @@ public interface TileLayerConstants {
     public static final int NUMBER_OF_TILE_DOWNLOAD_THREADS = 8;
 
     public static final int TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE = 40;
+
+    /**
+     * number of threads reading tiles from the disk cache or MBTiles files, kept apart from the
+     * download threads so local reads never wait on the network
+     */
+    public static final int NUMBER_OF_TILE_FILESYSTEM_THREADS = 4;
+
+    public static final int TILE_FILESYSTEM_MAXIMUM_QUEUE_SIZE = 40;
 }
@@ -1,24 +1,45 @@
 package com.mapbox.mapboxsdk.tileprovider.modules;
 
+import android.annotation.TargetApi;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.support.v4.util.LongSparseArray;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.tileprovider.util.StreamUtils;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 
 /**
  * An access layer to the MBTiles format. This is useful for offline tiles
  * that one would pre-package with an app.
+ *
+ * Tiles are read through a small pool of read-only connections, one per tile loading thread,
+ * so that reads don't queue up behind a single connection.
  */
 public class MBTilesFileArchive implements IArchiveFile {
 
     private final SQLiteDatabase mDatabase;
+    private final File mFile;
+    private final int mMaximumReaders;
+
+    private final Object mReaderLock = new Object();
+    private final ArrayDeque<TileReader> mIdleReaders = new ArrayDeque<TileReader>();
+    private int mReaderCount = 0;
+    private boolean mClosed = false;
 
     // TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB);
     public static final String TABLE_TILES = "tiles";
@@ -26,44 +47,266 @@ public class MBTilesFileArchive implements IArchiveFile {
     public static final String COL_TILES_TILE_DATA = "tile_data";
     public static final String COL_VALUE = "value";
 
+    private static final String TILE_QUERY = "SELECT tile_data FROM tiles"
+            + " WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+    private static final String TILE_RANGE_QUERY = "SELECT tile_column, tile_row, tile_data"
+            + " FROM tiles WHERE zoom_level = ? AND tile_column BETWEEN ? AND ?"
+            + " AND tile_row BETWEEN ? AND ?";
+
+    /**
+     * Read tiles from an already opened database. All reads go through that connection.
+     *
+     * @param pDatabase the database
+     */
     public MBTilesFileArchive(final SQLiteDatabase pDatabase) {
+        this(pDatabase, null, 1);
+    }
+
+    private MBTilesFileArchive(final SQLiteDatabase pDatabase, final File pFile,
+            final int pMaximumReaders) {
         mDatabase = pDatabase;
+        mFile = pFile;
+        mMaximumReaders = pMaximumReaders;
     }
 
     public static MBTilesFileArchive getDatabaseFileArchive(final File pFile)
             throws SQLiteException {
-        return new MBTilesFileArchive(SQLiteDatabase.openDatabase(pFile.getAbsolutePath(), null,
-                SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.OPEN_READONLY)
-        );
+        return new MBTilesFileArchive(openReadOnly(pFile), pFile,
+                TileLayerConstants.NUMBER_OF_TILE_FILESYSTEM_THREADS);
+    }
+
+    private static SQLiteDatabase openReadOnly(final File pFile) throws SQLiteException {
+        return SQLiteDatabase.openDatabase(pFile.getAbsolutePath(), null,
+                SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.OPEN_READONLY);
+    }
+
+    /**
+     * MBTiles rows are numbered from the bottom (TMS), map tiles from the top.
+     */
+    private static int getTileRow(final int z, final int y) {
+        return (1 << z) - 1 - y;
     }
 
     @Override
     public InputStream getInputStream(final ITileLayer pTileSource, final MapTile pTile) {
+        final byte[] data = getTileData(pTile.getZ(), pTile.getX(), pTile.getY());
+        return (data != null) ? new ByteArrayInputStream(data) : null;
+    }
+
+    /**
+     * Read the encoded image of a tile.
+     *
+     * @param z zoom level
+     * @param x column
+     * @param y row, counted from the top
+     * @return the tile data, or null if the archive doesn't contain the tile
+     */
+    public byte[] getTileData(final int z, final int x, final int y) {
+        TileReader reader = null;
+        try {
+            reader = acquireReader();
+            return (reader != null) ? reader.read(z, x, getTileRow(z, y)) : null;
+        } catch (final Throwable e) {
+            Log.e(TAG, "Error getting db stream: " + z + "/" + x + "/" + y, e);
+        } finally {
+            if (reader != null) {
+                releaseReader(reader);
+            }
+        }
 
+        return null;
+    }
+
+    /**
+     * Take an idle reader, open a new one if the pool isn't full yet, or wait for one to be
+     * released.
+     *
+     * @return the reader, or null if the archive is closed
+     */
+    private TileReader acquireReader() throws InterruptedException {
+        final boolean primary;
+        synchronized (mReaderLock) {
+            while (true) {
+                if (mClosed) {
+                    return null;
+                }
+                if (!mIdleReaders.isEmpty()) {
+                    return mIdleReaders.pop();
+                }
+                if (mReaderCount < mMaximumReaders) {
+                    primary = mReaderCount == 0;
+                    mReaderCount++;
+                    break;
+                }
+                mReaderLock.wait();
+            }
+        }
+
+        // The first reader shares the archive's own connection, the others get their own
         try {
-            InputStream ret = null;
+            return new TileReader(primary ? mDatabase : openReadOnly(mFile), !primary);
+        } catch (final SQLiteException e) {
+            synchronized (mReaderLock) {
+                mReaderCount--;
+                mReaderLock.notify();
+            }
+            throw e;
+        }
+    }
+
+    private void releaseReader(final TileReader reader) {
+        synchronized (mReaderLock) {
+            if (mClosed) {
+                reader.close();
+            } else {
+                mIdleReaders.push(reader);
+                mReaderLock.notify();
+            }
+        }
+    }
+
+    /**
+     * A read-only connection and the statement compiled on it. A reader is used by one thread
+     * at a time.
+     */
+    private static final class TileReader {
+        private final SQLiteDatabase mReaderDatabase;
+        private final boolean mOwnsDatabase;
+        private SQLiteStatement mTileStatement;
+
+        TileReader(final SQLiteDatabase database, final boolean ownsDatabase) {
+            mReaderDatabase = database;
+            mOwnsDatabase = ownsDatabase;
+        }
+
+        byte[] read(final int z, final int x, final int row) throws IOException {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                return readBlob(z, x, row);
+            }
+
             final String[] tile = { COL_TILES_TILE_DATA };
             final String[] xyz = {
-                    Integer.toString(pTile.getX()),
-                    Double.toString(Math.pow(2, pTile.getZ()) - pTile.getY() - 1),
-                    Integer.toString(pTile.getZ())
+                    Integer.toString(x),
+                    Integer.toString(row),
+                    Integer.toString(z)
             };
 
-            final Cursor cur = mDatabase.query(TABLE_TILES, tile,
+            byte[] ret = null;
+            final Cursor cur = mReaderDatabase.query(TABLE_TILES, tile,
                     "tile_column=? and tile_row=? and zoom_level=?", xyz, null, null, null);
 
             if (cur.getCount() != 0) {
                 cur.moveToFirst();
-                ret = new ByteArrayInputStream(cur.getBlob(0));
+                ret = cur.getBlob(0);
             }
             cur.close();
-            if (ret != null) {
-                return ret;
+            return ret;
+        }
+
+        /**
+         * Reads a tile through a statement compiled once per connection. The blob comes back as
+         * a file descriptor on shared memory and is read straight into the result, without
+         * going through a cursor window.
+         */
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        private byte[] readBlob(final int z, final int x, final int row) throws IOException {
+            if (mTileStatement == null) {
+                mTileStatement = mReaderDatabase.compileStatement(TILE_QUERY);
             }
-        } catch (final Throwable e) {
-            Log.e(TAG, "Error getting db stream: " + pTile, e);
+            mTileStatement.bindLong(1, z);
+            mTileStatement.bindLong(2, x);
+            mTileStatement.bindLong(3, row);
+            final ParcelFileDescriptor fd;
+            try {
+                fd = mTileStatement.simpleQueryForBlobFileDescriptor();
+            } catch (final SQLiteDoneException e) {
+                // No such tile
+                return null;
+            } finally {
+                mTileStatement.clearBindings();
+            }
+            if (fd == null) {
+                return null;
+            }
+
+            final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(fd);
+            try {
+                final long size = fd.getStatSize();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                        size > 0 ? (int) size : StreamUtils.IO_BUFFER_SIZE);
+                StreamUtils.copy(in, out);
+                return out.toByteArray();
+            } finally {
+                StreamUtils.closeStream(in);
+            }
+        }
+
+        /**
+         * @param minRow first TMS row
+         * @param maxRow last TMS row
+         * @return the tiles found, keyed by {@link MapTile#getKey(int, int, int)}
+         */
+        LongSparseArray<byte[]> readRange(final int z, final int minX, final int maxX,
+                final int minRow, final int maxRow) {
+            final LongSparseArray<byte[]> result = new LongSparseArray<byte[]>();
+            final String[] args = {
+                    Integer.toString(z),
+                    Integer.toString(minX),
+                    Integer.toString(maxX),
+                    Integer.toString(minRow),
+                    Integer.toString(maxRow)
+            };
+            final Cursor cur = mReaderDatabase.rawQuery(TILE_RANGE_QUERY, args);
+            try {
+                while (cur.moveToNext()) {
+                    final int x = cur.getInt(0);
+                    final int y = getTileRow(z, cur.getInt(1));
+                    result.put(MapTile.getKey(z, x, y), cur.getBlob(2));
+                }
+            } finally {
+                cur.close();
+            }
+            return result;
         }
 
+        void close() {
+            if (mTileStatement != null) {
+                mTileStatement.close();
+                mTileStatement = null;
+            }
+            if (mOwnsDatabase) {
+                mReaderDatabase.close();
+            }
+        }
+    }
+
+    /**
+     * Read a block of tiles of the same zoom level in a single query, e.g. all the tiles on
+     * screen.
+     *
+     * @param z zoom level
+     * @param minX first column
+     * @param maxX last column
+     * @param minY first row, counted from the top
+     * @param maxY last row, counted from the top
+     * @return the encoded tiles found, keyed by {@link MapTile#getKey(int, int, int)}, or null
+     * if the block couldn't be read
+     */
+    public LongSparseArray<byte[]> getTiles(final int z, final int minX, final int maxX,
+            final int minY, final int maxY) {
+        TileReader reader = null;
+        try {
+            reader = acquireReader();
+            return (reader != null)
+                    ? reader.readRange(z, minX, maxX, getTileRow(z, maxY), getTileRow(z, minY))
+                    : null;
+        } catch (final Throwable e) {
+            Log.e(TAG, "Error getting tiles " + z + "/" + minX + "-" + maxX + "/" + minY + "-" + maxY, e);
+        } finally {
+            if (reader != null) {
+                releaseReader(reader);
+            }
+        }
         return null;
     }
 
@@ -112,6 +355,13 @@ public class MBTilesFileArchive implements IArchiveFile {
         return getStringValue("template");
     }
 
+    /**
+     * @return the file format of the tile data, "png" or "jpg"
+     */
+    public String getFormat() {
+        return getStringValue("format");
+    }
+
     public String getVersion() {
         return getStringValue("version");
     }
@@ -146,6 +396,13 @@ public class MBTilesFileArchive implements IArchiveFile {
     }
 
     public void close() {
+        synchronized (mReaderLock) {
+            mClosed = true;
+            while (!mIdleReaders.isEmpty()) {
+                mIdleReaders.pop().close();
+            }
+            mReaderLock.notifyAll();
+        }
         if (mDatabase != null) {
             mDatabase.close();
         }
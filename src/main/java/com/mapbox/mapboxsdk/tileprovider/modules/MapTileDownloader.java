@@ -10,15 +10,22 @@ import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.MBTilesLayer;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.WebSourceTileLayer;
 import com.mapbox.mapboxsdk.util.AppUtils;
 import com.mapbox.mapboxsdk.views.MapView;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
 import com.mapbox.mapboxsdk.views.util.TilesLoadedListener;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
  * The {@link MapTileDownloader} loads tiles from an HTTP server.
+ *
+ * Requests go through two lanes: the disk cache and MBTiles files are read on one pool of
+ * threads, and only the tiles that have to be fetched are handed over to the network pool, so
+ * a slow connection doesn't hold up tiles that are already on the device.
  */
 public class MapTileDownloader extends MapTileModuleLayerBase {
     private static final String TAG = "MapTileDownloader";
@@ -26,6 +33,9 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
     private final AtomicReference<TileLayer> mTileSource = new AtomicReference<>();
     private final AtomicReference<MapTileCache> mTileCache = new AtomicReference<>();
 
+    private final ExecutorService mNetworkExecutor;
+    private final MapTileRequestQueue mNetworkPending;
+
     private final NetworkAvailabilityCheck mNetworkAvailabilityCheck;
     private MapView mMapView;
     private boolean mUseDataConnection;
@@ -33,7 +43,11 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
 
     public MapTileDownloader(final ITileLayer pTileSource, final MapTileCache pTileCache,
                              final NetworkAvailabilityCheck pNetworkAvailabilityCheck, final MapView mapView) {
-        super(NUMBER_OF_TILE_DOWNLOAD_THREADS, TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE);
+        super(NUMBER_OF_TILE_FILESYSTEM_THREADS, TILE_FILESYSTEM_MAXIMUM_QUEUE_SIZE);
+        mNetworkExecutor = Executors.newFixedThreadPool(NUMBER_OF_TILE_DOWNLOAD_THREADS,
+                new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY,
+                        getThreadGroupName() + "-network"));
+        mNetworkPending = new MapTileRequestQueue(TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE);
         mMapView = mapView;
         mUseDataConnection = true;
         if (pTileSource instanceof MBTilesLayer) {
@@ -56,6 +70,14 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         return mTileCache.get();
     }
 
+    /**
+     * @return the size tiles are decoded at, larger tiles are subsampled. @2x tiles are only
+     * kept at full size on screens dense enough to show them.
+     */
+    public int getTargetTileSize() {
+        return getTileSizePixels() * (hdpi ? 2 : 1);
+    }
+
     public boolean isNetworkAvailable() {
         return (mNetworkAvailabilityCheck == null
                 || mNetworkAvailabilityCheck.getNetworkAvailable());
@@ -89,6 +111,34 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         return new TileLoader();
     }
 
+    @Override
+    public void setViewport(final int pZoomLevel, final float pCenterX, final float pCenterY) {
+        super.setViewport(pZoomLevel, pCenterX, pCenterY);
+        setViewport(mNetworkPending, pZoomLevel, pCenterX, pCenterY);
+    }
+
+    @Override
+    protected void clearQueue() {
+        super.clearQueue();
+        synchronized (mQueueLockObject) {
+            mNetworkPending.clear();
+        }
+    }
+
+    @Override
+    void removeTileFromQueues(final MapTile mapTile) {
+        super.removeTileFromQueues(mapTile);
+        synchronized (mQueueLockObject) {
+            mNetworkPending.remove(mapTile);
+        }
+    }
+
+    @Override
+    public void detach() {
+        super.detach();
+        mNetworkExecutor.shutdown();
+    }
+
     @Override
     public float getMinimumZoomLevel() {
         TileLayer tileLayer = mTileSource.get();
@@ -146,17 +196,32 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         return (tileLayer != null) ? tileLayer.getCacheKey() : "";
     }
 
+    /**
+     * Reads tiles from the disk cache and local tile layers, and hands the others over to the
+     * network lane.
+     */
     protected class TileLoader extends MapTileModuleLayerBase.TileLoader {
 
         @Override
         public Drawable loadTile(final MapTileRequestState aState) throws CantContinueException {
             final MapTile tile = aState.getMapTile();
 //            Log.d(TAG, "loadTile() with tile = '" + tile + "'");
-            if (mTileCache != null && mTileCache.get().containsTileInDiskCache(tile)) {
-//                Log.d(TAG, "tile found in Disk Cache, so returning it. tile = '" + tile + "'");
-                return mTileCache.get().getMapTileFromDisk(tile);
-            }
+            final MapTileCache cache = mTileCache.get();
             TileLayer tileLayer = mTileSource.get();
+            if (cache != null && cache.containsTileInDiskCache(tile)) {
+                // An expired tile is revalidated by the tile layer, unless we are offline in
+                // which case the stale copy is better than nothing.
+                if (!isNetworkAvailable() || !cache.isTileExpired(tile)) {
+//                    Log.d(TAG, "tile found in Disk Cache, so returning it. tile = '" + tile + "'");
+                    return cache.getMapTileFromDisk(tile,
+                            tileLayer != null && tileLayer.isOpaque(), getTargetTileSize());
+                }
+            }
+            if (tileLayer instanceof WebSourceTileLayer) {
+                loadMapTileAsync(aState, mNetworkPending, mNetworkExecutor, new NetworkTileLoader());
+                tileHandedOff(aState);
+                return null;
+            }
             Drawable result =
                     (tileLayer != null) ? tileLayer.getDrawableFromTile(MapTileDownloader.this,
                             tile, hdpi) : null;
@@ -165,6 +230,24 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         }
     }
 
+    /**
+     * Fetches the tiles the {@link TileLoader} couldn't find on the device.
+     */
+    protected class NetworkTileLoader extends MapTileModuleLayerBase.TileLoader {
+
+        @Override
+        protected MapTileRequestQueue getPendingQueue() {
+            return mNetworkPending;
+        }
+
+        @Override
+        public Drawable loadTile(final MapTileRequestState aState) throws CantContinueException {
+            TileLayer tileLayer = mTileSource.get();
+            return (tileLayer != null) ? tileLayer.getDrawableFromTile(MapTileDownloader.this,
+                    aState.getMapTile(), hdpi) : null;
+        }
+    }
+
     private CacheableBitmapDrawable onTileLoaded(CacheableBitmapDrawable pDrawable) {
         return mMapView.getTileLoadedListener().onTileLoaded(pDrawable);
     }
@@ -11,8 +11,7 @@ import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -115,13 +114,13 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
 
     protected final Object mQueueLockObject = new Object();
     protected final HashMap<MapTile, MapTileRequestState> mWorking;
-    protected final LinkedHashMap<MapTile, MapTileRequestState> mPending;
+    protected final MapTileRequestQueue mPending;
 
+    /**
+     * @return the pending request closest to the center of the viewport, or null
+     */
     public MapTileRequestState popFirstPending() {
-        for (MapTile tile : mPending.keySet()) {
-            return mPending.remove(tile);
-        }
-        return null;
+        return mPending.poll();
     }
 
     /**
@@ -139,48 +138,81 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
                 new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, getThreadGroupName()));
 
         mWorking = new HashMap<MapTile, MapTileRequestState>();
-        mPending =
-                new LinkedHashMap<MapTile, MapTileRequestState>(pPendingQueueSize + 2, 0.1f, true) {
-
-                    private static final long serialVersionUID = 6455337315681858866L;
-
-                    @Override
-                    protected boolean removeEldestEntry(
-                            final Map.Entry<MapTile, MapTileRequestState> pEldest) {
-                        while (size() > pPendingQueueSize) {
-                            MapTileRequestState state = popFirstPending();
-                            state.getCallback().mapTileRequestFailed(state);
-                        }
-                        return false;
-                    }
-                };
+        mPending = new MapTileRequestQueue(pPendingQueueSize);
     }
 
     /**
      * Loads a map tile asynchronously, adding it to the queue and calling getTileLoader.
      */
     public void loadMapTileAsync(final MapTileRequestState pState) {
+        loadMapTileAsync(pState, mPending, mExecutor, getTileLoader());
+    }
+
+    /**
+     * Queues a request on one of the lanes of this provider. A provider with more than one lane
+     * (e.g. local reads and network fetches) gives each its own queue and executor so that a
+     * slow lane can't hold up the others.
+     */
+    protected void loadMapTileAsync(final MapTileRequestState pState,
+            final MapTileRequestQueue pQueue, final ExecutorService pExecutor,
+            final Runnable pTileLoader) {
+        final MapTileRequestState dropped;
         synchronized (mQueueLockObject) {
-/*
-                Log.d(TAG, "MapTileModuleLayerBase.loadMaptileAsync() on provider: " + getName() + " for tile: " + pState.getMapTile());
-                if (mPending.containsKey(pState.getMapTile())) {
-                    Log.d(TAG, "MapTileModuleLayerBase.loadMaptileAsync() tile already exists in request queue for modular provider. Moving to front of queue.");
-                } else {
-                    Log.d(TAG, "MapTileModuleLayerBase.loadMaptileAsync() adding tile to request queue for modular provider.");
-                }
-*/
-            // this will put the tile in the queue, or move it to the front of
-            // the queue if it's already present
-            mPending.put(pState.getMapTile(), pState);
+            // this will put the tile in the queue, or replace the pending request for it
+            dropped = pQueue.put(pState);
+            if (dropped != null) {
+                removeDroppedFromWorking(dropped);
+            }
+        }
+        if (dropped != null) {
+            dropped.getCallback().mapTileRequestCancelled(dropped);
         }
 
         try {
-            mExecutor.execute(getTileLoader());
+            pExecutor.execute(pTileLoader);
         } catch (final RejectedExecutionException e) {
             Log.w(TAG, "RejectedExecutionException", e);
         }
     }
 
+    /**
+     * Tell this provider which tiles are on screen, so that the pending requests closest to the
+     * center are served first. Pending requests for another zoom level are cancelled when the
+     * zoom level changes.
+     *
+     * @param pZoomLevel the zoom level of the tiles on screen
+     * @param pCenterX the x coordinate of the viewport center, in tiles
+     * @param pCenterY the y coordinate of the viewport center, in tiles
+     */
+    public void setViewport(final int pZoomLevel, final float pCenterX, final float pCenterY) {
+        setViewport(mPending, pZoomLevel, pCenterX, pCenterY);
+    }
+
+    protected void setViewport(final MapTileRequestQueue pQueue, final int pZoomLevel,
+            final float pCenterX, final float pCenterY) {
+        final List<MapTileRequestState> stale;
+        synchronized (mQueueLockObject) {
+            stale = pQueue.setViewport(pZoomLevel, pCenterX, pCenterY);
+            for (int i = 0; i < stale.size(); i++) {
+                removeDroppedFromWorking(stale.get(i));
+            }
+        }
+        for (int i = 0; i < stale.size(); i++) {
+            stale.get(i).getCallback().mapTileRequestCancelled(stale.get(i));
+        }
+    }
+
+    /**
+     * A request handed off to another lane stays in the working set until that lane completes
+     * it, so it is removed from there too when the other lane drops it. Must hold
+     * mQueueLockObject.
+     */
+    private void removeDroppedFromWorking(final MapTileRequestState pState) {
+        if (mWorking.get(pState.getMapTile()) == pState) {
+            mWorking.remove(pState.getMapTile());
+        }
+    }
+
     /**
      * Clears both pending and working queues.
      */
@@ -232,6 +264,23 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
         protected abstract Drawable loadTile(MapTileRequestState pState)
                 throws CantContinueException;
 
+        private boolean mHandedOff;
+
+        /**
+         * @return the queue this loader takes its requests from
+         */
+        protected MapTileRequestQueue getPendingQueue() {
+            return mPending;
+        }
+
+        /**
+         * Called from {@link #loadTile(MapTileRequestState)} when the request has been queued on
+         * another lane of this provider, which will complete it.
+         */
+        protected void tileHandedOff(final MapTileRequestState pState) {
+            mHandedOff = true;
+        }
+
         protected void onTileLoaderInit() {
             // Do nothing by default
         }
@@ -243,10 +292,8 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
         protected MapTileRequestState nextTile() {
 
             synchronized (mQueueLockObject) {
-                // get the most recently accessed tile
-                // - the last item in the iterator that's not already being
-                // processed
-                MapTileRequestState state = popFirstPending();
+                // get the tile closest to the center of the viewport
+                MapTileRequestState state = getPendingQueue().poll();
                 if (state != null) {
                     mWorking.put(state.getMapTile(), state);
                     if (DEBUG_TILE_PROVIDERS) {
@@ -308,6 +355,7 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
             MapTileRequestState state;
             Drawable result = null;
             while ((state = nextTile()) != null) {
+                mHandedOff = false;
                 try {
                     result = null;
                     result = loadTile(state);
@@ -318,6 +366,9 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
                     Log.e(TAG, "Error downloading tile: " + state.getMapTile(), e);
                 }
 
+                if (mHandedOff) {
+                    continue;
+                }
                 if (result == null) {
                     tileLoadedFailed(state);
                 } else if (BitmapUtils.isCacheDrawableExpired(result)) {
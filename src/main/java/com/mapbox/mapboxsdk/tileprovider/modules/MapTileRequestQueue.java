@@ -0,0 +1,147 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The pending requests of a tile provider. Requests are served closest to the center of the
+ * viewport first. Requests for another zoom level than the one on screen are stale: they are
+ * served last, dropped first when the queue is full, and dropped altogether when the zoom level
+ * changes.
+ *
+ * This class is not thread safe, callers synchronize on their queue lock.
+ */
+public class MapTileRequestQueue {
+
+    private static final float STALE = Float.MAX_VALUE;
+
+    private final int mMaximumSize;
+    private final LinkedHashMap<MapTile, MapTileRequestState> mPending;
+
+    private int mZoomLevel = -1;
+    private float mCenterX;
+    private float mCenterY;
+
+    public MapTileRequestQueue(final int maximumSize) {
+        mMaximumSize = maximumSize;
+        mPending = new LinkedHashMap<MapTile, MapTileRequestState>(maximumSize + 2);
+    }
+
+    /**
+     * Add a request, replacing a pending request for the same tile.
+     *
+     * @param state the request
+     * @return the request dropped to keep the queue within its maximum size, or null
+     */
+    public MapTileRequestState put(final MapTileRequestState state) {
+        mPending.put(state.getMapTile(), state);
+        if (mPending.size() <= mMaximumSize) {
+            return null;
+        }
+        MapTileRequestState farthest = null;
+        float farthestDistance = -1;
+        for (MapTileRequestState pending : mPending.values()) {
+            float distance = distance(pending.getMapTile());
+            if (distance > farthestDistance) {
+                farthest = pending;
+                farthestDistance = distance;
+            }
+        }
+        mPending.remove(farthest.getMapTile());
+        return farthest;
+    }
+
+    /**
+     * Remove and return the request closest to the center of the viewport. Requests at the same
+     * distance are served in the order they were added.
+     *
+     * @return the request, or null if the queue is empty
+     */
+    public MapTileRequestState poll() {
+        MapTileRequestState closest = null;
+        float closestDistance = 0;
+        for (MapTileRequestState pending : mPending.values()) {
+            float distance = distance(pending.getMapTile());
+            if (closest == null || distance < closestDistance) {
+                closest = pending;
+                closestDistance = distance;
+            }
+        }
+        if (closest != null) {
+            mPending.remove(closest.getMapTile());
+        }
+        return closest;
+    }
+
+    public MapTileRequestState remove(final MapTile tile) {
+        return mPending.remove(tile);
+    }
+
+    public void clear() {
+        mPending.clear();
+    }
+
+    public int size() {
+        return mPending.size();
+    }
+
+    /**
+     * Update the viewport the requests are prioritized against.
+     *
+     * @param zoomLevel the zoom level of the tiles on screen
+     * @param centerX the x coordinate of the viewport center, in tiles
+     * @param centerY the y coordinate of the viewport center, in tiles
+     * @return the stale requests that were dropped because the zoom level changed, never null
+     */
+    public List<MapTileRequestState> setViewport(final int zoomLevel, final float centerX,
+            final float centerY) {
+        final boolean zoomChanged = mZoomLevel >= 0 && mZoomLevel != zoomLevel;
+        mZoomLevel = zoomLevel;
+        mCenterX = centerX;
+        mCenterY = centerY;
+        if (!zoomChanged) {
+            return Collections.emptyList();
+        }
+
+        List<MapTileRequestState> stale = new ArrayList<MapTileRequestState>();
+        Iterator<MapTileRequestState> it = mPending.values().iterator();
+        while (it.hasNext()) {
+            MapTileRequestState pending = it.next();
+            if (pending.getMapTile().getZ() != zoomLevel) {
+                stale.add(pending);
+                it.remove();
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * @return the squared distance, in tiles, between the tile and the viewport center
+     */
+    private float distance(final MapTile tile) {
+        if (mZoomLevel < 0) {
+            // No viewport yet, serve in order
+            return 0;
+        }
+        if (tile.getZ() != mZoomLevel) {
+            return STALE;
+        }
+        final int mapTileUpperBound = 1 << mZoomLevel;
+        final float dx = wrappedDelta(tile.getX() + 0.5f, mCenterX, mapTileUpperBound);
+        final float dy = wrappedDelta(tile.getY() + 0.5f, mCenterY, mapTileUpperBound);
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Tile coordinates wrap around the world, so take the shorter way around.
+     */
+    private static float wrappedDelta(final float a, final float b, final int size) {
+        float delta = Math.abs(a - b) % size;
+        return Math.min(delta, size - delta);
+    }
+}
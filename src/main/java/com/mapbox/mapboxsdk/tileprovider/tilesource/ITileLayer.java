@@ -98,6 +98,14 @@ public interface ITileLayer {
      */
     public String getLegend();
 
+    /**
+     * Whether the tiles of this source have no transparent pixels, in which case they are
+     * decoded without an alpha channel.
+     *
+     * @return true if the tiles are opaque
+     */
+    public boolean isOpaque();
+
     /**
      * Get the cache key used for the disk cache
      *
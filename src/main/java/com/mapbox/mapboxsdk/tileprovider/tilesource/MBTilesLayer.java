@@ -4,10 +4,12 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Environment;
+import android.support.v4.util.LongSparseArray;
 import android.util.Log;
 
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
 import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesFileArchive;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
 import com.mapbox.mapboxsdk.views.util.constants.MapViewConstants;
@@ -17,6 +19,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -29,6 +33,20 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
     private static final String TAG = "MBTilesLayer";
     MBTilesFileArchive mbTilesFileArchive;
 
+    // Tiles are read by aligned blocks of BLOCK_SIZE x BLOCK_SIZE in a single query, since the
+    // tiles of a viewport are requested together. A tile is dropped from its block once taken.
+    private static final int BLOCK_SIZE = 4;
+    private static final byte[] TAKEN = new byte[0];
+    private static final int MAX_BLOCKS = 8;
+    private final Map<Long, LongSparseArray<byte[]>> mBlocks =
+            new LinkedHashMap<Long, LongSparseArray<byte[]>>(MAX_BLOCKS + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<Long, LongSparseArray<byte[]>> eldest) {
+                    return size() > MAX_BLOCKS;
+                }
+            };
+
     /**
      * Initialize a new tile layer, represented by a MBTiles file.
      *
@@ -124,6 +142,8 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
             mAttribution = mbTilesFileArchive.getAttribution();
             mBoundingBox = mbTilesFileArchive.getBounds();
             mCenter = mbTilesFileArchive.getCenter();
+            // JPEG tiles have no alpha channel
+            mOpaque = "jpg".equalsIgnoreCase(mbTilesFileArchive.getFormat());
         }
     }
 
@@ -143,6 +163,8 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
             mAttribution = mbTilesFileArchive.getAttribution();
             mBoundingBox = mbTilesFileArchive.getBounds();
             mCenter = mbTilesFileArchive.getCenter();
+            // JPEG tiles have no alpha channel
+            mOpaque = "jpg".equalsIgnoreCase(mbTilesFileArchive.getFormat());
         }
     }
 
@@ -187,16 +209,72 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
             mbTilesFileArchive.close();
             mbTilesFileArchive = null;
         }
+        synchronized (mBlocks) {
+            mBlocks.clear();
+        }
+    }
+
+    /**
+     * Takes a tile from its block, reading the block first if it hasn't been yet. The block is
+     * read outside of the lock, through one of the archive's pooled readers.
+     *
+     * @return the encoded tile, or null if the archive doesn't have it
+     */
+    private byte[] getTileData(final MBTilesFileArchive archive, final MapTile aTile) {
+        final int z = aTile.getZ();
+        final int x = aTile.getX();
+        final int y = aTile.getY();
+        final long blockKey = MapTile.getKey(z, x / BLOCK_SIZE, y / BLOCK_SIZE);
+        LongSparseArray<byte[]> block;
+        synchronized (mBlocks) {
+            block = mBlocks.get(blockKey);
+        }
+        if (block == null) {
+            final int max = (1 << z) - 1;
+            final int minX = x - x % BLOCK_SIZE;
+            final int minY = y - y % BLOCK_SIZE;
+            final LongSparseArray<byte[]> read = archive.getTiles(z, minX,
+                    Math.min(max, minX + BLOCK_SIZE - 1), minY, Math.min(max, minY + BLOCK_SIZE - 1));
+            if (read == null) {
+                return archive.getTileData(z, x, y);
+            }
+            synchronized (mBlocks) {
+                // Another thread may have read the same block in the meantime
+                block = mBlocks.get(blockKey);
+                if (block == null) {
+                    block = read;
+                    mBlocks.put(blockKey, block);
+                }
+            }
+        }
+
+        final long key = MapTile.getKey(z, x, y);
+        final byte[] data;
+        synchronized (mBlocks) {
+            data = block.get(key);
+            if (data != null && data != TAKEN) {
+                block.put(key, TAKEN);
+            }
+        }
+        if (data == TAKEN) {
+            // Taken from its block already, e.g. reloaded after leaving the memory cache
+            return archive.getTileData(z, x, y);
+        }
+        // Missing from the block means missing from the archive
+        return data;
     }
 
     @Override
     public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
                                                        final MapTile aTile, boolean hdpi) {
-        if (mbTilesFileArchive != null) {
-            InputStream stream = mbTilesFileArchive.getInputStream(this, aTile);
-            if (stream != null) {
-                CacheableBitmapDrawable result =
-                        downloader.getCache().putTileStream(aTile, stream, null);
+        MBTilesFileArchive archive = mbTilesFileArchive;
+        if (archive != null) {
+            byte[] data = getTileData(archive, aTile);
+            if (data != null) {
+                // The tile is already on the device, so it only goes to the memory cache
+                MapTileCache cache = downloader.getCache();
+                CacheableBitmapDrawable result = cache.putTileInMemoryCache(aTile,
+                        cache.decodeBitmap(data, isOpaque(), downloader.getTargetTileSize()));
                 if (result == null) {
                     Log.d(TAG, "error reading stream from mbtiles");
                 }
@@ -1,5 +1,6 @@
 package com.mapbox.mapboxsdk.tileprovider.tilesource;
 
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
@@ -21,6 +22,7 @@ public class TileLayer implements ITileLayer, TileLayerConstants, MapViewConstan
     protected float mMaximumZoomLevel = TileLayerConstants.MAXIMUM_ZOOMLEVEL;
     protected BoundingBox mBoundingBox = WORLD_BOUNDING_BOX;
     protected LatLng mCenter = new LatLng(0, 0);
+    protected boolean mOpaque = false;
     private final int mTileSizePixels = DEFAULT_TILE_SIZE;
 
     public TileLayer(final String pId, final String aUrl) {
@@ -76,6 +78,27 @@ public class TileLayer implements ITileLayer, TileLayerConstants, MapViewConstan
         return this;
     }
 
+    /**
+     * Sets whether the layer's tiles are fully opaque, like those of a raster basemap. Opaque
+     * tiles are decoded without an alpha channel, which takes half the memory.
+     */
+    public TileLayer setOpaque(final boolean aOpaque) {
+        this.mOpaque = aOpaque;
+        return this;
+    }
+
+    @Override
+    public boolean isOpaque() {
+        return mOpaque;
+    }
+
+    /**
+     * @return the config the layer's tiles are decoded to
+     */
+    public Bitmap.Config getBitmapConfig() {
+        return mOpaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
     public Drawable getDrawableFromTile(final MapTileDownloader downloader, final MapTile aTile,
             boolean hdpi) {
         return null;
@@ -1,21 +1,42 @@
 package com.mapbox.mapboxsdk.tileprovider.tilesource;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.MapTileValidators;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.mapbox.mapboxsdk.tileprovider.modules.ConfigurablePriorityThreadFactory;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
+import com.mapbox.mapboxsdk.tileprovider.util.StreamUtils;
 import com.mapbox.mapboxsdk.util.NetworkUtils;
+import com.mapbox.mapboxsdk.util.SingleFlight;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
 import com.mapbox.mapboxsdk.views.util.TilesLoadedListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -25,7 +46,7 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
     private static final String TAG = "WebSourceTileLayer";
 
-    // Tracks the number of threads active in the getBitmapFromURL method.
+    // Tracks the number of threads active in the getDataFromURL method.
     private AtomicInteger activeThreads = new AtomicInteger(0);
     protected boolean mEnableSSL = false;
 
@@ -93,14 +114,149 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
 
     private static final Paint compositePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
-    private Bitmap compositeBitmaps(final Bitmap source, Bitmap dest) {
-        Canvas canvas = new Canvas(dest);
-        canvas.drawBitmap(source, 0, 0, compositePaint);
-        return dest;
+    // Requests for the same tile or url from any map view of the process share one fetch
+    private static final SingleFlight<CacheableBitmapDrawable> sTileFlights =
+            new SingleFlight<CacheableBitmapDrawable>();
+    private static final SingleFlight<byte[]> sDataFlights = new SingleFlight<byte[]>();
+
+    /**
+     * How long the layers of a tile are waited for, counted from when their fetches start. The
+     * layers that haven't arrived by then are left out of the composite.
+     */
+    private static final long LAYER_TIMEOUT_MS = 10 * 1000;
+
+    // Fetches the layers of composite tiles, besides the first which the tile loader fetches
+    private static final ExecutorService sLayerExecutor = Executors.newFixedThreadPool(
+            TileLayerConstants.NUMBER_OF_TILE_DOWNLOAD_THREADS,
+            new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, "layer-fetch"));
+
+    /**
+     * Downloads and decodes one layer of a tile. Only the first layer can be opaque, the layers
+     * drawn over it keep their alpha.
+     *
+     * @return the layer, or null if it couldn't be loaded
+     */
+    private Bitmap fetchLayer(final String url, final boolean opaque, final MapTileCache cache,
+            final int targetSize) {
+        final byte[] data = getDataFromURL(url, null);
+        return data != null ? cache.decodeBitmap(data, opaque, targetSize) : null;
+    }
+
+    /**
+     * Fetches all the layers of a tile at once. The first layer is fetched on the calling thread
+     * while the others are in flight.
+     *
+     * @return the layers in the order of urls, null for those that failed or timed out
+     */
+    private Bitmap[] fetchLayers(final String[] urls, final MapTileCache cache,
+            final int targetSize) {
+        final long deadline = SystemClock.elapsedRealtime() + LAYER_TIMEOUT_MS;
+        final List<Future<Bitmap>> futures = new ArrayList<>(urls.length);
+        futures.add(null);
+        for (int i = 1; i < urls.length; i++) {
+            final String url = urls[i];
+            Future<Bitmap> future = null;
+            try {
+                future = sLayerExecutor.submit(new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        return fetchLayer(url, false, cache, targetSize);
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                Log.w(TAG, "RejectedExecutionException", e);
+            }
+            futures.add(future);
+        }
+
+        final Bitmap[] layers = new Bitmap[urls.length];
+        layers[0] = fetchLayer(urls[0], isOpaque(), cache, targetSize);
+        for (int i = 1; i < urls.length; i++) {
+            final Future<Bitmap> future = futures.get(i);
+            if (future == null) {
+                layers[i] = fetchLayer(urls[i], false, cache, targetSize);
+                continue;
+            }
+            try {
+                layers[i] = future.get(Math.max(0, deadline - SystemClock.elapsedRealtime()),
+                        TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException e) {
+                Log.w(TAG, "Timed out fetching layer: " + urls[i]);
+                future.cancel(true);
+            } catch (final InterruptedException e) {
+                for (int j = i; j < urls.length; j++) {
+                    if (futures.get(j) != null) {
+                        futures.get(j).cancel(true);
+                    }
+                }
+                Thread.currentThread().interrupt();
+                break;
+            } catch (final ExecutionException e) {
+                Log.e(TAG, "Error fetching layer: " + urls[i], e.getCause());
+            }
+        }
+        return layers;
+    }
+
+    /**
+     * Draws the layers that loaded, bottom first, into a single bitmap taken from the pool. The
+     * layers go back to the pool afterwards.
+     *
+     * @return the composite, or null if no layer loaded
+     */
+    private Bitmap compositeLayers(final Bitmap[] layers, final MapTileCache cache) {
+        Bitmap first = null;
+        int count = 0;
+        for (final Bitmap layer : layers) {
+            if (layer != null) {
+                if (first == null) {
+                    first = layer;
+                }
+                count++;
+            }
+        }
+        if (count <= 1) {
+            return first;
+        }
+
+        final int width = first.getWidth();
+        final int height = first.getHeight();
+        // Opaque only when drawn over an opaque first layer
+        final Bitmap.Config config = layers[0] != null ? getBitmapConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap result = cache.getBitmapFromRemoved(width, height, config);
+        if (result == null) {
+            result = Bitmap.createBitmap(width, height, config);
+        }
+        final Canvas canvas = new Canvas(result);
+        final Rect bounds = new Rect(0, 0, width, height);
+        for (final Bitmap layer : layers) {
+            if (layer != null) {
+                canvas.drawBitmap(layer, null, bounds, compositePaint);
+                cache.releaseBitmap(layer);
+            }
+        }
+        return result;
     }
 
     @Override
     public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
+            final MapTile aTile, final boolean hdpi) {
+        if (downloader.getTileLoadedListener() != null) {
+            // Customized per map view, can't be shared
+            return loadDrawableFromTile(downloader, aTile, hdpi);
+        }
+        return sTileFlights.get(aTile.getCacheKey(),
+                new SingleFlight.Loader<CacheableBitmapDrawable>() {
+                    @Override
+                    public CacheableBitmapDrawable load(
+                            final SingleFlight.Flight<CacheableBitmapDrawable> flight) {
+                        return loadDrawableFromTile(downloader, aTile, hdpi);
+                    }
+                });
+    }
+
+    private CacheableBitmapDrawable loadDrawableFromTile(final MapTileDownloader downloader,
             final MapTile aTile, boolean hdpi) {
         if (downloader.isNetworkAvailable()) {
             TilesLoadedListener listener = downloader.getTilesLoadedListener();
@@ -113,22 +269,51 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
             String[] urls = getTileURLs(aTile, tempHDPI);
             CacheableBitmapDrawable result = null;
             Bitmap resultBitmap = null;
+            // The downloaded bytes of resultBitmap, as long as it isn't a composite
+            byte[] resultData = null;
+            // Some layers of the composite failed, it is only kept in memory so that they are
+            // fetched again later
+            boolean partial = false;
             MapTileCache cache = downloader.getCache();
+            int targetSize = downloader.getTargetTileSize();
+
+            // Validators are kept per tile, so only single url tiles can be revalidated
+            MapTileValidators validators = null;
+            if (urls != null && urls.length == 1) {
+                validators = cache.getTileValidators(aTile);
+            }
 
             if (urls != null) {
                 if (listener != null) {
                     listener.onTilesLoadStarted();
                 }
-                for (final String url : urls) {
-                    Bitmap bitmap = getBitmapFromURL(aTile, url, cache);
-                    if (bitmap == null) {
-                        continue;
+                if (urls.length == 1) {
+                    final String url = urls[0];
+                    byte[] data = getDataFromURL(url, validators);
+                    if (validators != null && validators.isNotModified()) {
+                        result = cache.refreshTile(aTile, validators);
+                        if (result != null) {
+                            if (checkThreadControl() && listener != null) {
+                                listener.onTilesLoaded();
+                            }
+                            return result;
+                        }
+                        // The cached copy vanished in the meantime, fetch it unconditionally
+                        validators = new MapTileValidators();
+                        data = getDataFromURL(url, validators);
                     }
-                    if (resultBitmap == null) {
-                        resultBitmap = bitmap;
-                    } else {
-                        resultBitmap = compositeBitmaps(bitmap, resultBitmap);
+                    // Decode once, the encoded bytes are what goes to the disk cache
+                    resultBitmap = data != null ? cache.decodeBitmap(data, isOpaque(), targetSize)
+                            : null;
+                    if (resultBitmap != null) {
+                        resultData = data;
+                    }
+                } else if (urls.length > 1) {
+                    final Bitmap[] layers = fetchLayers(urls, cache, targetSize);
+                    for (final Bitmap layer : layers) {
+                        partial |= layer == null;
                     }
+                    resultBitmap = compositeLayers(layers, cache);
                 }
 
                 if (checkThreadControl()) {
@@ -152,17 +337,34 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
                     int resultHeight = result.getIntrinsicHeight();
 
                     //convert the drawable updated in onTileLoaded callback to a bitmap
-                    Bitmap bitmapToCache = Bitmap.createBitmap(resultWidth, resultHeight, Bitmap.Config.ARGB_8888);
+                    Bitmap bitmapToCache = cache.getBitmapFromRemoved(resultWidth, resultHeight,
+                            getBitmapConfig());
+                    if (bitmapToCache == null) {
+                        bitmapToCache = Bitmap.createBitmap(resultWidth, resultHeight, getBitmapConfig());
+                    }
                     Canvas canvas = new Canvas(bitmapToCache);
                     result.setBounds(0, 0, resultWidth, resultHeight);
                     result.draw(canvas);
 
-                    cache.putTileBitmap(aTile, bitmapToCache);
+                    if (partial) {
+                        cache.putTileInMemoryCache(aTile, bitmapToCache);
+                    } else {
+                        cache.putTileBitmap(aTile, bitmapToCache);
+                        cache.putTileValidators(aTile, validators);
+                    }
                 }
             } else {
-                if (resultBitmap != null) {
+                if (resultData != null) {
+                    //keep the decoded bitmap in memory and the original bytes on disk
+                    result = cache.putTileData(aTile, resultBitmap, resultData);
+                    cache.putTileValidators(aTile, validators);
+                } else if (resultBitmap != null && partial) {
+                    //keep what loaded in memory only, the whole tile is fetched again once evicted
+                    result = cache.putTileInMemoryCache(aTile, resultBitmap);
+                } else if (resultBitmap != null) {
                     //get drawable by putting it into cache (memory and disk)
                     result = cache.putTileBitmap(aTile, resultBitmap);
+                    cache.putTileValidators(aTile, validators);
                 }
             }
 
@@ -181,6 +383,61 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
      * @return the tile if valid, otherwise null
      */
     public Bitmap getBitmapFromURL(MapTile mapTile, final String url, final MapTileCache aCache) {
+        return getBitmapFromURL(mapTile, url, aCache, 0);
+    }
+
+    /**
+     * Requests and returns a bitmap object from a given URL, decoded by aCache no larger than
+     * needed.
+     *
+     * @param mapTile MapTile
+     * @param url the map tile url. should refer to a valid bitmap resource.
+     * @param aCache a cache, an instance of MapTileCache
+     * @param targetSize if greater than 0, the tile is subsampled by a power of two as long as it
+     * stays at least this wide and high
+     * @return the tile if valid, otherwise null
+     */
+    public Bitmap getBitmapFromURL(MapTile mapTile, final String url, final MapTileCache aCache,
+            final int targetSize) {
+        byte[] data = getDataFromURL(url, null);
+        if (data == null) {
+            return null;
+        }
+        Bitmap bitmap = aCache.decodeBitmap(data, isOpaque(), targetSize);
+        if (bitmap != null) {
+            aCache.putTileInMemoryCache(mapTile, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Requests the encoded tile image from a given URL. If validators are given, the request is
+     * made conditional on them and they are updated from the response; when the server answers
+     * 304 Not Modified no data is returned and {@link MapTileValidators#isNotModified()} is set.
+     *
+     * @param url the map tile url. should refer to a valid bitmap resource.
+     * @param validators validators of the cached copy, or null
+     * @return the raw response body, or null on failure
+     */
+    protected byte[] getDataFromURL(final String url, final MapTileValidators validators) {
+        if (validators != null || TextUtils.isEmpty(url)) {
+            // Conditional requests depend on the cached copy of the requester
+            return fetchDataFromURL(url, validators, null);
+        }
+        return sDataFlights.get(url, new SingleFlight.Loader<byte[]>() {
+            @Override
+            public byte[] load(final SingleFlight.Flight<byte[]> flight) {
+                return fetchDataFromURL(url, null, flight);
+            }
+        });
+    }
+
+    /**
+     * @param flight the coalesced request this fetch serves, the download stops once all its
+     * requesters gave up. May be null.
+     */
+    private byte[] fetchDataFromURL(final String url, final MapTileValidators validators,
+            final SingleFlight.Flight<byte[]> flight) {
         // We track the active threads here, every exit point should decrement this value.
         activeThreads.incrementAndGet();
 
@@ -189,16 +446,48 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
             return null;
         }
 
+        InputStream inputStream = null;
+        Semaphore permit = null;
         try {
-            HttpURLConnection connection = NetworkUtils.getHttpURLConnection(new URL(url));
-            Bitmap bitmap = BitmapFactory.decodeStream(connection.getInputStream());
-            if (bitmap != null) {
-                aCache.putTileInMemoryCache(mapTile, bitmap);
+            final URL requestUrl = new URL(url);
+            permit = NetworkUtils.acquireHostPermit(requestUrl);
+            HttpURLConnection connection = NetworkUtils.getHttpURLConnection(requestUrl);
+            if (validators != null) {
+                validators.applyTo(connection);
+                int responseCode = connection.getResponseCode();
+                validators.readFrom(connection, responseCode);
+                if (validators.isNotModified()) {
+                    // There's no body, closing the empty stream in finally hands the connection
+                    // back to the shared pool
+                    try {
+                        inputStream = connection.getInputStream();
+                    } catch (final IOException e) {
+                        connection.disconnect();
+                    }
+                    return null;
+                }
+            }
+            inputStream = connection.getInputStream();
+            int contentLength = connection.getContentLength();
+            ByteArrayOutputStream data = new ByteArrayOutputStream(
+                    contentLength > 0 ? contentLength : StreamUtils.IO_BUFFER_SIZE);
+            final byte[] buffer = new byte[StreamUtils.IO_BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                if (flight != null && flight.isCancelled()) {
+                    return null;
+                }
+                data.write(buffer, 0, read);
             }
-            return bitmap;
+            return data.toByteArray();
         } catch (final Throwable e) {
             Log.e(TAG, "Error downloading MapTile: " + url + ":" + e);
         } finally {
+            // Closing the stream hands the connection back to the shared pool for reuse
+            StreamUtils.closeStream(inputStream);
+            if (permit != null) {
+                permit.release();
+            }
             activeThreads.decrementAndGet();
         }
         return null;
@@ -14,6 +14,7 @@ import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.StateSet;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 public class BitmapUtils {
@@ -40,6 +41,12 @@ public class BitmapUtils {
         }
     }
 
+    public static void clearCacheDrawableExpired(CacheableBitmapDrawable drawable) {
+        if (drawable != null && drawable.getState() == EXPIRED) {
+            drawable.setState(StateSet.WILD_CARD);
+        }
+    }
+
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     private static class ActivityManagerHoneycomb {
         static int getLargeMemoryClass(ActivityManager activityManager) {
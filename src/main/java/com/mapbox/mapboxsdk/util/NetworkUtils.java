@@ -9,15 +9,54 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.ConnectionPool;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.OkUrlFactory;
+import com.squareup.okhttp.Protocol;
+import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class NetworkUtils {
+
+    /**
+     * Number of idle connections kept alive in the shared connection pool.
+     */
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+
+    /**
+     * How long an idle connection stays in the shared pool before it is closed.
+     */
+    public static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+
+    /**
+     * Maximum number of concurrent requests to a single host, see {@link #acquireHostPermit(URL)}.
+     */
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 8;
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30 * 1000;
+
+    private static final AtomicLong sRequestCount = new AtomicLong(0);
+    private static final AtomicLong sConnectionCount = new AtomicLong(0);
+
+    private static OkHttpClient sClient = null;
+    private static OkUrlFactory sUrlFactory = null;
+
+    private static final HashMap<String, Semaphore> sHostPermits = new HashMap<String, Semaphore>();
+    private static int sMaxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+
     public static boolean isNetworkAvailable(Context context) {
         ConnectivityManager connectivityManager =
                 (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -25,6 +64,53 @@ public class NetworkUtils {
         return activeNetworkInfo != null && activeNetworkInfo.isConnected();
     }
 
+    /**
+     * Get the process-wide client used for every tile, icon and offline download. It is created
+     * on first use with a keep-alive connection pool and HTTP/2 / SPDY enabled where the server
+     * supports it.
+     *
+     * @return the shared client
+     */
+    public static synchronized OkHttpClient getOkHttpClient() {
+        if (sClient == null) {
+            setOkHttpClient(createDefaultClient());
+        }
+        return sClient;
+    }
+
+    /**
+     * Replace the shared client, e.g. to tune pooling, timeouts or interceptors. A copy of the
+     * client is used, with its socket factory wrapped so that connection counters keep working;
+     * the client passed in isn't modified.
+     *
+     * @param client the new shared client, or null to go back to the default
+     */
+    public static synchronized void setOkHttpClient(final OkHttpClient client) {
+        if (client == null) {
+            sClient = null;
+            sUrlFactory = null;
+            return;
+        }
+        final OkHttpClient shared = client.clone();
+        SocketFactory socketFactory = shared.getSocketFactory();
+        if (!(socketFactory instanceof CountingSocketFactory)) {
+            shared.setSocketFactory(new CountingSocketFactory(
+                    socketFactory != null ? socketFactory : SocketFactory.getDefault()));
+        }
+        sClient = shared;
+        sUrlFactory = new OkUrlFactory(shared);
+    }
+
+    private static OkHttpClient createDefaultClient() {
+        OkHttpClient client = new OkHttpClient();
+        client.setConnectionPool(
+                new ConnectionPool(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_DURATION_MS));
+        client.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.SPDY_3, Protocol.HTTP_1_1));
+        client.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(DEFAULT_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        return client;
+    }
+
     public static HttpURLConnection getHttpURLConnection(final URL url) {
         return getHttpURLConnection(url, null, null);
     }
@@ -34,19 +120,153 @@ public class NetworkUtils {
     }
 
     public static HttpURLConnection getHttpURLConnection(final URL url, final Cache cache, final SSLSocketFactory sslSocketFactory) {
-        OkHttpClient client = new OkHttpClient();
-        if (cache != null) {
-            client.setCache(cache);
-        }
-        if (sslSocketFactory != null) {
-            client.setSslSocketFactory(sslSocketFactory);
+        HttpURLConnection connection;
+        if (cache == null && sslSocketFactory == null) {
+            OkUrlFactory factory;
+            synchronized (NetworkUtils.class) {
+                getOkHttpClient();
+                factory = sUrlFactory;
+            }
+            connection = factory.open(url);
+        } else {
+            // Derived clients share the connection pool and socket factory of the shared client
+            OkHttpClient client = getOkHttpClient().clone();
+            if (cache != null) {
+                client.setCache(cache);
+            }
+            if (sslSocketFactory != null) {
+                client.setSslSocketFactory(sslSocketFactory);
+            }
+            connection = new OkUrlFactory(client).open(url);
         }
-        HttpURLConnection connection = new OkUrlFactory(client).open(url);
+        sRequestCount.incrementAndGet();
         connection.setRequestProperty("User-Agent", MapboxUtils.getUserAgent());
         return connection;
     }
 
+    /**
+     * Wait until fewer than the maximum number of requests are in progress to the host of a url.
+     * Requests go through HttpURLConnection, which OkHttp's dispatcher doesn't limit, so the
+     * tile, icon and offline downloads take a permit around each request.
+     *
+     * @return the permit, to release once the response has been read
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public static Semaphore acquireHostPermit(final URL url) throws InterruptedIOException {
+        final Semaphore permits;
+        synchronized (sHostPermits) {
+            final String host = url.getHost() + ":" + url.getPort();
+            Semaphore hostPermits = sHostPermits.get(host);
+            if (hostPermits == null) {
+                hostPermits = new Semaphore(sMaxRequestsPerHost);
+                sHostPermits.put(host, hostPermits);
+            }
+            permits = hostPermits;
+        }
+        try {
+            permits.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a request to " + url.getHost());
+        }
+        return permits;
+    }
+
+    /**
+     * Change the maximum number of concurrent requests to a single host. Requests already in
+     * progress still count against the previous limit.
+     */
+    public static void setMaxRequestsPerHost(final int maxRequests) {
+        synchronized (sHostPermits) {
+            sMaxRequestsPerHost = Math.max(1, maxRequests);
+            sHostPermits.clear();
+        }
+    }
+
+    public static int getMaxRequestsPerHost() {
+        synchronized (sHostPermits) {
+            return sMaxRequestsPerHost;
+        }
+    }
+
     public static Cache getCache(final File cacheDir, final int maxSize) throws IOException {
         return new Cache(cacheDir, maxSize);
     }
+
+    /**
+     * @return the number of connections handed out by {@link #getHttpURLConnection(URL)}
+     */
+    public static long getRequestCount() {
+        return sRequestCount.get();
+    }
+
+    /**
+     * @return the number of sockets (and so TCP/TLS handshakes) opened by the shared client
+     */
+    public static long getConnectionCount() {
+        return sConnectionCount.get();
+    }
+
+    /**
+     * @return the number of requests that were served over an already open connection
+     */
+    public static long getReusedConnectionCount() {
+        return Math.max(0, sRequestCount.get() - sConnectionCount.get());
+    }
+
+    /**
+     * @return the number of idle connections currently held in the shared pool
+     */
+    public static int getIdleConnectionCount() {
+        ConnectionPool pool = getOkHttpClient().getConnectionPool();
+        return pool != null ? pool.getIdleConnectionCount() : 0;
+    }
+
+    public static void resetConnectionCounters() {
+        sRequestCount.set(0);
+        sConnectionCount.set(0);
+    }
+
+    /**
+     * A {@link SocketFactory} that counts every socket it creates.
+     */
+    private static final class CountingSocketFactory extends SocketFactory {
+        private final SocketFactory mDelegate;
+
+        CountingSocketFactory(final SocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        private Socket counted(final Socket socket) {
+            sConnectionCount.incrementAndGet();
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return counted(mDelegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port) throws IOException {
+            return counted(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port, final InetAddress localHost,
+                final int localPort) throws IOException {
+            return counted(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress host, final int port) throws IOException {
+            return counted(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port,
+                final InetAddress localAddress, final int localPort) throws IOException {
+            return counted(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
 }
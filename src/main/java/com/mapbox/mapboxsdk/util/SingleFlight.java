@@ -0,0 +1,148 @@
+package com.mapbox.mapboxsdk.util;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces concurrent loads of the same resource: the first requester of a key loads it on its
+ * own thread, requesters arriving while it is in flight wait for that result instead of loading
+ * it again. Every requester holds a reference on the load, it is cancelled once they all gave up.
+ * When the requester loading it gives up while others still wait, one of them loads it again.
+ * Meant to be shared process wide, so that map views showing the same tiles fetch them once.
+ *
+ * @param <V> the type of the loaded values
+ */
+public final class SingleFlight<V> {
+
+    public interface Loader<V> {
+        /**
+         * Load the value. Long loads should check {@link Flight#isCancelled()} and stop early.
+         *
+         * @return the value, or null if it couldn't be loaded
+         */
+        V load(Flight<V> flight);
+    }
+
+    /**
+     * A load in flight and the requesters waiting for it.
+     */
+    public static final class Flight<V> {
+        private final Thread mLeader;
+        private boolean mLeaderReleased = false;
+        private int mReferences = 1;
+        private boolean mDone = false;
+        private boolean mAbandoned = false;
+        private V mValue;
+
+        Flight(final Thread leader) {
+            mLeader = leader;
+        }
+
+        /**
+         * @return true once every requester gave up, the load may stop. The requester loading
+         * the value gives up when it is interrupted.
+         */
+        public synchronized boolean isCancelled() {
+            if (!mLeaderReleased && mLeader.isInterrupted()) {
+                mLeaderReleased = true;
+                mReferences--;
+            }
+            return mReferences <= 0;
+        }
+
+        /**
+         * @return false if the flight was cancelled and can't be joined anymore
+         */
+        synchronized boolean join() {
+            if (mDone || isCancelled()) {
+                return false;
+            }
+            mReferences++;
+            return true;
+        }
+
+        synchronized V await() {
+            while (!mDone) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    mReferences--;
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return mValue;
+        }
+
+        synchronized void complete(final V value) {
+            mValue = value;
+            mAbandoned = mLeaderReleased || mLeader.isInterrupted();
+            mDone = true;
+            notifyAll();
+        }
+
+        /**
+         * @return true if the requester loading the value gave up on it, the value of the flight
+         * isn't the outcome of the load
+         */
+        synchronized boolean isAbandoned() {
+            return mAbandoned;
+        }
+    }
+
+    private final HashMap<String, Flight<V>> mFlights = new HashMap<String, Flight<V>>();
+    private final AtomicInteger mCoalescedCount = new AtomicInteger();
+
+    /**
+     * Load the value for a key, or wait for the load already in flight for it.
+     *
+     * @param key identifies the resource, e.g. its URL
+     * @param loader loads the value if no load is in flight
+     * @return the value, or null if it couldn't be loaded or the wait was interrupted
+     */
+    public V get(final String key, final Loader<V> loader) {
+        Flight<V> flight;
+        while (true) {
+            final boolean leader;
+            synchronized (mFlights) {
+                final Flight<V> inFlight = mFlights.get(key);
+                leader = inFlight == null || !inFlight.join();
+                if (leader) {
+                    flight = new Flight<V>(Thread.currentThread());
+                    mFlights.put(key, flight);
+                } else {
+                    mCoalescedCount.incrementAndGet();
+                    flight = inFlight;
+                }
+            }
+            if (leader) {
+                break;
+            }
+            final V value = flight.await();
+            if (value != null || !flight.isAbandoned() || Thread.currentThread().isInterrupted()) {
+                return value;
+            }
+            // The leader gave up before the load completed, take it over
+        }
+
+        V value = null;
+        try {
+            value = loader.load(flight);
+        } finally {
+            synchronized (mFlights) {
+                if (mFlights.get(key) == flight) {
+                    mFlights.remove(key);
+                }
+            }
+            flight.complete(value);
+        }
+        return value;
+    }
+
+    /**
+     * @return the number of requests that were served by a load already in flight
+     */
+    public int getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+}
@@ -4,6 +4,9 @@ import android.graphics.Canvas;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LongSparseArray;
+import android.text.TextUtils;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.views.util.Projection;
 import java.util.ArrayList;
@@ -12,15 +15,37 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
  * A class that will loop around all the map tiles in the given viewport.
+ *
+ * The loop runs on every frame, so it doesn't allocate once warm: the {@link MapTile} keys are
+ * kept from one frame to the next, indexed by their packed coordinates, and reused together
+ * with the cache key strings they have built.
  */
 public abstract class TileLooper {
 
+    /**
+     * Number of tile keys kept between frames, a few screens worth
+     */
+    private static final int MAX_POOLED_TILES = 256;
+
     protected final Point mUpperLeft = new Point();
     protected final Point mLowerRight = new Point();
     protected final Point center = new Point();
     protected List<CacheableBitmapDrawable> mBeingUsedDrawables =
             new ArrayList<CacheableBitmapDrawable>();
 
+    private final LongSparseArray<MapTile> mTilePool = new LongSparseArray<MapTile>();
+    private String mTilePoolCacheKey;
+    private Handler mHandler;
+    private final Runnable mReleaseDrawables = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < mBeingUsedDrawables.size(); i++) {
+                mBeingUsedDrawables.get(i).setBeingUsed(false);
+            }
+            mBeingUsedDrawables.clear();
+        }
+    };
+
     public final int loop(final Canvas pCanvas, final String pCacheKey, final float pZoomLevel,
             final int pTileSizePx, final Rect pViewPort, final Rect pClipRect) {
         // Calculate the amount of tiles needed for each side around the center one.
@@ -42,7 +67,7 @@ public abstract class TileLooper {
             for (int x = mUpperLeft.x; x <= mLowerRight.x; x++) {
                 tileY = GeometryMath.mod(y, mapTileUpperBound);
                 tileX = GeometryMath.mod(x, mapTileUpperBound);
-                final MapTile tile = new MapTile(pCacheKey, roundedZoom, tileX, tileY);
+                final MapTile tile = obtainTile(pCacheKey, roundedZoom, tileX, tileY);
                 handleTile(pCanvas, pCacheKey, pTileSizePx, tile, x, y, pClipRect);
             }
         }
@@ -52,21 +77,45 @@ public abstract class TileLooper {
         return  (mLowerRight.y - mUpperLeft.y) * (mLowerRight.x - mUpperLeft.x);
     }
 
+    /**
+     * Get the key for a tile, reusing the one handed out in a previous frame if there is one.
+     *
+     * @param pCacheKey the cache key of the tile source
+     * @param pZoomLevel zoom level
+     * @param pTileX x coordinate
+     * @param pTileY y coordinate
+     * @return the tile
+     */
+    protected MapTile obtainTile(final String pCacheKey, final int pZoomLevel, final int pTileX,
+            final int pTileY) {
+        if (!TextUtils.equals(pCacheKey, mTilePoolCacheKey)) {
+            mTilePool.clear();
+            mTilePoolCacheKey = pCacheKey;
+        }
+        final long key = MapTile.getKey(pZoomLevel, pTileX, pTileY);
+        MapTile tile = mTilePool.get(key);
+        if (tile == null) {
+            tile = new MapTile(pCacheKey, pZoomLevel, pTileX, pTileY);
+            mTilePool.put(key, tile);
+        }
+        return tile;
+    }
+
     public abstract void initializeLoop(float pZoomLevel, int pTileSizePx);
 
     public abstract void handleTile(Canvas pCanvas, final String pCacheKey, int pTileSizePx,
             MapTile pTile, int pX, int pY, final Rect pClipRect);
 
     public void finalizeLoop() {
+        if (mTilePool.size() > MAX_POOLED_TILES) {
+            mTilePool.clear();
+        }
         //we delay just to make sure drawable bitmaps are not reused while being drawn.
-        (new Handler()).postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                for (CacheableBitmapDrawable drawable : mBeingUsedDrawables) {
-                    drawable.setBeingUsed(false);
-                }
-                mBeingUsedDrawables.clear();
-            }
-        }, 1);
+        //loops may run off the UI thread, the drawables are released on it either way.
+        if (mHandler == null) {
+            mHandler = new Handler(Looper.getMainLooper());
+        }
+        mHandler.removeCallbacks(mReleaseDrawables);
+        mHandler.postDelayed(mReleaseDrawables, 1);
     }
 }
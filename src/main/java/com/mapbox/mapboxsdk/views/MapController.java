@@ -37,6 +37,10 @@ public class MapController implements MapViewConstants {
     private ILatLng zoomOnLatLong = null;
     private PointF zoomDeltaScroll = new PointF();
     private ILatLng animateToTargetPoint = null;
+    // Where the animation in progress ends: the zoom level, and the scroll point in map pixels
+    // at that zoom level
+    private final PointF mAnimationScrollTarget = new PointF();
+    private float mAnimationTargetZoom = -1;
     private boolean mCurrentlyUserAction = false;
     private ILatLng mPointToGoTo = null;
     private float mZoomToZoomTo = -1;
@@ -187,6 +191,7 @@ public class MapController implements MapViewConstants {
             if (mCurrentAnimation != null) {
                 mCurrentAnimation.cancel();
             }
+            mAnimationTargetZoom = -1;
             mMapView.setZoomInternal(mMapView.getAnimatedZoom());
             if (jumpToTarget && zoomOnLatLong != null) {
                 goTo(zoomOnLatLong, zoomDeltaScroll);
@@ -246,6 +251,15 @@ public class MapController implements MapViewConstants {
         float factor = (float) Math.pow(2, targetZoom - currentZoom);
         propertiesList.add(PropertyValuesHolder.ofFloat("scale", 1.0f, factor));
 
+        // The map is scaled about p, which ends up at the center if moving, or stays in place
+        mAnimationTargetZoom = targetZoom;
+        if (zoomAndMove) {
+            mAnimationScrollTarget.set(p.x * factor, p.y * factor);
+        } else {
+            mAnimationScrollTarget.set(p.x * factor + dCurrentScroll.x - p.x,
+                    p.y * factor + dCurrentScroll.y - p.y);
+        }
+
         if (zoomAndMove) {
             PointEvaluator evaluator = new PointEvaluator();
             propertiesList.add(PropertyValuesHolder.ofObject("scrollPoint", evaluator, p));
@@ -367,11 +381,37 @@ public class MapController implements MapViewConstants {
         return zoomOutAbout(latlong, false);
     }
 
+    /**
+     * Where the animation in progress ends, so its tiles can be loaded ahead of time.
+     *
+     * @param out receives the scroll point the animation ends at, in map pixels at the target
+     *            zoom level
+     * @return the target zoom level, or -1 if the map isn't animating
+     */
+    public float getAnimationTarget(final PointF out) {
+        if (mAnimationTargetZoom < 0 || !mMapView.isAnimating()) {
+            return -1;
+        }
+        out.set(mAnimationScrollTarget);
+        return mAnimationTargetZoom;
+    }
+
+    /**
+     * Where the pan animation in progress is headed, so its tiles can be loaded ahead of time.
+     *
+     * @param out receives the scroll point the animation ends at, in map pixels
+     * @return false if the map isn't panning without zooming
+     */
+    public boolean getAnimationScrollTarget(final PointF out) {
+        return getAnimationTarget(out) == mMapView.getZoomLevel(false);
+    }
+
     protected void onAnimationStart() {
         mMapView.setIsAnimating(true);
     }
 
     public void onAnimationEnd() {
+        mAnimationTargetZoom = -1;
         stopPanning();
         mMapView.setIsAnimating(false);
         mMapView.setZoomInternal(mMapView.getAnimatedZoom(), zoomOnLatLong, zoomDeltaScroll);
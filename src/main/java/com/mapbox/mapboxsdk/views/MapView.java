@@ -788,6 +788,30 @@ public class MapView extends ViewGroup implements MapViewConstants, MapEventsRec
         return mScroller;
     }
 
+    /**
+     * How far the map still scrolls before the fling or pan animation in progress ends, used to
+     * load the tiles ahead of the map.
+     *
+     * @param out receives the distance, in map pixels at the current zoom level
+     * @return false if the map isn't flinging or panning to a known target
+     */
+    public boolean getPendingScroll(final PointF out)
+    {
+        if (mIsFlinging && !mScroller.isFinished())
+        {
+            out.set(mScroller.getFinalX() - mScroller.getCurrX(),
+                    mScroller.getFinalY() - mScroller.getCurrY());
+            return true;
+        }
+        if (getController().getAnimationScrollTarget(out))
+        {
+            final PointF scrollPoint = getScrollPoint();
+            out.offset(-scrollPoint.x, -scrollPoint.y);
+            return true;
+        }
+        return false;
+    }
+
     public Handler getTileRequestCompleteHandler()
     {
         return mTileRequestCompleteHandler;
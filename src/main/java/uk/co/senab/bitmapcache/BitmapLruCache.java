@@ -20,10 +20,11 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Looper;
 import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.util.SimpleArrayMap;
 import android.util.Log;
 
 import com.jakewharton.disklrucache.DiskLruCache;
@@ -36,10 +37,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -115,6 +118,18 @@ public class BitmapLruCache {
     // flushed
     static final int DISK_CACHE_FLUSH_DELAY_SECS = 5;
 
+    /**
+     * How long a disk cache read or write waits for the disk cache to finish opening before it
+     * carries on without it
+     */
+    static final long DISK_CACHE_OPEN_TIMEOUT_MS = 500;
+
+    // Every disk cache entry holds the encoded image and a free-form metadata string
+    static final int DISK_CACHE_APP_VERSION = 1;
+    static final int DISK_CACHE_VALUE_COUNT = 2;
+    static final int DISK_CACHE_INDEX_DATA = 0;
+    static final int DISK_CACHE_INDEX_METADATA = 1;
+
     /**
      * @throws IllegalStateException if the calling thread is the main/UI thread.
      */
@@ -151,7 +166,7 @@ public class BitmapLruCache {
     /**
      * Disk Cache Variables
      */
-    private DiskLruCache mDiskCache;
+    private volatile NamespacedDiskCache mDiskCache;
 
     // Variables which are only used when the Disk Cache is enabled
     private HashMap<String, ReentrantLock> mDiskCacheEditLocks;
@@ -163,6 +178,20 @@ public class BitmapLruCache {
     // Transient
     private ScheduledFuture<?> mDiskCacheFuture;
 
+    // Counted down once the disk cache being opened is ready, null when not opening
+    private volatile CountDownLatch mDiskCacheOpenLatch;
+
+    // Startup metrics
+    private volatile long mDiskCacheOpenMillis = -1;
+    private final AtomicLong mDiskCacheWaitMillis = new AtomicLong();
+    private final AtomicInteger mDiskCacheWaitCount = new AtomicInteger();
+    private final AtomicInteger mDiskCacheWaitTimeoutCount = new AtomicInteger();
+
+    private boolean mDiskCacheCloseRequested;
+
+    // Quotas of the disk cache namespaces, applied whenever the disk cache is opened
+    private final SimpleArrayMap<String, Long> mDiskCacheQuotas = new SimpleArrayMap<String, Long>();
+
     BitmapLruCache(Context context) {
         if (null != context) {
             // Make sure we have the application context
@@ -194,13 +223,20 @@ public class BitmapLruCache {
      *         false} otherwise.
      */
     public boolean containsInDiskCache(String url) {
-        if (null != mDiskCache) {
+        final NamespacedDiskCache diskCache = getDiskCache();
+        if (null != diskCache) {
             checkNotOnMainThread();
 
+            DiskLruCache.Snapshot snapshot = null;
             try {
-                return null != mDiskCache.get(transformUrlForDiskCacheKey(url));
+                snapshot = diskCache.get(url);
+                return null != snapshot;
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                if (null != snapshot) {
+                    snapshot.close();
+                }
             }
         }
 
@@ -263,15 +299,32 @@ public class BitmapLruCache {
      */
     public CacheableBitmapDrawable getFromDiskCache(final String url,
             final BitmapFactory.Options decodeOpts) {
+        return getFromDiskCache(url, decodeOpts, 0);
+    }
+
+    /**
+     * Returns the value for {@code url} in the disk cache only, decoded no larger than needed.
+     * You should not call this method from main/UI thread.
+     *
+     * @param url        - String representing the URL of the image
+     * @param decodeOpts - Options used for decoding the contents from the disk cache.
+     * @param targetSize - if greater than 0, the image is subsampled by a power of two as long as
+     *                   it stays at least this wide and high
+     * @return Value for {@code url} from disk cache, or {@code null} if the disk cache is not
+     *         enabled.
+     */
+    public CacheableBitmapDrawable getFromDiskCache(final String url,
+            final BitmapFactory.Options decodeOpts, final int targetSize) {
         CacheableBitmapDrawable result = null;
 
-        if (null != mDiskCache) {
+        final NamespacedDiskCache diskCache = getDiskCache();
+        if (null != diskCache) {
             checkNotOnMainThread();
 
             try {
-                final String key = transformUrlForDiskCacheKey(url);
                 // Try and decode bitmap
-                result = decodeBitmapToDrawable(new SnapshotInputStreamProvider(key), url, decodeOpts);
+                result = decodeBitmapToDrawable(new SnapshotInputStreamProvider(diskCache, url), url,
+                        decodeOpts, targetSize);
 
                 if (null != result) {
                     if (null != mMemoryCache) {
@@ -280,7 +333,7 @@ public class BitmapLruCache {
                 } else {
                     // If we get here, the file in the cache can't be
                     // decoded. Remove it and schedule a flush.
-                    mDiskCache.remove(key);
+                    diskCache.remove(url);
                     scheduleDiskCacheFlush();
                 }
             } catch (IOException e) {
@@ -304,14 +357,13 @@ public class BitmapLruCache {
         CacheableBitmapDrawable result = null;
 
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                result = mMemoryCache.get(url);
+            // Lookups don't lock, this is called for every tile drawn
+            result = mMemoryCache.get(url);
 
-                // If we get a value, but it has a invalid bitmap, remove it
-                if (null != result && !result.isBitmapValid()) {
-                    mMemoryCache.remove(url);
-                    result = null;
-                }
+            // If we get a value, but it has a invalid bitmap, remove it
+            if (null != result && !result.isBitmapValid()) {
+                mMemoryCache.remove(url, result);
+                result = null;
             }
         }
 
@@ -320,19 +372,46 @@ public class BitmapLruCache {
 
 
     public Bitmap getBitmapFromRemoved(final int width, final int height) {
+        return getBitmapFromRemoved(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Take a bitmap nobody draws anymore out of the bitmap pool, to draw into it instead of
+     * allocating a new one.
+     *
+     * @return a transparent bitmap of exactly this size and config, or null
+     */
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                return mMemoryCache.getBitmapFromRemoved(width, height);
-            }
+            return mMemoryCache.getBitmapFromRemoved(width, height, config);
         }
         return null;
     }
 
+    /**
+     * Give a bitmap that won't be drawn anymore to the bitmap pool.
+     *
+     * @param bitmap a bitmap the caller doesn't use afterwards
+     * @return true if the bitmap was pooled
+     */
+    public boolean releaseBitmap(final Bitmap bitmap) {
+        final BitmapPool pool = getBitmapPool();
+        return null != pool && pool.put(bitmap);
+    }
+
+    /**
+     * @return the pool of reusable bitmaps, or null if bitmaps can't be reused on this device
+     */
+    public BitmapPool getBitmapPool() {
+        return null != mMemoryCache ? mMemoryCache.getBitmapPool() : null;
+    }
+
     /**
      * @return true if the Disk Cache is enabled.
      */
     public boolean isDiskCacheEnabled() {
-        return null != mDiskCache;
+        return null != mDiskCache || null != mDiskCacheOpenLatch;
     }
 
     /**
@@ -390,9 +469,7 @@ public class BitmapLruCache {
     public CacheableBitmapDrawable putInMemoryCache(final String url, final CacheableBitmapDrawable drawable,
                                                     Bitmap.CompressFormat compressFormat, int compressQuality) {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.put(drawable);
-            }
+            mMemoryCache.put(drawable);
         }
         return drawable;
     }
@@ -417,7 +494,8 @@ public class BitmapLruCache {
     public CacheableBitmapDrawable putInDiskCache(final String url, final CacheableBitmapDrawable drawable,
                                                   Bitmap.CompressFormat compressFormat, int compressQuality) {
 
-        if (null != mDiskCache) {
+        final NamespacedDiskCache diskCache = getDiskCache();
+        if (null != diskCache) {
             checkNotOnMainThread();
 
             final String key = transformUrlForDiskCacheKey(url);
@@ -427,10 +505,11 @@ public class BitmapLruCache {
             OutputStream os = null;
 
             try {
-                DiskLruCache.Editor editor = mDiskCache.edit(key);
-                os = editor.newOutputStream(0);
+                DiskLruCache.Editor editor = diskCache.edit(url);
+                os = editor.newOutputStream(DISK_CACHE_INDEX_DATA);
                 drawable.getBitmap().compress(compressFormat, compressQuality, os);
                 os.flush();
+                editor.set(DISK_CACHE_INDEX_METADATA, "");
                 editor.commit();
             } catch (IOException e) {
                 Log.e(Constants.LOG_TAG, "Error while writing to disk cache", e);
@@ -444,6 +523,49 @@ public class BitmapLruCache {
         return drawable;
     }
 
+    /**
+     * Caches the encoded image {@code data} for {@code url} in the disk cache as-is, without
+     * decoding or re-compressing it. <p/> You should not call this method from main/UI thread.
+     *
+     * @param url  - String representing the URL of the image.
+     * @param data - the original encoded bytes of the image.
+     * @return {@code true} if the data was written to the disk cache.
+     */
+    public boolean putInDiskCache(final String url, final byte[] data) {
+        final NamespacedDiskCache diskCache = getDiskCache();
+        if (null == diskCache || null == data) {
+            return false;
+        }
+        checkNotOnMainThread();
+
+        final String key = transformUrlForDiskCacheKey(url);
+        final ReentrantLock lock = getLockForDiskCacheEdit(key);
+        lock.lock();
+
+        OutputStream os = null;
+        boolean written = false;
+
+        try {
+            DiskLruCache.Editor editor = diskCache.edit(url);
+            if (null != editor) {
+                os = editor.newOutputStream(DISK_CACHE_INDEX_DATA);
+                os.write(data);
+                os.flush();
+                editor.set(DISK_CACHE_INDEX_METADATA, "");
+                editor.commit();
+                written = true;
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error while writing to disk cache", e);
+        } finally {
+            IoUtils.closeStream(os);
+            lock.unlock();
+            scheduleDiskCacheFlush();
+        }
+
+        return written;
+    }
+
     public CacheableBitmapDrawable putInDiskCache(final String url, final Bitmap bitmap,
                                        Bitmap.CompressFormat compressFormat, int compressQuality) {
 
@@ -496,7 +618,7 @@ public class BitmapLruCache {
             final BitmapFactory.Options decodeOpts) {
         checkNotOnMainThread();
 
-        if (null == mDiskCache) {
+        if (null == getDiskCache()) {
             // shortcut to avoid temporary storage on disk
             CacheableBitmapDrawable d = decodeBitmapToDrawable(new ByteArrayInputStreamProvider(data), url,
                     decodeOpts);
@@ -562,19 +684,19 @@ public class BitmapLruCache {
             if (d != null) {
                 if (null != mMemoryCache) {
                     d.setCached(true);
-                    synchronized (mMemoryCache) {
-                        mMemoryCache.put(d.getUrl(), d);
-                    }
+                    mMemoryCache.put(d.getUrl(), d);
                 }
 
-                if (null != mDiskCache) {
+                final NamespacedDiskCache diskCache = getDiskCache();
+                if (null != diskCache) {
                     final String key = transformUrlForDiskCacheKey(url);
-                    final ReentrantLock lock = getLockForDiskCacheEdit(url);
+                    final ReentrantLock lock = getLockForDiskCacheEdit(key);
                     lock.lock();
 
                     try {
-                        DiskLruCache.Editor editor = mDiskCache.edit(key);
-                        IoUtils.copy(tmpFile, editor.newOutputStream(0));
+                        DiskLruCache.Editor editor = diskCache.edit(url);
+                        IoUtils.copy(tmpFile, editor.newOutputStream(DISK_CACHE_INDEX_DATA));
+                        editor.set(DISK_CACHE_INDEX_METADATA, "");
                         editor.commit();
                     } catch (IOException e) {
                         Log.e(Constants.LOG_TAG, "Error writing to disk cache. URL: " + url, e);
@@ -592,22 +714,99 @@ public class BitmapLruCache {
         return d;
     }
 
+    /**
+     * Returns the metadata string stored next to the disk cache entry for {@code url}. You should
+     * not call this method from main/UI thread.
+     *
+     * @param url - String representing the URL of the image
+     * @return the metadata, or {@code null} if the disk cache is not enabled or has no entry.
+     */
+    public String getDiskCacheMetadata(final String url) {
+        final NamespacedDiskCache diskCache = getDiskCache();
+        if (null != diskCache) {
+            checkNotOnMainThread();
+
+            DiskLruCache.Snapshot snapshot = null;
+            try {
+                snapshot = diskCache.get(url);
+                if (null != snapshot) {
+                    return snapshot.getString(DISK_CACHE_INDEX_METADATA);
+                }
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG, "Error while reading disk cache metadata", e);
+            } finally {
+                if (null != snapshot) {
+                    snapshot.close();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Replaces the metadata string stored next to an existing disk cache entry for {@code url},
+     * leaving the cached image untouched. You should not call this method from main/UI thread.
+     *
+     * @param url      - String representing the URL of the image
+     * @param metadata - the new metadata
+     * @return {@code true} if the metadata was written.
+     */
+    public boolean putDiskCacheMetadata(final String url, final String metadata) {
+        final NamespacedDiskCache diskCache = getDiskCache();
+        if (null == diskCache) {
+            return false;
+        }
+        checkNotOnMainThread();
+
+        final String key = transformUrlForDiskCacheKey(url);
+        final ReentrantLock lock = getLockForDiskCacheEdit(key);
+        lock.lock();
+
+        DiskLruCache.Editor editor = null;
+        try {
+            DiskLruCache.Snapshot snapshot = diskCache.get(url);
+            if (null == snapshot) {
+                // Only existing entries can be updated, there is no image to go with it
+                return false;
+            }
+            snapshot.close();
+
+            editor = diskCache.edit(url);
+            if (null == editor) {
+                return false;
+            }
+            editor.set(DISK_CACHE_INDEX_METADATA, null != metadata ? metadata : "");
+            editor.commit();
+            editor = null;
+            return true;
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error while writing disk cache metadata", e);
+        } finally {
+            if (null != editor) {
+                editor.abortUnlessCommitted();
+            }
+            lock.unlock();
+            scheduleDiskCacheFlush();
+        }
+        return false;
+    }
+
     /**
      * Removes the entry for {@code url} from all enabled caches, if it exists. <p/> If you have the
      * disk cache enabled, you should not call this method from main/UI thread.
      */
     public void remove(String url) {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.remove(url);
-            }
+            mMemoryCache.remove(url);
         }
 
-        if (null != mDiskCache) {
+        final NamespacedDiskCache diskCache = getDiskCache();
+        if (null != diskCache) {
             checkNotOnMainThread();
 
             try {
-                mDiskCache.remove(transformUrlForDiskCacheKey(url));
+                diskCache.remove(url);
                 scheduleDiskCacheFlush();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -620,9 +819,7 @@ public class BitmapLruCache {
      */
     public void removeFromMemoryCache(String url) {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.remove(url);
-            }
+            mMemoryCache.remove(url);
         }
     }
 
@@ -630,11 +827,12 @@ public class BitmapLruCache {
      * Removes the entry for {@code url} from disk cache, if it exists. <p/> You should not call this method from main/UI thread.
      */
     public void removeFromDiskCache(String url) {
-        if (null != mDiskCache) {
+        final NamespacedDiskCache diskCache = getDiskCache();
+        if (null != diskCache) {
             checkNotOnMainThread();
 
             try {
-                mDiskCache.remove(transformUrlForDiskCacheKey(url));
+                diskCache.remove(url);
                 scheduleDiskCacheFlush();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -653,39 +851,195 @@ public class BitmapLruCache {
      */
     public void trimMemory() {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.trimMemory();
-            }
+            mMemoryCache.trimMemory();
         }
     }
 
     public void purgeMemoryCache() {
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.evictAll();
-            }
+            mMemoryCache.evictAll();
         }
     }
 
     public void purgeDiskCache() {
-        if (null != mDiskCache) {
+        final NamespacedDiskCache diskCache = getDiskCache();
+        if (null != diskCache) {
             checkNotOnMainThread();
             try {
-                mDiskCache.delete();
+                diskCache.delete();
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
         }
     }
 
-    synchronized void setDiskCache(DiskLruCache diskCache) {
-        mDiskCache = diskCache;
-
+    synchronized void setDiskCache(NamespacedDiskCache diskCache) {
         if (null != diskCache) {
-            mDiskCacheEditLocks = new HashMap<String, ReentrantLock>();
+            if (null == mDiskCacheEditLocks) {
+                mDiskCacheEditLocks = new HashMap<String, ReentrantLock>();
+            }
             mDiskCacheFlusherExecutor = new ScheduledThreadPoolExecutor(1);
             mDiskCacheFlusherRunnable = new DiskCacheFlushRunnable(diskCache);
         }
+        mDiskCache = diskCache;
+    }
+
+    /**
+     * Opens the disk cache in {@code location} on a background thread, the namespaces already
+     * on disk are read before the disk cache is used. Does nothing if it is already open.
+     *
+     * @param location     - a read-writeable directory
+     * @param defaultQuota - maximum size in bytes of each namespace without a quota of its own
+     */
+    public synchronized void openDiskCache(final File location, final long defaultQuota) {
+        if (null != mDiskCacheOpenLatch) {
+            // Reopened before the pending open completed, keep it open after all
+            mDiskCacheCloseRequested = false;
+            return;
+        }
+        if (null != mDiskCache) {
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        mDiskCacheOpenLatch = latch;
+        final NamespacedDiskCache diskCache = new NamespacedDiskCache(location,
+                DISK_CACHE_APP_VERSION, DISK_CACHE_VALUE_COUNT, defaultQuota);
+        applyDiskCacheQuotas(diskCache);
+        final long start = SystemClock.elapsedRealtime();
+        // Not a background priority thread: the first tiles drawn wait for it
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                diskCache.warm();
+                synchronized (BitmapLruCache.this) {
+                    mDiskCacheOpenLatch = null;
+                    latch.countDown();
+                    if (mDiskCacheCloseRequested) {
+                        mDiskCacheCloseRequested = false;
+                        closeQuietly(diskCache);
+                        return;
+                    }
+                    setDiskCache(diskCache);
+                    // Quotas set while opening
+                    applyDiskCacheQuotas(diskCache);
+                }
+                mDiskCacheOpenMillis = SystemClock.elapsedRealtime() - start;
+                Log.i(Constants.LOG_TAG, "Disk cache opened in " + mDiskCacheOpenMillis + "ms");
+            }
+        }, "BitmapLruCache disk cache").start();
+    }
+
+    /**
+     * Returns the disk cache. While it is being opened this waits for it, at most {@link
+     * #DISK_CACHE_OPEN_TIMEOUT_MS}, so that the tiles requested right after start up can still
+     * be found on disk. Never waits on the main thread.
+     */
+    private NamespacedDiskCache getDiskCache() {
+        final CountDownLatch latch = mDiskCacheOpenLatch;
+        if (null != latch && Looper.myLooper() != Looper.getMainLooper()) {
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                if (!latch.await(DISK_CACHE_OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    mDiskCacheWaitTimeoutCount.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mDiskCacheWaitCount.incrementAndGet();
+            mDiskCacheWaitMillis.addAndGet(SystemClock.elapsedRealtime() - start);
+        }
+        return mDiskCache;
+    }
+
+    private void applyDiskCacheQuotas(NamespacedDiskCache diskCache) {
+        for (int i = 0; i < mDiskCacheQuotas.size(); i++) {
+            diskCache.setQuota(mDiskCacheQuotas.keyAt(i), mDiskCacheQuotas.valueAt(i));
+        }
+    }
+
+    /**
+     * @return how long the last disk cache took to open, in milliseconds, or -1 if none was
+     * opened yet
+     */
+    public long getDiskCacheOpenMillis() {
+        return mDiskCacheOpenMillis;
+    }
+
+    /**
+     * @return the total time reads and writes spent waiting for the disk cache to open, in
+     * milliseconds
+     */
+    public long getDiskCacheWaitMillis() {
+        return mDiskCacheWaitMillis.get();
+    }
+
+    /**
+     * @return the number of reads and writes that waited for the disk cache to open
+     */
+    public int getDiskCacheWaitCount() {
+        return mDiskCacheWaitCount.get();
+    }
+
+    /**
+     * @return the number of reads and writes that gave up waiting for the disk cache to open
+     */
+    public int getDiskCacheWaitTimeoutCount() {
+        return mDiskCacheWaitTimeoutCount.get();
+    }
+
+    /**
+     * Flushes and closes the disk cache, the memory cache stays as it is.
+     */
+    public synchronized void closeDiskCache() {
+        if (null != mDiskCacheOpenLatch) {
+            mDiskCacheCloseRequested = true;
+            return;
+        }
+        final NamespacedDiskCache diskCache = mDiskCache;
+        if (null == diskCache) {
+            return;
+        }
+        mDiskCache = null;
+        if (null != mDiskCacheFuture) {
+            mDiskCacheFuture.cancel(false);
+            mDiskCacheFuture = null;
+        }
+        // Closed after the edits already handed to the flusher
+        mDiskCacheFlusherExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeQuietly(diskCache);
+            }
+        });
+        mDiskCacheFlusherExecutor.shutdown();
+    }
+
+    /**
+     * Sets the maximum size in bytes of a disk cache namespace. The namespace of a url is the
+     * part before its first '/'.
+     */
+    public synchronized void setDiskCacheQuota(final String namespace, final long maxSize) {
+        mDiskCacheQuotas.put(namespace, maxSize);
+        if (null != mDiskCache) {
+            mDiskCache.setQuota(namespace, maxSize);
+        }
+    }
+
+    /**
+     * Sets the maximum size in bytes of the disk cache namespaces without a quota of their own.
+     */
+    public synchronized void setDefaultDiskCacheQuota(final long maxSize) {
+        if (null != mDiskCache) {
+            mDiskCache.setDefaultQuota(maxSize);
+        }
+    }
+
+    private static void closeQuietly(NamespacedDiskCache diskCache) {
+        try {
+            diskCache.close();
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error closing disk cache", e);
+        }
     }
 
     void setMemoryCache(BitmapMemoryLruCache memoryCache) {
@@ -704,7 +1058,12 @@ public class BitmapLruCache {
         }
     }
 
-    private void scheduleDiskCacheFlush() {
+    private synchronized void scheduleDiskCacheFlush() {
+        if (null == mDiskCache) {
+            // Closed in the meantime, closing flushes
+            return;
+        }
+
         // If we already have a flush scheduled, cancel it
         if (null != mDiskCacheFuture) {
             mDiskCacheFuture.cancel(false);
@@ -726,16 +1085,38 @@ public class BitmapLruCache {
 
     private CacheableBitmapDrawable decodeBitmapToDrawable(InputStreamProvider ip, String url,
             BitmapFactory.Options opts) {
+        return decodeBitmapToDrawable(ip, url, opts, 0);
+    }
+
+    private CacheableBitmapDrawable decodeBitmapToDrawable(InputStreamProvider ip, String url,
+            BitmapFactory.Options opts, int targetSize) {
         AtomicInteger source = new AtomicInteger(0);
-        Bitmap result = decodeBitmap(ip, opts, source);
+        Bitmap result = decodeBitmap(ip, opts, source, targetSize);
         return createCacheableBitmapDrawable(result, url, source.get());
     }
 
     public Bitmap decodeBitmap(InputStreamProvider ip, BitmapFactory.Options opts) {
-        return decodeBitmap(ip, opts, null);
+        return decodeBitmap(ip, opts, null, 0);
+    }
+
+    /**
+     * Decodes an image no larger than needed, reusing a bitmap from the pool when possible.
+     *
+     * @param targetSize - if greater than 0, the image is subsampled by a power of two as long as
+     *                   it stays at least this wide and high
+     */
+    public Bitmap decodeBitmap(InputStreamProvider ip, BitmapFactory.Options opts,
+            int targetSize) {
+        return decodeBitmap(ip, opts, null, targetSize);
     }
+
     public Bitmap decodeBitmap(InputStreamProvider ip, BitmapFactory.Options opts,
                                AtomicInteger source) {
+        return decodeBitmap(ip, opts, source, 0);
+    }
+
+    private Bitmap decodeBitmap(InputStreamProvider ip, BitmapFactory.Options opts,
+                                AtomicInteger source, int targetSize) {
         Bitmap bm = null;
         InputStream is = null;
         if (source != null) {
@@ -743,6 +1124,13 @@ public class BitmapLruCache {
         }
 
         try {
+            if (targetSize > 0) {
+                if (opts == null) {
+                    opts = new BitmapFactory.Options();
+                }
+                opts.inSampleSize = calculateInSampleSize(ip, opts, targetSize);
+            }
+
             if (mRecyclePolicy.canInBitmap()) {
                 // Create an options instance if we haven't been provided with one
                 if (opts == null) {
@@ -751,7 +1139,10 @@ public class BitmapLruCache {
 
                 if (opts.inSampleSize <= 1) {
                     opts.inSampleSize = 1;
-
+                }
+                // Before KitKat only images decoded at full size can reuse a bitmap
+                if (opts.inSampleSize == 1
+                        || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
                     if (addInBitmapOptions(ip, opts) && source != null) {
                         source.set(CacheableBitmapDrawable.SOURCE_INBITMAP);
                     }
@@ -773,13 +1164,23 @@ public class BitmapLruCache {
             IoUtils.closeStream(is);
         }
 
+        if (null == bm && mRecyclePolicy.canInBitmap() && null != opts
+                && null != SDK11.getInBitmapOption(opts)) {
+            // The decode failed, the pooled bitmap is still good
+            releaseBitmap(SDK11.getInBitmapOption(opts));
+            SDK11.addInBitmapOption(opts, null);
+        }
+
         return bm;
     }
 
-    private boolean addInBitmapOptions(InputStreamProvider ip, BitmapFactory.Options opts) {
+    /**
+     * Decodes the size of the image into {@code opts.outWidth} and {@code opts.outHeight}, after
+     * subsampling by {@code opts.inSampleSize}.
+     */
+    private static void decodeBounds(InputStreamProvider ip, BitmapFactory.Options opts) {
         // Create InputStream for decoding the bounds
         final InputStream is = ip.getInputStream();
-        // Decode the bounds so we know what size Bitmap to look for
         opts.inJustDecodeBounds = true;
         if (is == null && ip instanceof ByteArrayInputStreamProvider) {
             byte[] data = ((ByteArrayInputStreamProvider) ip).array;
@@ -791,19 +1192,42 @@ public class BitmapLruCache {
 
         // Turn off just decoding bounds
         opts.inJustDecodeBounds = false;
+    }
+
+    /**
+     * @return the largest power of two the image can be subsampled by while staying at least
+     * {@code targetSize} wide and high
+     */
+    private static int calculateInSampleSize(InputStreamProvider ip, BitmapFactory.Options opts,
+            int targetSize) {
+        opts.inSampleSize = 1;
+        decodeBounds(ip, opts);
+
+        int sampleSize = 1;
+        while (opts.outWidth / (sampleSize * 2) >= targetSize
+                && opts.outHeight / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private boolean addInBitmapOptions(InputStreamProvider ip, BitmapFactory.Options opts) {
+        // Decode the bounds so we know what size Bitmap to look for
+        decodeBounds(ip, opts);
+
         // Make sure the decoded file is mutable
         opts.inMutable = true;
 
         // Try and find Bitmap to use for inBitmap
-        synchronized (mMemoryCache) {
-            Bitmap reusableBm = mMemoryCache.getBitmapFromRemoved(opts.outWidth, opts.outHeight);
-            if (reusableBm != null) {
-                if (Constants.DEBUG) {
-                    Log.i(Constants.LOG_TAG, "Using inBitmap");
-                }
-                SDK11.addInBitmapOption(opts, reusableBm);
-                return true;
+        final Bitmap.Config config = null != opts.inPreferredConfig
+                ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        Bitmap reusableBm = mMemoryCache.getBitmapFromRemoved(opts.outWidth, opts.outHeight, config);
+        if (reusableBm != null) {
+            if (Constants.DEBUG) {
+                Log.i(Constants.LOG_TAG, "Using inBitmap");
             }
+            SDK11.addInBitmapOption(opts, reusableBm);
+            return true;
         }
 
 
@@ -896,24 +1320,7 @@ public class BitmapLruCache {
             }
 
             if (isValidOptionsForDiskCache()) {
-                new AsyncTask<Void, Void, DiskLruCache>() {
-
-                    @Override
-                    protected DiskLruCache doInBackground(Void... params) {
-                        try {
-                            return DiskLruCache.open(mDiskCacheLocation, 0, 1, mDiskCacheMaxSize);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                            return null;
-                        }
-                    }
-
-                    @Override
-                    protected void onPostExecute(DiskLruCache result) {
-                        cache.setDiskCache(result);
-                    }
-
-                }.execute();
+                cache.openDiskCache(mDiskCacheLocation, mDiskCacheMaxSize);
             }
 
             return cache;
@@ -1036,9 +1443,9 @@ public class BitmapLruCache {
 
     static final class DiskCacheFlushRunnable implements Runnable {
 
-        private final DiskLruCache mDiskCache;
+        private final NamespacedDiskCache mDiskCache;
 
-        public DiskCacheFlushRunnable(DiskLruCache cache) {
+        public DiskCacheFlushRunnable(NamespacedDiskCache cache) {
             mDiskCache = cache;
         }
 
@@ -1097,11 +1504,13 @@ public class BitmapLruCache {
         }
     }
 
-    final class SnapshotInputStreamProvider implements InputStreamProvider {
+    static final class SnapshotInputStreamProvider implements InputStreamProvider {
+        final NamespacedDiskCache mDiskCache;
         final String mKey;
 
-        SnapshotInputStreamProvider(String key) {
-            mKey = key;
+        SnapshotInputStreamProvider(NamespacedDiskCache diskCache, String url) {
+            mDiskCache = diskCache;
+            mKey = url;
         }
 
         @Override
@@ -1109,7 +1518,7 @@ public class BitmapLruCache {
             try {
                 DiskLruCache.Snapshot snapshot = mDiskCache.get(mKey);
                 if (snapshot != null) {
-                    return snapshot.getInputStream(0);
+                    return snapshot.getInputStream(DISK_CACHE_INDEX_DATA);
                 }
             } catch (IOException e) {
                 Log.e(Constants.LOG_TAG, "Could open disk cache for url: " + mKey, e);
@@ -16,34 +16,80 @@
 package uk.co.senab.bitmapcache;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
-import android.support.v4.util.LruCache;
 import android.util.Log;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
-final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawable> {
+/**
+ * The memory cache, bounded by the size in bytes of its bitmaps. Lookups are lock free: the
+ * entries live in a {@link ConcurrentHashMap} and a hit only sets the entry's referenced bit.
+ * Updates take a lock and evict with the CLOCK approximation of LRU, a referenced entry gets a
+ * second chance before it is evicted. This keeps the draw loop from contending with the threads
+ * that load tiles.
+ *
+ * When {@link android.graphics.BitmapFactory.Options#inBitmap inBitmap} can be used, the bitmaps
+ * of removed entries go to a {@link BitmapPool} as soon as they are no longer drawn.
+ */
+final class BitmapMemoryLruCache {
 
     public static final String TAG = "BitmapMemoryLruCache";
-    private final Set<SoftReference<CacheableBitmapDrawable>> mRemovedEntries;
+
+    /**
+     * Size of the bitmap pool, relative to the size of the cache
+     */
+    private static final float POOL_SIZE_RATIO = 0.25f;
+
+    private static final class Entry {
+        final String key;
+        final CacheableBitmapDrawable value;
+        final int size;
+        volatile boolean referenced;
+
+        Entry(String key, CacheableBitmapDrawable value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> mEntries;
+    // The entries in the order the clock hand visits them, guarded by mLock
+    private final ArrayDeque<Entry> mClock;
+    private final Object mLock = new Object();
+    private int mSize;
+    private int mMaxSize;
+
+    private final BitmapPool mPool;
     private final BitmapLruCache.RecyclePolicy mRecyclePolicy;
     private int largestValueSeenBytes;
 
     BitmapMemoryLruCache(int maxSize, BitmapLruCache.RecyclePolicy policy) {
-        super(maxSize);
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mEntries = new ConcurrentHashMap<String, Entry>();
+        mClock = new ArrayDeque<Entry>();
 
         mRecyclePolicy = policy;
-        mRemovedEntries = policy.canInBitmap()
-                ? Collections.synchronizedSet(new HashSet<SoftReference<CacheableBitmapDrawable>>())
-                : null;
+        mPool = policy.canInBitmap() ? new BitmapPool((int) (maxSize * POOL_SIZE_RATIO)) : null;
         largestValueSeenBytes = 0;
     }
 
+    CacheableBitmapDrawable get(String key) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.value;
+    }
+
     CacheableBitmapDrawable put(CacheableBitmapDrawable value) {
         if (null != value) {
             value.setCached(true);
@@ -54,10 +100,116 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
         return null;
     }
 
+    /**
+     * Caches {@code value} for {@code key}, evicting entries if the cache is full.
+     *
+     * @return the previous value for {@code key}, or null
+     */
+    CacheableBitmapDrawable put(String key, CacheableBitmapDrawable value) {
+        final Entry added = new Entry(key, value, sizeOf(value));
+        final Entry previous;
+        final List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (mLock) {
+            previous = mEntries.put(key, added);
+            if (previous != null) {
+                mClock.removeFirstOccurrence(previous);
+                mSize -= previous.size;
+            }
+            mClock.addLast(added);
+            mSize += added.size;
+            trimToSize(mMaxSize, evicted);
+        }
+
+        if (previous != null) {
+            entryRemoved(previous.value);
+        }
+        entriesRemoved(evicted);
+        return previous != null ? previous.value : null;
+    }
+
+    CacheableBitmapDrawable remove(String key) {
+        final Entry removed;
+        synchronized (mLock) {
+            removed = mEntries.remove(key);
+            if (removed != null) {
+                mClock.removeFirstOccurrence(removed);
+                mSize -= removed.size;
+            }
+        }
+
+        if (removed == null) {
+            return null;
+        }
+        entryRemoved(removed.value);
+        return removed.value;
+    }
+
+    /**
+     * Removes the entry for {@code key} only if it still holds {@code value}, so that a lookup
+     * racing with an update doesn't remove the newer value.
+     */
+    boolean remove(String key, CacheableBitmapDrawable value) {
+        Entry removed = null;
+        synchronized (mLock) {
+            final Entry entry = mEntries.get(key);
+            if (entry != null && entry.value == value) {
+                removed = entry;
+                mEntries.remove(key);
+                mClock.removeFirstOccurrence(removed);
+                mSize -= removed.size;
+            }
+        }
+
+        if (removed == null) {
+            return false;
+        }
+        entryRemoved(removed.value);
+        return true;
+    }
+
+    void evictAll() {
+        final List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (mLock) {
+            trimToSize(-1, evicted);
+        }
+        entriesRemoved(evicted);
+    }
+
+    int size() {
+        synchronized (mLock) {
+            return mSize;
+        }
+    }
+
+    int maxSize() {
+        synchronized (mLock) {
+            return mMaxSize;
+        }
+    }
+
+    void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        final List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (mLock) {
+            mMaxSize = maxSize;
+            trimToSize(maxSize, evicted);
+        }
+        entriesRemoved(evicted);
+    }
+
     BitmapLruCache.RecyclePolicy getRecyclePolicy() {
         return mRecyclePolicy;
     }
 
+    /**
+     * @return the pool removed bitmaps go to, or null if bitmaps can't be reused
+     */
+    BitmapPool getBitmapPool() {
+        return mPool;
+    }
+
     public void resizeMemoryForTiles(int numberOfTiles) {
         if (largestValueSeenBytes > 0 && numberOfTiles > 0) {
             float factor = numberOfTiles * 1.05f; //increase by 5%
@@ -69,82 +221,62 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
         }
     }
 
-    @Override
-    protected int sizeOf(String key, CacheableBitmapDrawable value) {
-        return value.getMemorySize();
-    }
-
-    @Override
-    protected void entryRemoved(boolean evicted, String key, CacheableBitmapDrawable oldValue,
-            CacheableBitmapDrawable newValue) {
-        // Notify the wrapper that it's no longer being cached
-        oldValue.setCached(false);
-
-        if (mRemovedEntries != null && canUseForInBitmap(oldValue)) {
-            synchronized (mRemovedEntries) {
-                mRemovedEntries.add(new SoftReference<CacheableBitmapDrawable>(oldValue));
+    /**
+     * Advance the clock hand until the cache fits in {@code maxSize}. Must hold mLock.
+     */
+    private void trimToSize(int maxSize, List<Entry> evicted) {
+        while (mSize > maxSize && !mClock.isEmpty()) {
+            final Entry entry = mClock.pollFirst();
+            if (entry.referenced && maxSize >= 0) {
+                // Used since the hand last passed, give it a second chance
+                entry.referenced = false;
+                mClock.addLast(entry);
+                continue;
             }
+            mEntries.remove(entry.key);
+            mSize -= entry.size;
+            evicted.add(entry);
         }
     }
 
-    public Bitmap getBitmapFromRemoved(final int width, final int height) {
-        if (mRemovedEntries == null) {
-            return null;
+    private static int sizeOf(CacheableBitmapDrawable value) {
+        final int size = value.getMemorySize();
+        if (size < 0) {
+            throw new IllegalStateException("Negative size: " + value.getUrl());
         }
+        return size;
+    }
 
-        Bitmap result = null;
-
-        synchronized (mRemovedEntries) {
-            final Iterator<SoftReference<CacheableBitmapDrawable>> it = mRemovedEntries.iterator();
-
-            while (it.hasNext()) {
-                CacheableBitmapDrawable value = it.next().get();
-
-                if (canUseForInBitmap(value)) {
-                    if (canUseForInBitmapForSize(value, width, height) && !value.isBeingDisplayed() && !value.isReferencedByCache()) {
-                        result = value.getBitmap();
-                        SDK12.setHasAlpha(result, true);
-                        result.eraseColor(Color.TRANSPARENT);
-                        value.setReused();
-                        it.remove();
-                        break;
-                    }
-                } else {
-                    it.remove();
-                }
-            }
+    private void entriesRemoved(List<Entry> removed) {
+        for (int i = 0; i < removed.size(); i++) {
+            entryRemoved(removed.get(i).value);
         }
-
-        return result;
     }
 
-    private static boolean canUseForInBitmap(
-            CacheableBitmapDrawable candidate) {
-        return candidate != null &&
-                candidate.isBitmapValid() &&
-                candidate.isBitmapMutable();
+    private void entryRemoved(CacheableBitmapDrawable oldValue) {
+        // Notify the wrapper that it's no longer being cached
+        oldValue.setCached(false);
+
+        // Its bitmap goes to the pool once nothing draws it anymore
+        if (mPool != null && !oldValue.isReferencedByCache() && oldValue.isBitmapValid()
+                && oldValue.isBitmapMutable()) {
+            oldValue.releaseToPoolWhenUnused(mPool);
+        }
     }
 
-    private static boolean canUseForInBitmapForSize(
-            CacheableBitmapDrawable candidate, int width, int height) {
-        return
-                candidate.getIntrinsicWidth() == width &&
-                candidate.getIntrinsicHeight() == height;
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
+        return mPool != null ? mPool.get(width, height, config) : null;
     }
 
     void trimMemory() {
-        final Set<Entry<String, CacheableBitmapDrawable>> values = snapshot().entrySet();
-
-        for (Entry<String, CacheableBitmapDrawable> entry : values) {
-            CacheableBitmapDrawable value = entry.getValue();
-            if (null == value || !value.isBeingDisplayed()) {
-                remove(entry.getKey());
+        for (Entry entry : mEntries.values()) {
+            if (!entry.value.isBeingDisplayed()) {
+                remove(entry.key, entry.value);
             }
         }
-        if (mRemovedEntries != null) {
-            synchronized (mRemovedEntries) {
-                mRemovedEntries.clear();
-            }
+        if (mPool != null) {
+            mPool.clear();
         }
     }
 }
@@ -0,0 +1,205 @@
+package uk.co.senab.bitmapcache;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A pool of bitmaps nobody draws anymore, kept so that they can be decoded into with
+ * {@link android.graphics.BitmapFactory.Options#inBitmap inBitmap} or drawn into instead of
+ * allocating new ones. Bitmaps are bucketed by width, height and config, so taking one out and
+ * putting one back are O(1). The pool is bounded by the size in bytes of its bitmaps, the least
+ * recently released are dropped first.
+ */
+public final class BitmapPool {
+
+    private static final class Key {
+        int width;
+        int height;
+        Bitmap.Config config;
+
+        Key set(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return width == other.width && height == other.height && config == other.config;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = width;
+            result = 31 * result + height;
+            result = 31 * result + (config != null ? config.hashCode() : 0);
+            return result;
+        }
+    }
+
+    private static final class Bucket {
+        final Key key;
+        // Oldest first
+        final ArrayDeque<Bitmap> bitmaps = new ArrayDeque<Bitmap>();
+
+        Bucket(Key key) {
+            this.key = key;
+        }
+    }
+
+    private final HashMap<Key, Bucket> mBuckets = new HashMap<Key, Bucket>();
+    // All pooled bitmaps in the order they were released, oldest first
+    private final LinkedHashMap<Bitmap, Bucket> mReleased = new LinkedHashMap<Bitmap, Bucket>();
+    // Only used for lookups, under the pool lock
+    private final Key mLookupKey = new Key();
+
+    private final int mMaxSize;
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize the maximum number of bytes the pooled bitmaps may use
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Take a bitmap out of the pool. It is erased to transparent before being returned.
+     *
+     * @return a bitmap of exactly this size and config, or null if the pool has none
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        final Bitmap result;
+        synchronized (this) {
+            final Bucket bucket = mBuckets.get(mLookupKey.set(width, height, config));
+            result = bucket != null ? bucket.bitmaps.pollLast() : null;
+            if (result == null) {
+                mMissCount++;
+                return null;
+            }
+            mReleased.remove(result);
+            mSize -= sizeOf(result);
+            mHitCount++;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            // Pooled from an opaque decode, the bitmap may be reused for one with alpha
+            SDK12.setHasAlpha(result, true);
+        }
+        result.eraseColor(Color.TRANSPARENT);
+        return result;
+    }
+
+    /**
+     * Give a bitmap to the pool. The caller must not use it afterwards.
+     *
+     * @return true if the bitmap was pooled, false if it can't be reused
+     */
+    public boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return false;
+        }
+        final int size = sizeOf(bitmap);
+        if (size > mMaxSize) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (mReleased.containsKey(bitmap)) {
+                return true;
+            }
+            Bucket bucket = mBuckets.get(
+                    mLookupKey.set(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()));
+            if (bucket == null) {
+                bucket = new Bucket(
+                        new Key().set(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()));
+                mBuckets.put(bucket.key, bucket);
+            }
+            bucket.bitmaps.addLast(bitmap);
+            mReleased.put(bitmap, bucket);
+            mSize += size;
+            mPutCount++;
+            trimToSize(mMaxSize);
+        }
+        return true;
+    }
+
+    /**
+     * Drop all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        trimToSize(-1);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mSize, mMaxSize, mHitCount, mMissCount, hitPercent);
+    }
+
+    /**
+     * Drop the least recently released bitmaps until the pool fits in {@code maxSize}. The least
+     * recently released bitmap of a bucket is always at its head.
+     */
+    private void trimToSize(int maxSize) {
+        final Iterator<Map.Entry<Bitmap, Bucket>> it = mReleased.entrySet().iterator();
+        while (mSize > maxSize && it.hasNext()) {
+            final Map.Entry<Bitmap, Bucket> eldest = it.next();
+            final Bucket bucket = eldest.getValue();
+            bucket.bitmaps.pollFirst();
+            if (bucket.bitmaps.isEmpty()) {
+                mBuckets.remove(bucket.key);
+            }
+            mSize -= sizeOf(eldest.getKey());
+            it.remove();
+            mEvictionCount++;
+        }
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
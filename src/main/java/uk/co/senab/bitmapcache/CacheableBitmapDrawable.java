@@ -61,6 +61,9 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
 
     private boolean mReused;
 
+    // The pool the bitmap goes to once it is neither cached nor displayed
+    private BitmapPool mPool;
+
     public CacheableBitmapDrawable(String url, Resources resources, Bitmap bitmap,
             BitmapLruCache.RecyclePolicy recyclePolicy, int source) {
         super(resources, bitmap);
@@ -169,12 +172,23 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
     synchronized void setCached(boolean added) {
         if (added) {
             mCacheCount++;
+            // Cached again, keep the bitmap
+            mPool = null;
         } else {
             mCacheCount--;
         }
         checkState();
     }
 
+    /**
+     * Hand the bitmap to {@code pool} as soon as the wrapper is neither referenced by a cache nor
+     * being displayed, the wrapper can't be drawn afterwards.
+     */
+    synchronized void releaseToPoolWhenUnused(BitmapPool pool) {
+        mPool = pool;
+        checkState();
+    }
+
     /**
      * Used to signal to the wrapper that the attached bitmap has been reused.
      */
@@ -230,6 +244,16 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
                     mHasBeenDisplayed, mDisplayingCount, mCacheCount, mUrl));
         }
 
+        if (null != mPool) {
+            if (mCacheCount <= 0 && mDisplayingCount <= 0 && isBitmapValid()) {
+                final Bitmap bitmap = getBitmap();
+                mReused = true;
+                mPool.put(bitmap);
+                mPool = null;
+            }
+            return;
+        }
+
         // If the policy doesn't let us recycle, return now
         if (!mRecyclePolicy.canRecycle()) {
             return;
@@ -0,0 +1,176 @@
+package uk.co.senab.bitmapcache;
+
+import android.util.Log;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A disk cache split in namespaces, each a {@link DiskLruCache} in a directory of its own with
+ * its own size quota. The namespace of an entry is the part of its url before the first '/', so
+ * the tiles of each tile source are kept and evicted separately. Within a namespace entries are
+ * evicted least recently read first.
+ */
+final class NamespacedDiskCache {
+
+    static final String DEFAULT_NAMESPACE = "default";
+
+    private final File mDirectory;
+    private final int mAppVersion;
+    private final int mValueCount;
+    private long mDefaultQuota;
+
+    private final HashMap<String, DiskLruCache> mCaches = new HashMap<String, DiskLruCache>();
+    private final HashMap<String, Long> mQuotas = new HashMap<String, Long>();
+
+    private boolean mClosed;
+
+    NamespacedDiskCache(File directory, int appVersion, int valueCount, long defaultQuota) {
+        mDirectory = directory;
+        mAppVersion = appVersion;
+        mValueCount = valueCount;
+        mDefaultQuota = defaultQuota;
+    }
+
+    /**
+     * Open the namespaces already on disk, reading their journals, so that the first lookups
+     * don't have to. Files left by the single cache layout used before namespaces are deleted.
+     */
+    void warm() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                try {
+                    cacheForNamespace(file.getName());
+                } catch (IOException e) {
+                    Log.e(Constants.LOG_TAG, "Could not open disk cache namespace: " + file, e);
+                }
+            } else if (!file.delete()) {
+                Log.w(Constants.LOG_TAG, "Could not delete stale disk cache file: " + file);
+            }
+        }
+    }
+
+    static String namespaceOf(String url) {
+        final int slash = url.indexOf('/');
+        if (slash <= 0) {
+            return DEFAULT_NAMESPACE;
+        }
+        final StringBuilder namespace = new StringBuilder(slash);
+        for (int i = 0; i < slash; i++) {
+            final char c = url.charAt(i);
+            final boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '_';
+            namespace.append(safe ? c : '_');
+        }
+        return namespace.toString();
+    }
+
+    DiskLruCache.Snapshot get(String url) throws IOException {
+        return cacheFor(url).get(Md5.encode(url));
+    }
+
+    DiskLruCache.Editor edit(String url) throws IOException {
+        return cacheFor(url).edit(Md5.encode(url));
+    }
+
+    boolean remove(String url) throws IOException {
+        return cacheFor(url).remove(Md5.encode(url));
+    }
+
+    /**
+     * Set the maximum size of a namespace, evicting its entries if it is now too large.
+     */
+    synchronized void setQuota(String namespace, long maxSize) {
+        mQuotas.put(namespace, maxSize);
+        final DiskLruCache cache = mCaches.get(namespace);
+        if (cache != null) {
+            cache.setMaxSize(maxSize);
+        }
+    }
+
+    /**
+     * Set the maximum size of the namespaces that have no quota of their own.
+     */
+    synchronized void setDefaultQuota(long maxSize) {
+        mDefaultQuota = maxSize;
+        for (String namespace : mCaches.keySet()) {
+            if (!mQuotas.containsKey(namespace)) {
+                mCaches.get(namespace).setMaxSize(maxSize);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes used by all namespaces that are open
+     */
+    synchronized long size() {
+        long size = 0;
+        for (DiskLruCache cache : mCaches.values()) {
+            size += cache.size();
+        }
+        return size;
+    }
+
+    void flush() throws IOException {
+        for (DiskLruCache cache : snapshot()) {
+            cache.flush();
+        }
+    }
+
+    /**
+     * Delete the contents of every namespace. The cache can still be used afterwards.
+     */
+    void delete() throws IOException {
+        final List<DiskLruCache> caches;
+        synchronized (this) {
+            caches = new ArrayList<DiskLruCache>(mCaches.values());
+            mCaches.clear();
+        }
+        for (DiskLruCache cache : caches) {
+            cache.delete();
+        }
+    }
+
+    void close() throws IOException {
+        final List<DiskLruCache> caches;
+        synchronized (this) {
+            mClosed = true;
+            caches = new ArrayList<DiskLruCache>(mCaches.values());
+            mCaches.clear();
+        }
+        for (DiskLruCache cache : caches) {
+            cache.close();
+        }
+    }
+
+    private synchronized List<DiskLruCache> snapshot() {
+        return new ArrayList<DiskLruCache>(mCaches.values());
+    }
+
+    private DiskLruCache cacheFor(String url) throws IOException {
+        return cacheForNamespace(namespaceOf(url));
+    }
+
+    private synchronized DiskLruCache cacheForNamespace(String namespace) throws IOException {
+        if (mClosed) {
+            throw new IOException("disk cache is closed");
+        }
+        DiskLruCache cache = mCaches.get(namespace);
+        if (cache == null || cache.isClosed()) {
+            final Long quota = mQuotas.get(namespace);
+            cache = DiskLruCache.open(new File(mDirectory, namespace), mAppVersion, mValueCount,
+                    quota != null ? quota : mDefaultQuota);
+            mCaches.put(namespace, cache);
+        }
+        return cache;
+    }
+}
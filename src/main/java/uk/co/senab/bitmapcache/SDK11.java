@@ -28,4 +28,8 @@ class SDK11 {
         opts.inBitmap = inBitmap;
     }
 
+    static Bitmap getInBitmapOption(BitmapFactory.Options opts) {
+        return opts.inBitmap;
+    }
+
 }